@@ -0,0 +1,64 @@
+package pack;
+
+import java.lang.management.ManagementFactory;
+
+/**
+ * The purpose of this class is to measure the bytes allocated on the heap by each operation of the FileSystem once it
+ * is in a steady state, which should be 0 for read, write, lseek, open and close: these reuse the scratch blocks of the
+ * FileSystem and the entries of the OFT instead of allocating new ones.
+ * The allocated bytes are read from the ThreadMXBean of the JVM, which counts the bytes allocated by the current thread.
+ * Usage: java pack.AllocationBenchmark [operations]
+ */
+public class AllocationBenchmark {
+
+	private static final com.sun.management.ThreadMXBean THREADS =
+			(com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+
+	public static void main(String[] args) {
+		int operations = args.length > 0 ? Integer.parseInt(args[0]) : 100000;
+		FileSystem fs = new FileSystem();
+		fs.init();
+		fs.create("a");
+		fs.create("b");
+		int handle = fs.open("a");
+		byte [] data = new byte[LDisk.BLOCK_LENGTH * 3];
+		fs.write(handle, data, data.length);
+
+		// Warm up the operations, so the JIT has compiled them (and the counter itself) before they are measured
+		for(int i = 0; i<2; i++) {
+			long read = measure(operations, () -> {
+				fs.lseek(handle, 0);
+				fs.read(handle, data, data.length);
+			});
+			long write = measure(operations, () -> {
+				fs.lseek(handle, 0);
+				fs.write(handle, data, data.length);
+			});
+			long lseek = measure(operations, () -> fs.lseek(handle, LDisk.BLOCK_LENGTH + 1));
+			long openClose = measure(operations, () -> fs.close(fs.open("b")));
+			if(i == 1) {
+				System.out.printf("%-12s %8.1f B/op%n", "READ", (double) read / operations);
+				System.out.printf("%-12s %8.1f B/op%n", "WRITE", (double) write / operations);
+				System.out.printf("%-12s %8.1f B/op%n", "LSEEK", (double) lseek / operations);
+				System.out.printf("%-12s %8.1f B/op%n", "OPEN+CLOSE", (double) openClose / operations);
+			}
+		}
+	}
+
+
+	/**
+	 * Runs an operation a number of times, counting the bytes allocated meanwhile by the current thread.
+	 * @param operations	number of times the operation is run.
+	 * @param operation		operation to run.
+	 * @return				bytes allocated.
+	 */
+	private static long measure(int operations, Runnable operation) {
+		long id = Thread.currentThread().getId();
+		long start = THREADS.getThreadAllocatedBytes(id);
+		for(int i = 0; i<operations; i++) {
+			operation.run();
+		}
+		return THREADS.getThreadAllocatedBytes(id) - start;
+	}
+}
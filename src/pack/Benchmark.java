@@ -0,0 +1,114 @@
+package pack;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * The purpose of this class is to compare the performance of the different BlockDevice backends,
+ * running the same workload on a FileSystem built with each of them.
+ * The workload creates, writes, reads and destroys files, and then saves the disk to its image file.
+ * The size and the load time of the plain and the compressed image formats are compared afterwards.
+ * Usage: java pack.Benchmark [numBlocks blockLength rounds]
+ */
+public class Benchmark {
+	
+	public static void main(String[] args) throws IOException {
+		int numBlocks = args.length > 0 ? Integer.parseInt(args[0]) : 16384;
+		int blockLength = args.length > 1 ? Integer.parseInt(args[1]) : 4096;
+		int rounds = args.length > 2 ? Integer.parseInt(args[2]) : 20;
+		
+		for(BlockDevice.Backend backend : BlockDevice.Backend.values()) {
+			File image = File.createTempFile("benchmark", ".img");
+			image.delete();
+			try {
+				// Warm up once, then measure
+				run(backend, image, numBlocks, blockLength, rounds);
+				image.delete();
+				long start = System.nanoTime();
+				long bytes = run(backend, image, numBlocks, blockLength, rounds);
+				double seconds = (System.nanoTime() - start) / 1e9;
+				System.out.printf("%-12s %8.1f ms %10.1f MB/s%n", backend, seconds * 1000, bytes / seconds / (1 << 20));
+			} finally {
+				image.delete();
+			}
+		}
+		
+		compareImageFormats(numBlocks, blockLength);
+	}
+	
+	
+	/**
+	 * Saves the same disk in the plain and the compressed image formats, and compares their size and load time.
+	 * The disk is filled like the 'wr' command of the Driver does, with files of a single repeated character.
+	 * @param numBlocks		number of blocks of the disk.
+	 * @param blockLength	length of each block (in bytes).
+	 * @throws IOException	if the images cannot be written.
+	 */
+	private static void compareImageFormats(int numBlocks, int blockLength) throws IOException {
+		FileSystem fs = new FileSystem(numBlocks, blockLength, BlockDevice.Backend.HEAP);
+		byte [] data = new byte[blockLength * FileSystem.DISK_MAP];
+		int numFiles = Math.min(64, blockLength * FileSystem.DISK_MAP / FileSystem.SLOT_SIZE - 1);
+		for(int i = 0; i<numFiles; i++) {
+			String name = Integer.toString(i);
+			Arrays.fill(data, (byte) ('a' + i % 26));
+			fs.create(name);
+			int index = fs.open(name);
+			fs.write(index, data, data.length);
+			fs.close(index);
+		}
+		
+		for(boolean compress : new boolean[] {false, true}) {
+			File image = File.createTempFile("benchmark", ".img");
+			try {
+				fs.setCompressImages(compress);
+				fs.save(image.getPath());
+				
+				// Warm up once, then measure
+				new FileSystem(BlockDevice.Backend.HEAP).init(image.getPath());
+				long start = System.nanoTime();
+				new FileSystem(BlockDevice.Backend.HEAP).init(image.getPath());
+				double seconds = (System.nanoTime() - start) / 1e9;
+				System.out.printf("%-12s %8.1f ms load %12d bytes%n", compress ? "COMPRESSED" : "PLAIN", seconds * 1000, image.length());
+			} finally {
+				image.delete();
+			}
+		}
+	}
+	
+	
+	/**
+	 * Runs the workload on a FileSystem built with the given backend.
+	 * @param backend		backend used to build the disk.
+	 * @param image			image file of the disk.
+	 * @param numBlocks		number of blocks of the disk.
+	 * @param blockLength	length of each block (in bytes).
+	 * @param rounds		number of times the workload is repeated.
+	 * @return				number of bytes written and read.
+	 */
+	private static long run(BlockDevice.Backend backend, File image, int numBlocks, int blockLength, int rounds) {
+		FileSystem fs = new FileSystem(numBlocks, blockLength, backend);
+		fs.init(image.getPath());
+		
+		byte [] data = new byte[blockLength * FileSystem.DISK_MAP];
+		int numFiles = Math.min(64, blockLength * FileSystem.DISK_MAP / FileSystem.SLOT_SIZE - 1);
+		long bytes = 0;
+		
+		for(int r = 0; r<rounds; r++) {
+			for(int i = 0; i<numFiles; i++) {
+				String name = Integer.toString(i);
+				fs.create(name);
+				int index = fs.open(name);
+				bytes += fs.write(index, data, data.length);
+				fs.lseek(index, 0);
+				bytes += fs.read(index, data, data.length);
+				fs.close(index);
+			}
+			for(int i = 0; i<numFiles; i++) {
+				fs.destroy(Integer.toString(i));
+			}
+		}
+		fs.save(image.getPath());
+		return bytes;
+	}
+}
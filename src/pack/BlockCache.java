@@ -0,0 +1,479 @@
+package pack;
+
+import java.util.Arrays;
+import java.util.BitSet;
+
+/**
+ * The BlockCache class implements a bounded write-back cache of blocks in front of a BlockDevice.
+ * Blocks read or written are kept in a fixed number of frames, and frames are reused with the CLOCK algorithm:
+ * the clock hand skips (and clears) recently referenced frames and evicts the first one not referenced since
+ * its last pass. Written blocks are only marked as dirty, and reach the device when their frame is evicted
+ * or when the cache is synced.
+ * The number of hits, misses and evictions is counted so the capacity of the cache can be sized.
+ * 
+ * Metadata blocks can be written through a Journal: they are kept in the cache until it is synced, and then they
+ * are committed to the journal as a single transaction before being written back to their own place. Frames holding
+ * dirty metadata blocks are never evicted, and the cache grows by a frame if every frame holds one, so a transaction
+ * is only committed when the cache is synced, between operations, and never in the middle of one.
+ */
+public class BlockCache implements BlockDevice {
+	
+	public static final int MAX_PREFETCH = 32; // Blocks read from the device at once by a prefetch
+	
+	private final BlockDevice device; // Device behind the cache
+	private final int blockLength; // Block length (in bytes)
+	private final boolean offHeap; // Whether the frames are allocated off-heap
+	private PackableMemory[] frames; // Frames holding the cached blocks
+	private int[] frameBlock; // Block held by each frame (-1 if the frame is unused)
+	private boolean[] dirty; // Whether each frame has been written since it was read from the device
+	private boolean[] referenced; // Whether each frame has been referenced since the last pass of the clock hand
+	private boolean[] metadata; // Whether each frame holds a metadata block, to be written through the journal
+	private final int[] blockFrame; // Frame holding each block of the device (-1 if the block is not cached)
+	private int usedFrames; // Number of frames holding a block
+	private int hand; // Position of the clock hand
+	private Journal journal; // Journal through which metadata blocks are written (null if there is none)
+	private int dirtyMetadata; // Number of frames holding dirty metadata blocks
+	
+	private byte[] prefetchBuffer; // Blocks read from the device by a prefetch (allocated on the first prefetch)
+	
+	private long hits;
+	private long misses;
+	private long evictions;
+	
+	
+	/**
+	 * Class constructor. Creates an empty cache in front of the given device.
+	 * @param device	device behind the cache.
+	 * @param capacity	number of blocks the cache can hold. Must be at least 1.
+	 * @throws IllegalArgumentException		if the capacity is not valid.
+	 */
+	public BlockCache(BlockDevice device, int capacity){
+		this(device, capacity, false);
+	}
+	
+	
+	/**
+	 * Class constructor. Creates an empty cache in front of the given device, whose frames live on the heap or off-heap.
+	 * @param device	device behind the cache.
+	 * @param capacity	number of blocks the cache can hold. Must be at least 1.
+	 * @param offHeap	whether the frames are allocated off-heap.
+	 * @throws IllegalArgumentException		if the capacity is not valid.
+	 */
+	public BlockCache(BlockDevice device, int capacity, boolean offHeap){
+		if(capacity < 1){
+			throw new IllegalArgumentException("Invalid cache capacity: " + capacity);
+		}
+		
+		this.device = device;
+		this.blockLength = device.getBlockLength();
+		this.offHeap = offHeap;
+		frames = new PackableMemory[capacity];
+		frameBlock = new int[capacity];
+		dirty = new boolean[capacity];
+		referenced = new boolean[capacity];
+		metadata = new boolean[capacity];
+		for(int i = 0; i<capacity; i++){
+			frames[i] = PackableMemory.allocate(blockLength, offHeap);
+			frameBlock[i] = -1;
+		}
+		blockFrame = new int[device.getNumBlocks()];
+		Arrays.fill(blockFrame, -1);
+	}
+	
+	
+	@Override
+	public int getNumBlocks(){
+		return device.getNumBlocks();
+	}
+	
+	
+	@Override
+	public int getBlockLength(){
+		return blockLength;
+	}
+	
+	
+	@Override
+	public void read_block(int i, PackableMemory myBlock){
+		// Check size of the block equals the block length, otherwise error
+		BlockDevice.checkBlockSize(myBlock, blockLength);
+		
+		int frame = findFrame(i, true);
+		frames[frame].copyTo(0, myBlock, 0, blockLength);
+	}
+	
+	
+	@Override
+	public void write_block(int i, PackableMemory myBlock){
+		// Check size of the block equals the block length, otherwise error
+		BlockDevice.checkBlockSize(myBlock, blockLength);
+		
+		// The whole block is overwritten, so there is no need to read it from the device
+		int frame = findFrame(i, false);
+		myBlock.copyTo(0, frames[frame], 0, blockLength);
+		dirty[frame] = true;
+	}
+	
+	
+	/**
+	 * Write the content of myBlock into metadata block i. If the cache has a journal, the block is not written back
+	 * to the device until the cache is synced, and then it is written through the journal.
+	 * @param i			index of the block to be written.
+	 * @param myBlock	block from which the content will be copied. Must be the same size as a block.
+	 */
+	public void write_metadata_block(int i, PackableMemory myBlock){
+		write_block(i, myBlock);
+		int frame = blockFrame[i];
+		if(journal != null && !metadata[frame]){
+			metadata[frame] = true;
+			dirtyMetadata++;
+		}
+	}
+	
+	
+	/**
+	 * Read several blocks, copying them one after the other into dst.
+	 * Cached blocks are copied from their frame, while runs of blocks not held by the cache are read from the device
+	 * at once, without bringing them into the cache, so large transfers don't evict the cached blocks.
+	 */
+	@Override
+	public void read_blocks(int[] blockIds, byte[] dst, int off){
+		for(int k = 0; k<blockIds.length; ){
+			int frame = blockFrame[blockIds[k]];
+			if(frame >= 0){
+				hits++;
+				referenced[frame] = true;
+				frames[frame].copyTo(0, dst, off + k*blockLength, blockLength);
+				k++;
+			} else {
+				int run = uncachedRunLength(blockIds, k);
+				misses += run;
+				device.read_blocks(Arrays.copyOfRange(blockIds, k, k + run), dst, off + k*blockLength);
+				k += run;
+			}
+		}
+	}
+	
+	
+	/**
+	 * Write several blocks, taking them one after the other from src.
+	 * Cached blocks are copied into their frame, while runs of blocks not held by the cache are written to the device
+	 * at once, without bringing them into the cache.
+	 */
+	@Override
+	public void write_blocks(int[] blockIds, byte[] src, int off){
+		for(int k = 0; k<blockIds.length; ){
+			int frame = blockFrame[blockIds[k]];
+			if(frame >= 0){
+				hits++;
+				referenced[frame] = true;
+				frames[frame].copyFrom(src, off + k*blockLength, 0, blockLength);
+				dirty[frame] = true;
+				k++;
+			} else {
+				int run = uncachedRunLength(blockIds, k);
+				misses += run;
+				device.write_blocks(Arrays.copyOfRange(blockIds, k, k + run), src, off + k*blockLength);
+				k += run;
+			}
+		}
+	}
+	
+	
+	/**
+	 * Brings a run of consecutive blocks into the cache before they are read, reading the blocks not held yet
+	 * (up to the first one which is held) from the device at once.
+	 * At most MAX_PREFETCH blocks and a quarter of the capacity of the cache are prefetched, so a prefetch doesn't
+	 * evict the blocks in use. The prefetched blocks are the first to be evicted if they are not read.
+	 * @param start		first block of the run.
+	 * @param n			number of blocks of the run.
+	 */
+	public void prefetch(int start, int n){
+		n = Math.min(Math.min(n, device.getNumBlocks() - start), Math.min(MAX_PREFETCH, frames.length / 4));
+		int run = 0;
+		while(run < n && blockFrame[start + run] < 0){
+			run++;
+		}
+		// A single block is read by the access itself
+		if(run < 2){
+			return;
+		}
+		
+		if(prefetchBuffer == null){
+			prefetchBuffer = new byte[Math.min(MAX_PREFETCH, frames.length / 4) * blockLength];
+		}
+		int [] blockIds = new int[run];
+		for(int k = 0; k<run; k++){
+			blockIds[k] = start + k;
+		}
+		device.read_blocks(blockIds, prefetchBuffer, 0);
+		misses += run;
+		
+		for(int k = 0; k<run; k++){
+			int frame = freeFrame();
+			frames[frame].copyFrom(prefetchBuffer, k*blockLength, 0, blockLength);
+			frameBlock[frame] = start + k;
+			blockFrame[start + k] = frame;
+			referenced[frame] = false;
+		}
+	}
+	
+	
+	/**
+	 * Writes every dirty block back to the device, and forces the device to write them to its image file.
+	 * Data blocks are written first. Then the dirty metadata blocks are committed to the journal, as a single transaction,
+	 * and written to their own place once the transaction has reached the image file.
+	 * @throws IllegalStateException		if the journal cannot hold the dirty metadata blocks in a single transaction
+	 * 										(the file system commits them before they outgrow it).
+	 */
+	public void sync(){
+		for(int i = 0; i<usedFrames; i++){
+			if(dirty[i] && !metadata[i]){
+				device.write_block(frameBlock[i], frames[i]);
+				dirty[i] = false;
+			}
+		}
+		device.force();
+		
+		if(dirtyMetadata > 0){
+			commitMetadata();
+		}
+	}
+	
+	
+	/**
+	 * Sets the journal through which metadata blocks are written. The cache must be synced before changing it.
+	 * @param journal		journal; null to write metadata blocks like any other block.
+	 */
+	public void setJournal(Journal journal){
+		this.journal = journal;
+	}
+	
+	
+	/**
+	 * Returns the number of dirty metadata blocks waiting to be committed to the journal.
+	 * @return		number of dirty metadata blocks.
+	 */
+	public int getDirtyMetadata(){
+		return dirtyMetadata;
+	}
+	
+	
+	/**
+	 * Returns the blocks of the device written since its dirty blocks were last cleared.
+	 * Blocks only written in the cache are not included until the cache is synced.
+	 */
+	@Override
+	public BitSet getDirtyBlocks(){
+		return device.getDirtyBlocks();
+	}
+	
+	
+	@Override
+	public void clearDirtyBlocks(){
+		device.clearDirtyBlocks();
+	}
+	
+	
+	/**
+	 * Syncs the cache, so that every change reaches the image file of the device.
+	 */
+	@Override
+	public void force(){
+		sync();
+	}
+	
+	
+	/**
+	 * Writes every dirty block back to the device and closes it.
+	 */
+	@Override
+	public void close(){
+		sync();
+		device.close();
+	}
+	
+	
+	/**
+	 * Returns the device behind the cache. It is only up to date with the cache after a sync.
+	 * @return		device behind the cache.
+	 */
+	public BlockDevice getDevice(){
+		return device;
+	}
+	
+	
+	/**
+	 * Returns the number of blocks the cache can hold. It grows past the capacity it was created with if every frame
+	 * holds a dirty metadata block.
+	 * @return		capacity of the cache (in blocks).
+	 */
+	public int getCapacity(){
+		return frames.length;
+	}
+	
+	
+	/**
+	 * Returns the number of accesses to blocks held by the cache.
+	 * @return		number of hits.
+	 */
+	public long getHits(){
+		return hits;
+	}
+	
+	
+	/**
+	 * Returns the number of accesses to blocks not held by the cache.
+	 * @return		number of misses.
+	 */
+	public long getMisses(){
+		return misses;
+	}
+	
+	
+	/**
+	 * Returns the number of blocks evicted from the cache to make room for other blocks.
+	 * @return		number of evictions.
+	 */
+	public long getEvictions(){
+		return evictions;
+	}
+	
+	
+	/**
+	 * Commits the dirty metadata blocks to the journal, in order of block number, and writes them to their own place.
+	 * A transaction split in several would not be atomic, so metadata blocks the journal cannot hold are an error.
+	 * @throws IllegalStateException		if the journal cannot hold the dirty metadata blocks in a single transaction.
+	 */
+	private void commitMetadata(){
+		if(dirtyMetadata > journal.capacity()){
+			throw new IllegalStateException("Metadata changes too large for the journal: " + dirtyMetadata + " blocks");
+		}
+		int [] metadataFrames = new int[dirtyMetadata];
+		int n = 0;
+		for(int i = 0; i<usedFrames; i++){
+			if(metadata[i]){
+				metadataFrames[n++] = i;
+			}
+		}
+		// Sort the frames by block number, so that runs of consecutive blocks are written at once
+		Integer [] order = new Integer[n];
+		for(int i = 0; i<n; i++){
+			order[i] = metadataFrames[i];
+		}
+		Arrays.sort(order, (a, b) -> Integer.compare(frameBlock[a], frameBlock[b]));
+		
+		int [] blockIds = new int[n];
+		byte [] images = new byte[n * blockLength];
+		for(int i = 0; i<n; i++){
+			blockIds[i] = frameBlock[order[i]];
+			frames[order[i]].copyTo(0, images, i * blockLength, blockLength);
+		}
+		
+		journal.commit(blockIds, images, 0);
+		device.write_blocks(blockIds, images, 0);
+		device.force();
+		journal.clear();
+		
+		for(int i = 0; i<n; i++){
+			dirty[order[i]] = false;
+			metadata[order[i]] = false;
+		}
+		dirtyMetadata = 0;
+	}
+	
+	
+	/**
+	 * Counts how many blocks not held by the cache follow each other from a position of an array of blocks.
+	 * @param blockIds		indexes of the blocks.
+	 * @param start			position of the first block.
+	 * @return				number of blocks not held by the cache.
+	 */
+	private int uncachedRunLength(int[] blockIds, int start){
+		int end = start + 1;
+		while(end < blockIds.length && blockFrame[blockIds[end]] < 0){
+			end++;
+		}
+		return end - start;
+	}
+	
+	
+	/**
+	 * Finds the frame holding a block, bringing the block into the cache if it is not held yet.
+	 * @param block		number of the block.
+	 * @param load		'true' to read the block from the device on a miss; 'false' if it will be overwritten.
+	 * @return			index of the frame holding the block.
+	 */
+	private int findFrame(int block, boolean load){
+		int frame = blockFrame[block];
+		if(frame >= 0){
+			hits++;
+			referenced[frame] = true;
+			return frame;
+		}
+		
+		misses++;
+		frame = freeFrame();
+		if(load){
+			device.read_block(block, frames[frame]);
+		}
+		frameBlock[frame] = block;
+		blockFrame[block] = frame;
+		referenced[frame] = true;
+		return frame;
+	}
+	
+	
+	/**
+	 * Finds a frame to hold a new block: an unused frame if there is one, otherwise the frame 
+	 * chosen by the clock hand, whose block is written back to the device if it is dirty.
+	 * @return		index of the frame.
+	 */
+	private int freeFrame(){
+		if(usedFrames < frames.length){
+			return usedFrames++;
+		}
+		
+		// Frames holding dirty metadata blocks cannot be evicted until they are committed to the journal, which only
+		// happens between operations, so a new frame is added if every frame holds one
+		if(dirtyMetadata == frames.length){
+			return addFrame();
+		}
+		
+		// Move the hand, giving a second chance to referenced frames and skipping dirty metadata blocks
+		while(referenced[hand] || metadata[hand]){
+			referenced[hand] = false;
+			hand = (hand + 1) % frames.length;
+		}
+		int frame = hand;
+		hand = (hand + 1) % frames.length;
+		
+		// Evict the block of the frame
+		evictions++;
+		if(dirty[frame]){
+			device.write_block(frameBlock[frame], frames[frame]);
+			dirty[frame] = false;
+		}
+		blockFrame[frameBlock[frame]] = -1;
+		frameBlock[frame] = -1;
+		return frame;
+	}
+	
+	
+	/**
+	 * Adds an unused frame to the cache, at its end.
+	 * @return		index of the new frame.
+	 */
+	private int addFrame(){
+		int frame = frames.length;
+		frames = Arrays.copyOf(frames, frame + 1);
+		frameBlock = Arrays.copyOf(frameBlock, frame + 1);
+		dirty = Arrays.copyOf(dirty, frame + 1);
+		referenced = Arrays.copyOf(referenced, frame + 1);
+		metadata = Arrays.copyOf(metadata, frame + 1);
+		frames[frame] = PackableMemory.allocate(blockLength, offHeap);
+		frameBlock[frame] = -1;
+		usedFrames++;
+		return frame;
+	}
+}
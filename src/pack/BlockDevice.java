@@ -0,0 +1,137 @@
+package pack;
+
+import java.util.BitSet;
+
+/**
+ * The BlockDevice interface defines the functions every disk used by the FileSystem must implement.
+ * As with the LDisk, the disk can only be accessed by blocks, never by individual bytes.
+ * Several backends are provided, and the one used is selected when the FileSystem is built.
+ */
+public interface BlockDevice {
+	
+	/**
+	 * Backends that can be used to build the disk of a FileSystem.
+	 */
+	public enum Backend {
+		HEAP,			// LDisk in the Java heap
+		DIRECT,			// LDisk in off-heap memory (direct buffers)
+		FILE_CHANNEL,	// LDisk accessed through positional reads/writes on its image file
+		MAPPED;			// LDisk mapped over its image file
+		
+		/**
+		 * Indicates whether the backend works directly over an image file, instead of living in memory.
+		 * @return		'true' if the backend is backed by a file; 'false' if it lives in memory.
+		 */
+		public boolean isFileBacked(){
+			return this == FILE_CHANNEL || this == MAPPED;
+		}
+	}
+	
+	
+	/**
+	 * Returns the number of blocks of the device.
+	 * @return		number of blocks.
+	 */
+	public int getNumBlocks();
+	
+	
+	/**
+	 * Returns the length of the blocks of the device.
+	 * @return		block length (in bytes).
+	 */
+	public int getBlockLength();
+	
+	
+	/**
+	 * Read block i from the device and copy its content to myBlock.
+	 * @param i			index of the block to be read from the device.
+	 * @param myBlock	block where the content of the block will be copied. Must be the same size as a block.
+	 * @throws IllegalArgumentException		if myBlock is not the same size as a block.
+	 */
+	public void read_block(int i, PackableMemory myBlock);
+	
+	
+	/**
+	 * Write the content of myBlock into block i from the device.
+	 * @param i			index of the block to be written into the device.
+	 * @param myBlock	block from which the content will be copied. Must be the same size as a block.
+	 * @throws IllegalArgumentException		if myBlock is not the same size as a block.
+	 */
+	public void write_block(int i, PackableMemory myBlock);
+	
+	
+	/**
+	 * Read several blocks from the device, copying them one after the other into dst.
+	 * Runs of consecutive block numbers are transferred at once.
+	 * @param blockIds	indexes of the blocks to be read from the device.
+	 * @param dst		memory area where the blocks will be copied.
+	 * @param off		position of dst where the first block will be copied. 
+	 * 					There must be room for all the blocks from this position on.
+	 */
+	public void read_blocks(int[] blockIds, byte[] dst, int off);
+	
+	
+	/**
+	 * Write several blocks into the device, taking them one after the other from src.
+	 * Runs of consecutive block numbers are transferred at once.
+	 * @param blockIds	indexes of the blocks to be written into the device.
+	 * @param src		memory area from which the blocks will be copied.
+	 * @param off		position of src where the first block is.
+	 */
+	public void write_blocks(int[] blockIds, byte[] src, int off);
+	
+	
+	/**
+	 * Returns the blocks written since the dirty blocks were last cleared, so that an image of the device
+	 * can be brought up to date by rewriting only those blocks.
+	 * @return		set of the indexes of the dirty blocks. It must not be modified.
+	 */
+	public BitSet getDirtyBlocks();
+	
+	
+	/**
+	 * Clears the dirty blocks, once an image of the device has been brought up to date.
+	 */
+	public void clearDirtyBlocks();
+	
+	
+	/**
+	 * Forces any change made to the device to be written to its image file. 
+	 * It has no effect on devices that live in memory.
+	 */
+	public void force();
+	
+	
+	/**
+	 * Releases the resources held by the device. The device cannot be used afterwards.
+	 */
+	public void close();
+	
+	
+	/**
+	 * Checks that a block has the same size as the blocks of a device.
+	 * @param myBlock		block to be checked.
+	 * @param blockLength	block length of the device (in bytes).
+	 * @throws IllegalArgumentException		if the block is not the same size.
+	 */
+	public static void checkBlockSize(PackableMemory myBlock, int blockLength){
+		if (myBlock.size != blockLength){
+			throw new IllegalArgumentException("Block of " + myBlock.size + " bytes, expected " + blockLength);
+		}
+	}
+	
+	
+	/**
+	 * Finds the length of the run of consecutive block numbers starting at a position of an array of blocks.
+	 * @param blockIds		indexes of the blocks.
+	 * @param start			position of the first block of the run.
+	 * @return				number of blocks in the run.
+	 */
+	public static int runLength(int[] blockIds, int start){
+		int end = start + 1;
+		while(end < blockIds.length && blockIds[end] == blockIds[end-1] + 1){
+			end++;
+		}
+		return end - start;
+	}
+}
@@ -0,0 +1,131 @@
+package pack;
+
+import java.nio.ByteBuffer;
+import java.util.BitSet;
+
+/**
+ * The ByteBufferDisk class implements the functions shared by the disks whose blocks are stored in ByteBuffers,
+ * either in off-heap memory or mapped over an image file.
+ * Since a ByteBuffer cannot hold more than 2 GiB, the disk is split into regions of at most MAX_REGION_SIZE bytes.
+ */
+public abstract class ByteBufferDisk implements BlockDevice {
+	
+	public static final int MAX_REGION_SIZE = 1 << 30; // Maximum size of each region (in bytes)
+	
+	protected final int numBlocks; // Number of blocks of the disk
+	protected final int blockLength; // Block length (in bytes)
+	protected final int blocksPerRegion; // Number of blocks in each region
+	protected final ByteBuffer[] regions; // Regions of the disk
+	private final BitSet dirtyBlocks; // Blocks written since the dirty blocks were last cleared
+	
+	
+	/**
+	 * Class constructor. The regions are created by the subclasses.
+	 * @param numBlocks		number of blocks of the disk.
+	 * @param blockLength	block length (in bytes).
+	 */
+	protected ByteBufferDisk(int numBlocks, int blockLength){
+		this.numBlocks = numBlocks;
+		this.blockLength = blockLength;
+		blocksPerRegion = Math.max(1, MAX_REGION_SIZE / blockLength);
+		regions = new ByteBuffer[(numBlocks + blocksPerRegion - 1) / blocksPerRegion];
+		dirtyBlocks = new BitSet(numBlocks);
+	}
+	
+	
+	/**
+	 * Computes the size of a region of the disk.
+	 * @param region	index of the region.
+	 * @return			size of the region (in bytes).
+	 */
+	protected int regionSize(int region){
+		return Math.min(numBlocks - region*blocksPerRegion, blocksPerRegion) * blockLength;
+	}
+	
+	
+	@Override
+	public int getNumBlocks(){
+		return numBlocks;
+	}
+	
+	
+	@Override
+	public int getBlockLength(){
+		return blockLength;
+	}
+	
+	
+	@Override
+	public void read_block(int i, PackableMemory myBlock){
+		// Check size of the block equals the block length, otherwise error
+		BlockDevice.checkBlockSize(myBlock, blockLength);
+		myBlock.view(0, blockLength).put(0, regions[i / blocksPerRegion], i % blocksPerRegion * blockLength, blockLength);
+	}
+	
+	
+	@Override
+	public void write_block(int i, PackableMemory myBlock){
+		// Check size of the block equals the block length, otherwise error
+		BlockDevice.checkBlockSize(myBlock, blockLength);
+		regions[i / blocksPerRegion].put(i % blocksPerRegion * blockLength, myBlock.view(0, blockLength), 0, blockLength);
+		dirtyBlocks.set(i);
+	}
+	
+	
+	@Override
+	public void read_blocks(int[] blockIds, byte[] dst, int off){
+		for(int k = 0; k<blockIds.length; ){
+			int run = regionRunLength(blockIds, k);
+			regions[blockIds[k] / blocksPerRegion].get(blockIds[k] % blocksPerRegion * blockLength, 
+					dst, off + k*blockLength, run*blockLength);
+			k += run;
+		}
+	}
+	
+	
+	@Override
+	public void write_blocks(int[] blockIds, byte[] src, int off){
+		for(int k = 0; k<blockIds.length; ){
+			int run = regionRunLength(blockIds, k);
+			regions[blockIds[k] / blocksPerRegion].put(blockIds[k] % blocksPerRegion * blockLength, 
+					src, off + k*blockLength, run*blockLength);
+			dirtyBlocks.set(blockIds[k], blockIds[k] + run);
+			k += run;
+		}
+	}
+	
+	
+	/**
+	 * Finds the length of the run of consecutive blocks starting at a position of an array of blocks,
+	 * without crossing the end of the region of the first block.
+	 * @param blockIds		indexes of the blocks.
+	 * @param start			position of the first block of the run.
+	 * @return				number of blocks in the run.
+	 */
+	private int regionRunLength(int[] blockIds, int start){
+		int run = BlockDevice.runLength(blockIds, start);
+		return Math.min(run, blocksPerRegion - blockIds[start] % blocksPerRegion);
+	}
+	
+	
+	@Override
+	public BitSet getDirtyBlocks(){
+		return dirtyBlocks;
+	}
+	
+	
+	@Override
+	public void clearDirtyBlocks(){
+		dirtyBlocks.clear();
+	}
+	
+	
+	@Override
+	public void force(){
+	}
+	
+	
+	@Override
+	public void close(){
+	}
+}
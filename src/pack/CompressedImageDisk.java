@@ -0,0 +1,342 @@
+package pack;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.BitSet;
+
+/**
+ * The CompressedImageDisk class implements a read-only BlockDevice over a compressed image file.
+ * The blocks of the image are grouped in chunks of consecutive blocks, and every chunk is compressed with the LzCodec.
+ * An index with the position and the compressed length of every chunk follows the header, so any block can be read
+ * by decompressing only its chunk. The last chunk read is kept decompressed, so reading blocks in order decompresses
+ * every chunk once.
+ *
+ * The image file contains, in big-endian order:
+ * 	- A header: the magic number, the version, the block length, the number of blocks, the number of blocks per chunk
+ * 	  and the number of chunks (4 bytes each).
+ * 	- The index: the position (8 bytes) and the compressed length (4 bytes) of every chunk. A length of 0 means the chunk
+ * 	  is filled with zeros and is not stored, and a length equal to the size of the chunk means it is stored uncompressed.
+ * 	- The compressed chunks.
+ */
+public class CompressedImageDisk implements BlockDevice {
+
+	public static final int MAGIC = 0x4C44535A; // "LDSZ"
+	public static final int VERSION = 1;
+	public static final int CHUNK_SIZE = 1 << 16; // Bytes of blocks compressed together
+	private static final int HEADER_SIZE = 24; // Bytes
+	private static final int INDEX_ENTRY_SIZE = 12; // Bytes
+	private static final BitSet NO_BLOCKS = new BitSet(); // The image is never written, so it has no dirty blocks
+
+	private final FileChannel channel; // Channel to the image file
+	private final int numBlocks; // Number of blocks of the image
+	private final int blockLength; // Block length (in bytes)
+	private final int chunkBlocks; // Number of blocks per chunk
+	private final long[] chunkPosition; // Position of each chunk in the image file
+	private final int[] chunkLength; // Compressed length of each chunk
+	private final byte[] chunk; // Last chunk read, decompressed
+	private int currentChunk = -1; // Index of the last chunk read (-1 if none)
+
+
+	/**
+	 * Class constructor. Opens a compressed image file, reading its header and its index.
+	 * @param file			compressed image file.
+	 * @throws IOException	if the file cannot be read or is not a compressed image.
+	 */
+	public CompressedImageDisk(File file) throws IOException {
+		channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+		try {
+			ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+			read(header, 0);
+			if(header.getInt(0) != MAGIC || header.getInt(4) != VERSION) {
+				throw new IOException("Not a compressed image: " + file);
+			}
+			blockLength = header.getInt(8);
+			numBlocks = header.getInt(12);
+			chunkBlocks = header.getInt(16);
+			int numChunks = header.getInt(20);
+			if(blockLength <= 0 || numBlocks <= 0 || chunkBlocks <= 0
+					|| (long) chunkBlocks*blockLength > Math.max(CHUNK_SIZE, blockLength) || numChunks != chunks(numBlocks, chunkBlocks)) {
+				throw new IOException("Corrupt compressed image: " + file);
+			}
+
+			ByteBuffer index = ByteBuffer.allocate(numChunks * INDEX_ENTRY_SIZE);
+			read(index, HEADER_SIZE);
+			chunkPosition = new long[numChunks];
+			chunkLength = new int[numChunks];
+			for(int i = 0; i<numChunks; i++) {
+				chunkPosition[i] = index.getLong(i * INDEX_ENTRY_SIZE);
+				chunkLength[i] = index.getInt(i * INDEX_ENTRY_SIZE + 8);
+			}
+			chunk = new byte[chunkBlocks * blockLength];
+		}
+		catch(IOException ex) {
+			channel.close();
+			throw ex;
+		}
+	}
+
+
+	/**
+	 * Indicates whether a file is a compressed image, checking its magic number.
+	 * @param file			file to check.
+	 * @return				'true' if it is a compressed image; 'false' otherwise.
+	 * @throws IOException	if the file cannot be read.
+	 */
+	public static boolean isCompressedImage(File file) throws IOException {
+		DataInputStream inputStream = new DataInputStream(new FileInputStream(file));
+		try {
+			return file.length() >= HEADER_SIZE && inputStream.readInt() == MAGIC;
+		} finally {
+			inputStream.close();
+		}
+	}
+
+
+	/**
+	 * Writes every block of a disk into a compressed image file. The image is written into a temporary file which
+	 * then replaces the image file, so a crash while saving never leaves a half-written image behind.
+	 * @param file			compressed image file.
+	 * @param device		disk to be saved.
+	 * @throws IOException	if the file cannot be written.
+	 */
+	public static void write(File file, BlockDevice device) throws IOException {
+		int numBlocks = device.getNumBlocks();
+		int blockLength = device.getBlockLength();
+		int chunkBlocks = Math.max(1, CHUNK_SIZE / blockLength);
+		int numChunks = chunks(numBlocks, chunkBlocks);
+
+		File temp = new File(file.getAbsoluteFile().getParentFile(), file.getName() + ".tmp");
+		FileChannel out = FileChannel.open(temp.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+				StandardOpenOption.TRUNCATE_EXISTING);
+		try {
+			byte [] chunk = new byte[chunkBlocks * blockLength];
+			byte [] compressed = new byte[LzCodec.maxCompressedLength(chunk.length)];
+			ByteBuffer index = ByteBuffer.allocate(numChunks * INDEX_ENTRY_SIZE);
+			long position = HEADER_SIZE + (long) numChunks * INDEX_ENTRY_SIZE;
+
+			for(int i = 0; i<numChunks; i++) {
+				int [] blockIds = new int[Math.min(chunkBlocks, numBlocks - i*chunkBlocks)];
+				for(int j = 0; j<blockIds.length; j++) {
+					blockIds[j] = i*chunkBlocks + j;
+				}
+				int size = blockIds.length * blockLength;
+				device.read_blocks(blockIds, chunk, 0);
+
+				// Chunks of zeros are not stored, and incompressible chunks are stored as they are
+				int length = 0;
+				if(!isZero(chunk, size)) {
+					length = LzCodec.compress(chunk, 0, size, compressed, 0);
+					if(length >= size) {
+						length = size;
+						System.arraycopy(chunk, 0, compressed, 0, size);
+					}
+					writeFully(out, ByteBuffer.wrap(compressed, 0, length), position);
+				}
+				index.putLong(position);
+				index.putInt(length);
+				position += length;
+			}
+
+			ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+			header.putInt(MAGIC).putInt(VERSION).putInt(blockLength).putInt(numBlocks).putInt(chunkBlocks).putInt(numChunks);
+			header.flip();
+			index.flip();
+			writeFully(out, header, 0);
+			writeFully(out, index, HEADER_SIZE);
+			out.force(true);
+		} finally {
+			out.close();
+		}
+		Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
+
+
+	@Override
+	public int getNumBlocks(){
+		return numBlocks;
+	}
+
+
+	@Override
+	public int getBlockLength(){
+		return blockLength;
+	}
+
+
+	@Override
+	public void read_block(int i, PackableMemory myBlock){
+		// Check size of the block equals the block length, otherwise error
+		BlockDevice.checkBlockSize(myBlock, blockLength);
+
+		loadChunk(i / chunkBlocks);
+		myBlock.copyFrom(chunk, i % chunkBlocks * blockLength, 0, blockLength);
+	}
+
+
+	/**
+	 * The compressed image is read-only.
+	 * @throws UnsupportedOperationException	always.
+	 */
+	@Override
+	public void write_block(int i, PackableMemory myBlock){
+		throw new UnsupportedOperationException("Compressed images are read-only");
+	}
+
+
+	/**
+	 * Read several blocks, copying them one after the other into dst.
+	 * Runs of consecutive blocks within the same chunk are copied at once.
+	 */
+	@Override
+	public void read_blocks(int[] blockIds, byte[] dst, int off){
+		for(int k = 0; k<blockIds.length; ){
+			int run = BlockDevice.runLength(blockIds, k);
+			run = Math.min(run, chunkBlocks - blockIds[k] % chunkBlocks);
+			loadChunk(blockIds[k] / chunkBlocks);
+			System.arraycopy(chunk, blockIds[k] % chunkBlocks * blockLength, dst, off + k*blockLength, run*blockLength);
+			k += run;
+		}
+	}
+
+
+	/**
+	 * The compressed image is read-only.
+	 * @throws UnsupportedOperationException	always.
+	 */
+	@Override
+	public void write_blocks(int[] blockIds, byte[] src, int off){
+		throw new UnsupportedOperationException("Compressed images are read-only");
+	}
+
+
+	@Override
+	public BitSet getDirtyBlocks(){
+		return NO_BLOCKS;
+	}
+
+
+	@Override
+	public void clearDirtyBlocks(){
+	}
+
+
+	/**
+	 * Has no effect, since the compressed image is never written.
+	 */
+	@Override
+	public void force(){
+	}
+
+
+	/**
+	 * Closes the image file.
+	 */
+	@Override
+	public void close(){
+		try {
+			channel.close();
+		}
+		catch(IOException ex) {
+			throw new UncheckedIOException(ex);
+		}
+	}
+
+
+	/**
+	 * Decompresses a chunk, unless it is the last chunk read.
+	 * @param i		index of the chunk.
+	 * @throws UncheckedIOException		if the image file cannot be read or the chunk is corrupt.
+	 */
+	private void loadChunk(int i){
+		if(i == currentChunk){
+			return;
+		}
+
+		int size = Math.min(chunkBlocks, numBlocks - i*chunkBlocks) * blockLength;
+		try {
+			if(chunkLength[i] == 0){
+				Arrays.fill(chunk, 0, size, (byte) 0);
+			} else if(chunkLength[i] == size){
+				read(ByteBuffer.wrap(chunk, 0, size), chunkPosition[i]);
+			} else {
+				byte [] compressed = new byte[chunkLength[i]];
+				read(ByteBuffer.wrap(compressed), chunkPosition[i]);
+				if(LzCodec.decompress(compressed, 0, compressed.length, chunk, 0, size) != size){
+					throw new IOException("Corrupt chunk " + i + " in compressed image");
+				}
+			}
+		}
+		catch(IllegalArgumentException ex){
+			currentChunk = -1;
+			throw new UncheckedIOException(new IOException("Corrupt chunk " + i + " in compressed image"));
+		}
+		catch(IOException ex){
+			currentChunk = -1;
+			throw new UncheckedIOException(ex);
+		}
+		currentChunk = i;
+	}
+
+
+	/**
+	 * Reads from the image file until the buffer is full.
+	 * @param buffer		buffer to fill.
+	 * @param position		position of the file where the read starts.
+	 * @throws IOException	if the file cannot be read or is too short.
+	 */
+	private void read(ByteBuffer buffer, long position) throws IOException {
+		int start = buffer.position();
+		while(buffer.hasRemaining()){
+			if(channel.read(buffer, position + buffer.position() - start) < 0){
+				throw new EOFException("Truncated compressed image");
+			}
+		}
+	}
+
+
+	/**
+	 * Writes the whole buffer into a file.
+	 * @param out			channel to the file.
+	 * @param buffer		buffer to write.
+	 * @param position		position of the file where the write starts.
+	 * @throws IOException	if the file cannot be written.
+	 */
+	private static void writeFully(FileChannel out, ByteBuffer buffer, long position) throws IOException {
+		int start = buffer.position();
+		while(buffer.hasRemaining()){
+			out.write(buffer, position + buffer.position() - start);
+		}
+	}
+
+
+	/**
+	 * Indicates whether the first bytes of a memory area are all zeros.
+	 * @param mem		memory area.
+	 * @param length	number of bytes to check.
+	 * @return			'true' if they are all zeros; 'false' otherwise.
+	 */
+	private static boolean isZero(byte[] mem, int length){
+		for(int i = 0; i<length; i++){
+			if(mem[i] != 0){
+				return false;
+			}
+		}
+		return true;
+	}
+
+
+	/**
+	 * Computes the number of chunks of an image.
+	 * @param numBlocks		number of blocks of the image.
+	 * @param chunkBlocks	number of blocks per chunk.
+	 * @return				number of chunks.
+	 */
+	private static int chunks(int numBlocks, int chunkBlocks){
+		return (numBlocks + chunkBlocks - 1) / chunkBlocks;
+	}
+}
@@ -0,0 +1,162 @@
+package pack;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+
+/**
+ * The CowDisk class implements copy-on-write snapshots of a BlockDevice.
+ * Taking a snapshot doesn't copy any block: the snapshot shares every block with the device, and a block is only
+ * copied into the snapshots that still share it the first time it is written after they were taken.
+ * Every write to the device goes through the CowDisk, which sits behind the cache of the FileSystem.
+ */
+public class CowDisk implements BlockDevice {
+	
+	private final BlockDevice device; // Device the snapshots are taken of
+	private final int blockLength; // Block length (in bytes)
+	private final ArrayList<Snapshot> snapshots; // Snapshots not released yet
+	private boolean closed; // Whether the CowDisk has been closed, and the device is only kept open for its snapshots
+	
+	
+	/**
+	 * Class constructor.
+	 * @param device	device the snapshots are taken of.
+	 */
+	public CowDisk(BlockDevice device){
+		this.device = device;
+		this.blockLength = device.getBlockLength();
+		snapshots = new ArrayList<Snapshot>();
+	}
+	
+	
+	/**
+	 * Takes a snapshot of the current content of the device. No block is copied.
+	 * @return		read-only snapshot of the device.
+	 */
+	public Snapshot snapshot(){
+		Snapshot snapshot = new Snapshot(this, device);
+		snapshots.add(snapshot);
+		return snapshot;
+	}
+	
+	
+	/**
+	 * Stops preserving blocks for a snapshot, once it has been released. The device is closed with the last snapshot
+	 * if the CowDisk was closed before.
+	 * @param snapshot		released snapshot.
+	 */
+	void release(Snapshot snapshot){
+		snapshots.remove(snapshot);
+		if(closed && snapshots.isEmpty()){
+			device.close();
+		}
+	}
+	
+	
+	/**
+	 * Returns the number of snapshots not released yet.
+	 * @return		number of snapshots.
+	 */
+	public int getNumSnapshots(){
+		return snapshots.size();
+	}
+	
+	
+	@Override
+	public int getNumBlocks(){
+		return device.getNumBlocks();
+	}
+	
+	
+	@Override
+	public int getBlockLength(){
+		return blockLength;
+	}
+	
+	
+	@Override
+	public void read_block(int i, PackableMemory myBlock){
+		device.read_block(i, myBlock);
+	}
+	
+	
+	@Override
+	public void write_block(int i, PackableMemory myBlock){
+		if(!snapshots.isEmpty()){
+			preserve(i);
+		}
+		device.write_block(i, myBlock);
+	}
+	
+	
+	@Override
+	public void read_blocks(int[] blockIds, byte[] dst, int off){
+		device.read_blocks(blockIds, dst, off);
+	}
+	
+	
+	@Override
+	public void write_blocks(int[] blockIds, byte[] src, int off){
+		if(!snapshots.isEmpty()){
+			for(int i = 0; i<blockIds.length; i++){
+				preserve(blockIds[i]);
+			}
+		}
+		device.write_blocks(blockIds, src, off);
+	}
+	
+	
+	@Override
+	public BitSet getDirtyBlocks(){
+		return device.getDirtyBlocks();
+	}
+	
+	
+	@Override
+	public void clearDirtyBlocks(){
+		device.clearDirtyBlocks();
+	}
+	
+	
+	@Override
+	public void force(){
+		device.force();
+	}
+	
+	
+	/**
+	 * Closes the device. The snapshots not released yet outlive it: since the device is no longer written through
+	 * the CowDisk, they keep reading the blocks they share with it, and the device is only closed once the last one
+	 * is released. Nothing else must write the device meanwhile (e.g. through its image file opened again).
+	 */
+	@Override
+	public void close(){
+		if(closed){
+			return;
+		}
+		closed = true;
+		if(snapshots.isEmpty()){
+			device.close();
+		}
+	}
+	
+	
+	/**
+	 * Copies the current content of a block, which is about to be written, into the snapshots still sharing it.
+	 * The snapshots share a single copy of the block.
+	 * @param i		index of the block.
+	 */
+	private void preserve(int i){
+		byte [] copy = null;
+		for(int k = 0; k<snapshots.size(); k++){
+			Snapshot snapshot = snapshots.get(k);
+			if(!snapshot.isPreserved(i)){
+				if(copy == null){
+					PackableMemory temp_block = new PackableMemory(blockLength);
+					device.read_block(i, temp_block);
+					copy = temp_block.mem;
+				}
+				snapshot.preserve(i, copy);
+			}
+		}
+	}
+}
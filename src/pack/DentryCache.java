@@ -0,0 +1,160 @@
+package pack;
+
+/**
+ * The DentryCache class keeps in memory the result of looking up the components of paths: for a directory and a name,
+ * the file descriptor of the file with that name in the directory and whether it is a directory, or that there is
+ * no such file (a negative entry). Resolving a path whose components are cached reads no directory block, and
+ * looking up a name that doesn't exist again reads nothing either.
+ *
+ * The cache is set-associative: each directory and name is held by one of the WAYS entries of a set, chosen by its hash,
+ * and replaces the entries of its set in turn. A component is looked up within the path holding it, so a hit doesn't
+ * allocate anything.
+ * The file system keeps the cache up to date as it adds and removes names.
+ */
+public class DentryCache {
+
+	public static final int WAYS = 4; // Entries of each set
+
+	private final int [] parent;		// File descriptor index of the directory of each entry
+	private final String [] name;		// Name of each entry (null if the entry is unused)
+	private final int [] fileDesc;		// File descriptor index of the file of each entry (-1 if there is no such file)
+	private final boolean [] directory;	// Whether the file of each entry is a directory
+	private final int [] nextVictim;	// Entry of each set replaced next (within the set)
+	private long hits;					// Number of lookups found in the cache
+	private long misses;				// Number of lookups not found in the cache
+
+
+	/**
+	 * Class constructor. Creates an empty cache.
+	 * @param capacity		number of entries. Must be a power of two, and at least WAYS.
+	 */
+	public DentryCache(int capacity){
+		nextVictim = new int[capacity / WAYS];
+		parent = new int[capacity];
+		name = new String[capacity];
+		fileDesc = new int[capacity];
+		directory = new boolean[capacity];
+	}
+
+
+	/**
+	 * Finds the entry of a name in a directory, given a path holding the name.
+	 * @param dir		file descriptor index of the directory.
+	 * @param path		path holding the name.
+	 * @param start		position of the first char of the name in the path.
+	 * @param end		position following the last char of the name in the path.
+	 * @return			the entry; -1 if the name is not cached.
+	 */
+	public int find(int dir, String path, int start, int end){
+		int entry = match(set(dir, path, start, end), dir, path, start, end);
+		if(entry == -1){
+			misses++;
+		} else {
+			hits++;
+		}
+		return entry;
+	}
+
+
+	/**
+	 * Caches the result of looking up a name in a directory, replacing the entry it had, if any, or else the next entry
+	 * of its set.
+	 * @param dir			file descriptor index of the directory.
+	 * @param fileName		name of the file.
+	 * @param desc			file descriptor index of the file; -1 if there is no such file.
+	 * @param isDirectory	whether the file is a directory.
+	 * @return				the entry.
+	 */
+	public int put(int dir, String fileName, int desc, boolean isDirectory){
+		int set = set(dir, fileName, 0, fileName.length());
+		int entry = match(set, dir, fileName, 0, fileName.length());
+		if(entry == -1){
+			entry = set * WAYS + nextVictim[set];
+			nextVictim[set] = (nextVictim[set] + 1) % WAYS;
+		}
+		parent[entry] = dir;
+		name[entry] = fileName;
+		fileDesc[entry] = desc;
+		directory[entry] = isDirectory;
+		return entry;
+	}
+
+
+	/**
+	 * Returns the file descriptor index of the file of an entry.
+	 * @param entry		entry of the cache.
+	 * @return			file descriptor index; -1 if there is no such file.
+	 */
+	public int getFileDesc(int entry){
+		return fileDesc[entry];
+	}
+
+
+	/**
+	 * Indicates whether the file of an entry is a directory.
+	 * @param entry		entry of the cache.
+	 * @return			'true' if it is a directory; 'false' otherwise.
+	 */
+	public boolean isDirectory(int entry){
+		return directory[entry];
+	}
+
+
+	/**
+	 * Returns the number of lookups found in the cache.
+	 * @return		number of hits.
+	 */
+	public long getHits(){
+		return hits;
+	}
+
+
+	/**
+	 * Returns the number of lookups not found in the cache.
+	 * @return		number of misses.
+	 */
+	public long getMisses(){
+		return misses;
+	}
+
+
+	/**
+	 * Finds the entry of a name in a directory within its set.
+	 * @param set		set of the name.
+	 * @param dir		file descriptor index of the directory.
+	 * @param path		path holding the name.
+	 * @param start		position of the first char of the name in the path.
+	 * @param end		position following the last char of the name in the path.
+	 * @return			the entry; -1 if the name is not in the set.
+	 */
+	private int match(int set, int dir, String path, int start, int end){
+		for(int entry = set * WAYS; entry<(set + 1) * WAYS; entry++){
+			String cached = name[entry];
+			if(cached != null && parent[entry] == dir && cached.length() == end - start
+					&& cached.regionMatches(0, path, start, end - start)){
+				return entry;
+			}
+		}
+		return -1;
+	}
+
+
+	/**
+	 * Finds the set holding a name in a directory, from the hash of both.
+	 * @param dir		file descriptor index of the directory.
+	 * @param path		path holding the name.
+	 * @param start		position of the first char of the name in the path.
+	 * @param end		position following the last char of the name in the path.
+	 * @return			the set.
+	 */
+	private int set(int dir, String path, int start, int end){
+		int h = dir;
+		for(int i = start; i<end; i++){
+			h = 31 * h + path.charAt(i);
+		}
+		h ^= h >>> 16;
+		h *= 0x85EBCA6B;
+		h ^= h >>> 13;
+		return h & (nextVictim.length - 1);
+	}
+}
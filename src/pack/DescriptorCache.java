@@ -0,0 +1,204 @@
+package pack;
+
+/**
+ * The DescriptorCache class keeps in memory the file descriptors used by the file operations, already decoded, so
+ * finding the length or the extents of a file doesn't read and decode the block of its descriptor every time, and every
+ * open handle of a file shares the same descriptor. A descriptor changed is only marked dirty, and written back to its
+ * block when its file is closed, when the disk is synced, or when it leaves the cache.
+ *
+ * The cache is set-associative: each descriptor is held by one of the WAYS entries of a set, chosen by its index, and
+ * replaces the entries of its set in turn. A descriptor entering the cache gets a new instance, so a descriptor still
+ * held by a file operation is never overwritten by another one.
+ */
+public class DescriptorCache {
+
+	public static final int WAYS = 4; // Entries of each set
+
+	private final BlockCache disk;			// Cache through which the blocks of the descriptors are accessed
+	private final DescriptorTable table;	// Table telling where each descriptor is stored
+	private final int [] index;				// File descriptor index of each entry (-1 if the entry is unused)
+	private final FileDescriptor [] fds;	// Descriptor of each entry
+	private final boolean [] dirty;			// Whether the descriptor of each entry has changed since it was read
+	private int dirtyEntries;				// Number of dirty entries
+	private final int [] nextVictim;		// Entry of each set replaced next (within the set)
+	private final PackableMemory block;		// Block reused to read/write the blocks of the descriptors
+	private long hits;						// Number of descriptors found in the cache
+	private long misses;					// Number of descriptors read from their block
+
+
+	/**
+	 * Class constructor. Creates an empty cache.
+	 * @param disk			cache through which the blocks of the descriptors are accessed.
+	 * @param table			descriptor table of the disk, which tells where the descriptors are.
+	 * @param capacity		number of entries. Must be a power of two, and at least WAYS.
+	 */
+	public DescriptorCache(BlockCache disk, DescriptorTable table, int capacity){
+		this.disk = disk;
+		this.table = table;
+		index = new int[capacity];
+		fds = new FileDescriptor[capacity];
+		dirty = new boolean[capacity];
+		nextVictim = new int[capacity / WAYS];
+		block = new PackableMemory(table.getBlockLength());
+		for(int i = 0; i<capacity; i++){
+			index[i] = -1;
+		}
+	}
+
+
+	/**
+	 * Returns a file descriptor, reading it from its block if it is not in the cache.
+	 * The descriptor returned is the one held by the cache: changes to it must be marked with put().
+	 * @param fileDescIndex		file descriptor index.
+	 * @return					the descriptor.
+	 */
+	public FileDescriptor get(int fileDescIndex){
+		int entry = find(fileDescIndex);
+		if(entry != -1){
+			hits++;
+			return fds[entry];
+		}
+		misses++;
+		entry = replace(fileDescIndex);
+		disk.read_block(table.blockOf(fileDescIndex), block);
+		fds[entry].read(block, table.offsetOf(fileDescIndex));
+		return fds[entry];
+	}
+
+
+	/**
+	 * Stores a file descriptor in the cache, marking it dirty. A descriptor which is not the one held by the cache
+	 * (e.g. one reused to build new descriptors) is copied into it.
+	 * @param fileDescIndex		file descriptor index.
+	 * @param fd				the descriptor.
+	 */
+	public void put(int fileDescIndex, FileDescriptor fd){
+		int entry = find(fileDescIndex);
+		if(entry == -1){
+			entry = replace(fileDescIndex);
+		}
+		if(fds[entry] != fd){
+			fds[entry].copyFrom(fd);
+		}
+		if(!dirty[entry]){
+			dirty[entry] = true;
+			dirtyEntries++;
+		}
+	}
+
+
+	/**
+	 * Writes a file descriptor back to its block, if it is dirty.
+	 * @param fileDescIndex		file descriptor index.
+	 */
+	public void writeBack(int fileDescIndex){
+		int entry = find(fileDescIndex);
+		if(entry != -1 && dirty[entry]){
+			writeEntry(entry);
+		}
+	}
+
+
+	/**
+	 * Writes every dirty file descriptor back to its block.
+	 */
+	public void writeBack(){
+		for(int entry = 0; entry<index.length; entry++){
+			if(dirty[entry]){
+				writeEntry(entry);
+			}
+		}
+	}
+
+
+	/**
+	 * Drops the descriptors from a given index on, without writing them back, once their blocks have left the descriptor
+	 * table.
+	 * @param first		file descriptor index of the first descriptor dropped.
+	 */
+	public void invalidate(int first){
+		for(int entry = 0; entry<index.length; entry++){
+			if(index[entry] >= first){
+				if(dirty[entry]){
+					dirty[entry] = false;
+					dirtyEntries--;
+				}
+				index[entry] = -1;
+			}
+		}
+	}
+
+
+	/**
+	 * Returns the number of dirty descriptors, which is at least the number of blocks they are written back to.
+	 * @return		number of dirty descriptors.
+	 */
+	public int getDirtyEntries(){
+		return dirtyEntries;
+	}
+
+
+	/**
+	 * Returns the number of descriptors found in the cache.
+	 * @return		number of hits.
+	 */
+	public long getHits(){
+		return hits;
+	}
+
+
+	/**
+	 * Returns the number of descriptors read from their block.
+	 * @return		number of misses.
+	 */
+	public long getMisses(){
+		return misses;
+	}
+
+
+	/**
+	 * Finds the entry of a file descriptor.
+	 * @param fileDescIndex		file descriptor index.
+	 * @return					the entry; -1 if the descriptor is not in the cache.
+	 */
+	private int find(int fileDescIndex){
+		int first = (fileDescIndex & (nextVictim.length - 1)) * WAYS;
+		for(int entry = first; entry<first + WAYS; entry++){
+			if(index[entry] == fileDescIndex){
+				return entry;
+			}
+		}
+		return -1;
+	}
+
+
+	/**
+	 * Takes an entry of the set of a file descriptor for it, writing back the descriptor it held if it is dirty.
+	 * @param fileDescIndex		file descriptor index.
+	 * @return					the entry, holding a new descriptor.
+	 */
+	private int replace(int fileDescIndex){
+		int set = fileDescIndex & (nextVictim.length - 1);
+		int entry = set * WAYS + nextVictim[set];
+		nextVictim[set] = (nextVictim[set] + 1) % WAYS;
+		if(dirty[entry]){
+			writeEntry(entry);
+		}
+		index[entry] = fileDescIndex;
+		fds[entry] = new FileDescriptor();
+		return entry;
+	}
+
+
+	/**
+	 * Writes the descriptor of an entry back to its block, as a metadata block, and marks it clean.
+	 * @param entry		entry of the cache.
+	 */
+	private void writeEntry(int entry){
+		disk.read_block(table.blockOf(index[entry]), block);
+		fds[entry].write(block, table.offsetOf(index[entry]));
+		disk.write_metadata_block(table.blockOf(index[entry]), block);
+		dirty[entry] = false;
+		dirtyEntries--;
+	}
+}
@@ -0,0 +1,372 @@
+package pack;
+
+import java.util.Arrays;
+import java.util.BitSet;
+
+/**
+ * The DescriptorTable class finds where each file descriptor is stored, and keeps in memory which descriptors are free,
+ * as an array of longs, so a free descriptor is found without reading the descriptor blocks. Free descriptors are
+ * allocated next-fit, like blocks.
+ *
+ * The table starts with the descriptor blocks laid out by the superblock, and grows with extension blocks taken from
+ * the data blocks when every descriptor is used, every slot of which holds a descriptor. The extension blocks are listed
+ * by index blocks, also taken from the data blocks and chained: the superblock holds the first one, and each one holds
+ * the next one (0 for the last one), its number of extension blocks and the extension blocks themselves, in order.
+ * The extension blocks at the end of the table whose descriptors are all free are given back to the data blocks, with
+ * the index blocks left empty.
+ * The map of free descriptors is rebuilt from the lengths of the descriptors when a disk is mounted, so it always
+ * agrees with them, even after a crash.
+ */
+public class DescriptorTable {
+
+	private static final int INDEX_HEADER = 8; // Bytes of an index block before its extension blocks (next and count)
+
+	private final Superblock superblock; // Superblock of the disk, which holds the first index block
+	private final int descPerBlock; // Number of file descriptors of each block
+	private final int perIndex; // Number of extension blocks of each index block
+	private int [] extensions = new int[0]; // Block of each extension block, in order
+	private int numExtensions; // Number of extension blocks
+	private int [] indexes = new int[0]; // Block of each index block, in the order of the chain
+	private int numIndexes; // Number of index blocks
+	private long [] used = new long[0]; // Bit of each descriptor, set if the descriptor is used
+	private int numDescriptors; // Number of file descriptors
+	private int freeDescriptors; // Number of free file descriptors
+	private int cursor; // Word where the next search for a free descriptor starts
+	private final PackableMemory temp_block; // Block reused to read/write the descriptor blocks
+	private final FileDescriptor temp_desc = new FileDescriptor(); // Descriptor reused to write empty descriptors
+
+
+	/**
+	 * Class constructor. Creates the table of a new disk, with every descriptor laid out by the superblock free,
+	 * and no extension blocks.
+	 * @param superblock	superblock describing the geometry and layout of the disk.
+	 */
+	public DescriptorTable(Superblock superblock){
+		this.superblock = superblock;
+		this.descPerBlock = superblock.blockLength / FileSystem.FD_LENGTH;
+		this.perIndex = (superblock.blockLength - INDEX_HEADER) / 4;
+		temp_block = new PackableMemory(superblock.blockLength);
+		resize(superblock.numDescriptors);
+	}
+
+
+	/**
+	 * Reads the table of a disk, following the chain of its index blocks, and finds its free descriptors.
+	 * @param device		disk holding the descriptors.
+	 * @param superblock	superblock describing the geometry and layout of the disk.
+	 * @return				the table of the disk.
+	 */
+	public static DescriptorTable read(BlockDevice device, Superblock superblock){
+		DescriptorTable table = new DescriptorTable(superblock);
+
+		// A block out of the data blocks, or a chain longer than the disk, ends the chain
+		int block = superblock.descIndex;
+		while(table.isDataBlock(block) && table.numIndexes < superblock.numBlocks){
+			table.indexes = append(table.indexes, table.numIndexes++, block);
+			device.read_block(block, table.temp_block);
+			block = table.temp_block.unpack(0);
+			int count = Math.min(Math.max(table.temp_block.unpack(4), 0), table.perIndex);
+			for(int k = 0; k<count && table.isDataBlock(table.temp_block.unpack(INDEX_HEADER + 4*k)); k++){
+				table.addExtension(table.temp_block.unpack(INDEX_HEADER + 4*k));
+			}
+		}
+
+		// A descriptor is free if its length is negative
+		int current = -1;
+		for(int i = 0; i<table.numDescriptors; i++){
+			if(table.blockOf(i) != current){
+				current = table.blockOf(i);
+				device.read_block(current, table.temp_block);
+			}
+			if(table.temp_block.unpack(table.offsetOf(i)) >= 0){
+				table.set(i, true);
+			}
+		}
+		return table;
+	}
+
+
+	/**
+	 * Allocates a free descriptor, marking it as used.
+	 * @return		the file descriptor index; -1 if every descriptor is used.
+	 */
+	public int allocate(){
+		if(freeDescriptors == 0){
+			return -1;
+		}
+
+		// There is a free descriptor, so the search ends before wrapping around twice
+		while(used[cursor] == -1L){
+			cursor = cursor + 1 == used.length ? 0 : cursor + 1;
+		}
+		int index = cursor*64 + Long.numberOfTrailingZeros(~used[cursor]);
+		set(index, true);
+		return index;
+	}
+
+
+	/**
+	 * Adds an extension block to the table, with every descriptor free, listing it in the last index block, or in a new
+	 * index block linked at the end of the chain if the last one is full.
+	 * The new blocks and the links are written into the cache of the disk, as metadata blocks.
+	 * @param cache			cache of the disk.
+	 * @param freeSpace		map of the free blocks of the disk, from which the extension and index blocks are taken.
+	 * @return				boolean status: 'true' for success; 'false' if the disk is full.
+	 */
+	public boolean grow(BlockCache cache, FreeSpaceMap freeSpace){
+		int block = freeSpace.allocate();
+		if(block == -1){
+			return false;
+		}
+		int count = numExtensions - (numIndexes - 1) * perIndex;
+		int index = -1;
+		if(numIndexes == 0 || count == perIndex){
+			index = freeSpace.allocate();
+			if(index == -1){
+				freeSpace.free(block, 1);
+				return false;
+			}
+		}
+
+		// Write the new block, with empty descriptors
+		temp_block.clear();
+		temp_desc.reset(-1);
+		for(int j = 0; j<superblock.blockLength; j = j + FileSystem.FD_LENGTH){
+			temp_desc.write(temp_block, j);
+		}
+		cache.write_metadata_block(block, temp_block);
+
+		// List it in the last index block, or in a new one linked at the end of the chain
+		if(index == -1){
+			cache.read_block(indexes[numIndexes - 1], temp_block);
+			temp_block.pack(count + 1, 4);
+			temp_block.pack(block, INDEX_HEADER + 4*count);
+			cache.write_metadata_block(indexes[numIndexes - 1], temp_block);
+		} else {
+			temp_block.clear();
+			temp_block.pack(1, 4);
+			temp_block.pack(block, INDEX_HEADER);
+			cache.write_metadata_block(index, temp_block);
+			link(cache, index);
+			indexes = append(indexes, numIndexes++, index);
+		}
+		addExtension(block);
+		return true;
+	}
+
+
+	/**
+	 * Gives the extension blocks at the end of the table whose descriptors are all free back to the data blocks,
+	 * together with the index blocks left empty, unlinking them. The blocks changed are written into the cache of
+	 * the disk, as metadata blocks. The descriptors of the blocks given back must not be used afterwards (e.g. by a
+	 * cache of descriptors).
+	 * @param cache			cache of the disk.
+	 * @param freeSpace		map of the free blocks of the disk, to which the blocks are given back.
+	 * @return				boolean status: 'true' if the table shrank; 'false' otherwise.
+	 */
+	public boolean shrink(BlockCache cache, FreeSpaceMap freeSpace){
+		int n = numExtensions;
+		while(n > 0 && isFree(superblock.numDescriptors + (n - 1) * descPerBlock, descPerBlock)){
+			n--;
+			freeSpace.free(extensions[n], 1);
+		}
+		if(n == numExtensions){
+			return false;
+		}
+
+		// Free the index blocks left empty, and update the last one left
+		int last = (n + perIndex - 1) / perIndex;
+		for(int i = last; i<numIndexes; i++){
+			freeSpace.free(indexes[i], 1);
+		}
+		if(last < numIndexes){
+			numIndexes = last;
+			link(cache, 0);
+		}
+		if(numIndexes > 0){
+			cache.read_block(indexes[numIndexes - 1], temp_block);
+			temp_block.pack(n - (numIndexes - 1) * perIndex, 4);
+			cache.write_metadata_block(indexes[numIndexes - 1], temp_block);
+		}
+		numExtensions = n;
+		resize(superblock.numDescriptors + n * descPerBlock);
+		return true;
+	}
+
+
+	/**
+	 * Marks a descriptor as used or free.
+	 * @param index		file descriptor index.
+	 * @param isUsed	'true' to mark the descriptor as used; 'false' to mark it as free.
+	 */
+	public void set(int index, boolean isUsed){
+		long mask = 1L << (index % 64);
+		long word = used[index / 64];
+		if(((word & mask) != 0) == isUsed){
+			return;
+		}
+
+		used[index / 64] = word ^ mask;
+		freeDescriptors += isUsed ? -1 : 1;
+	}
+
+
+	/**
+	 * Finds the block containing a file descriptor, given its index.
+	 * @param index		file descriptor index.
+	 * @return			block number of the block containing the file descriptor.
+	 */
+	public int blockOf(int index){
+		if(index < superblock.numDescriptors){
+			return superblock.descStart + index / descPerBlock;
+		}
+		return extensions[(index - superblock.numDescriptors) / descPerBlock];
+	}
+
+
+	/**
+	 * Finds the offset of a file descriptor within its block, given its index.
+	 * @param index		file descriptor index.
+	 * @return			offset (in bytes) of the file descriptor within the block containing it.
+	 */
+	public int offsetOf(int index){
+		if(index < superblock.numDescriptors){
+			return index % descPerBlock * FileSystem.FD_LENGTH;
+		}
+		return (index - superblock.numDescriptors) % descPerBlock * FileSystem.FD_LENGTH;
+	}
+
+
+	/**
+	 * Marks the extension and index blocks of the table, which are metadata blocks.
+	 * @param metadata		blocks of the disk, where the blocks of the table are set.
+	 */
+	public void markBlocks(BitSet metadata){
+		for(int i = 0; i<numExtensions; i++){
+			metadata.set(extensions[i]);
+		}
+		for(int i = 0; i<numIndexes; i++){
+			metadata.set(indexes[i]);
+		}
+	}
+
+
+	/**
+	 * Returns the number of file descriptors of the table.
+	 * @return		number of file descriptors.
+	 */
+	public int getNumDescriptors(){
+		return numDescriptors;
+	}
+
+
+	/**
+	 * Returns the number of free file descriptors of the table.
+	 * @return		number of free file descriptors.
+	 */
+	public int getFreeDescriptors(){
+		return freeDescriptors;
+	}
+
+
+	/**
+	 * Returns the block length of the disk.
+	 * @return		block length (in bytes).
+	 */
+	public int getBlockLength(){
+		return superblock.blockLength;
+	}
+
+
+	/**
+	 * Adds an extension block at the end of the table, with every descriptor free.
+	 * @param block		block number of the extension block.
+	 */
+	private void addExtension(int block){
+		extensions = append(extensions, numExtensions++, block);
+		resize(numDescriptors + descPerBlock);
+	}
+
+
+	/**
+	 * Links an index block at the end of the chain: from the superblock if it is the first one (which brings
+	 * the superblock up to the current version), or from the last index block.
+	 * @param cache		cache of the disk.
+	 * @param index		block number of the index block; 0 to end the chain at the last index block.
+	 */
+	private void link(BlockCache cache, int index){
+		if(numIndexes == 0){
+			superblock.descIndex = index;
+			superblock.version = Superblock.VERSION;
+			cache.read_block(0, temp_block);
+			superblock.write(temp_block);
+			cache.write_metadata_block(0, temp_block);
+		} else {
+			cache.read_block(indexes[numIndexes - 1], temp_block);
+			temp_block.pack(index, 0);
+			cache.write_metadata_block(indexes[numIndexes - 1], temp_block);
+		}
+	}
+
+
+	/**
+	 * Indicates whether a run of descriptors are all free.
+	 * @param first		file descriptor index of the first descriptor.
+	 * @param n			number of descriptors.
+	 * @return			'true' if every descriptor of the run is free; 'false' otherwise.
+	 */
+	private boolean isFree(int first, int n){
+		for(int i = first; i<first + n; i++){
+			if((used[i / 64] & 1L << (i % 64)) != 0){
+				return false;
+			}
+		}
+		return true;
+	}
+
+
+	/**
+	 * Indicates whether a block is a data block of the disk, where extension and index blocks are taken from.
+	 * @param block		block number.
+	 * @return			'true' if the block is a data block; 'false' otherwise.
+	 */
+	private boolean isDataBlock(int block){
+		return block >= superblock.dataStart && block < superblock.numBlocks;
+	}
+
+
+	/**
+	 * Grows or shrinks the map to a number of descriptors, the new ones free. The descriptors removed must be free.
+	 * The bits after the last descriptor are never allocated.
+	 * @param n		number of descriptors.
+	 */
+	private void resize(int n){
+		used = Arrays.copyOf(used, (n + 63) / 64);
+		for(int i = Math.min(n, numDescriptors); i<used.length * 64; i++){
+			if(i < n){
+				used[i / 64] &= ~(1L << (i % 64));
+			} else {
+				used[i / 64] |= 1L << (i % 64);
+			}
+		}
+		freeDescriptors += n - numDescriptors;
+		numDescriptors = n;
+		cursor = cursor % used.length;
+	}
+
+
+	/**
+	 * Stores a block number at a position of an array of block numbers, growing the array if it is full.
+	 * @param blocks	array of block numbers.
+	 * @param i			position.
+	 * @param block		block number.
+	 * @return			the array, or a larger copy of it.
+	 */
+	private static int [] append(int [] blocks, int i, int block){
+		if(i == blocks.length){
+			blocks = Arrays.copyOf(blocks, Math.max(4, 2 * blocks.length));
+		}
+		blocks[i] = block;
+		return blocks;
+	}
+}
@@ -0,0 +1,74 @@
+package pack;
+
+/**
+ * The DirEntry class holds an entry of a directory listing: the name of a file, its file descriptor index,
+ * its length and whether it is a directory.
+ */
+public class DirEntry {
+
+	private final String name;			// Name of the file
+	private final int fileDesc;			// File descriptor index of the file
+	private final int length;			// Length of the file (in bytes)
+	private final boolean directory;	// Whether the file is a directory
+
+
+	/**
+	 * Class constructor.
+	 * @param name			name of the file.
+	 * @param fileDesc		file descriptor index of the file.
+	 * @param length		length of the file (in bytes).
+	 * @param directory		whether the file is a directory.
+	 */
+	public DirEntry(String name, int fileDesc, int length, boolean directory){
+		this.name = name;
+		this.fileDesc = fileDesc;
+		this.length = length;
+		this.directory = directory;
+	}
+
+
+	/**
+	 * Returns the name of the file.
+	 * @return		name of the file.
+	 */
+	public String getName(){
+		return name;
+	}
+
+
+	/**
+	 * Returns the file descriptor index of the file.
+	 * @return		file descriptor index.
+	 */
+	public int getFileDesc(){
+		return fileDesc;
+	}
+
+
+	/**
+	 * Returns the length of the file. The length of a directory is the length of its blocks.
+	 * @return		length of the file (in bytes).
+	 */
+	public int getLength(){
+		return length;
+	}
+
+
+	/**
+	 * Indicates whether the file is a directory.
+	 * @return		'true' if it is a directory; 'false' otherwise.
+	 */
+	public boolean isDirectory(){
+		return directory;
+	}
+
+
+	/**
+	 * Returns the name of the file, followed by '/' if it is a directory.
+	 * @return		String representing the entry.
+	 */
+	@Override
+	public String toString(){
+		return directory ? name + "/" : name;
+	}
+}
@@ -0,0 +1,22 @@
+package pack;
+
+import java.nio.ByteBuffer;
+
+/**
+ * The DirectDisk class implements a disk that lives in off-heap memory, using direct buffers,
+ * so its blocks are not moved around nor scanned by the garbage collector.
+ */
+public class DirectDisk extends ByteBufferDisk {
+	
+	/**
+	 * Class constructor. Creates an empty disk with the given geometry.
+	 * @param numBlocks		number of blocks of the disk.
+	 * @param blockLength	block length (in bytes).
+	 */
+	public DirectDisk(int numBlocks, int blockLength){
+		super(numBlocks, blockLength);
+		for(int i = 0; i<regions.length; i++){
+			regions[i] = ByteBuffer.allocateDirect(regionSize(i));
+		}
+	}
+}
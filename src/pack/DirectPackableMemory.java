@@ -0,0 +1,118 @@
+package pack;
+
+import java.nio.ByteBuffer;
+
+/**
+ * The DirectPackableMemory class implements a PackableMemory whose bytes live off the Java heap, in a direct buffer,
+ * so large amounts of blocks (the frames of the cache, the buffers of the OFT) don't add to the work of the garbage collector.
+ * It has the same pack/unpack methods and bulk copy methods as a PackableMemory, but its mem array is null: the bytes
+ * can only be reached through the methods. Ints, longs and shorts are stored big-endian, as in a PackableMemory.
+ */
+public class DirectPackableMemory extends PackableMemory {
+	
+	private final ByteBuffer buffer; // Direct buffer holding the bytes (big-endian)
+	
+	
+	/**
+	 * Class constructor. Allocates the given number of bytes off-heap, all set to 0.
+	 * @param size		number of bytes.
+	 */
+	public DirectPackableMemory(int size){
+		super(null, size);
+		buffer = ByteBuffer.allocateDirect(size);
+	}
+	
+	
+	@Override
+	public boolean isDirect(){
+		return true;
+	}
+	
+	
+	@Override
+	void pack(int val, int loc){
+		buffer.putInt(loc, val);
+	}
+	
+	
+	@Override
+	int unpack(int loc){
+		return buffer.getInt(loc);
+	}
+	
+	
+	@Override
+	void packLong(long val, int loc){
+		buffer.putLong(loc, val);
+	}
+	
+	
+	@Override
+	long unpackLong(int loc){
+		return buffer.getLong(loc);
+	}
+	
+	
+	@Override
+	void packShort(short val, int loc){
+		buffer.putShort(loc, val);
+	}
+	
+	
+	@Override
+	short unpackShort(int loc){
+		return buffer.getShort(loc);
+	}
+	
+	
+	@Override
+	public byte get(int loc){
+		return buffer.get(loc);
+	}
+	
+	
+	@Override
+	public void put(byte val, int loc){
+		buffer.put(loc, val);
+	}
+	
+	
+	@Override
+	public void copyTo(int loc, byte[] dst, int off, int len){
+		buffer.get(loc, dst, off, len);
+	}
+	
+	
+	@Override
+	public void copyFrom(byte[] src, int off, int loc, int len){
+		buffer.put(loc, src, off, len);
+	}
+	
+	
+	@Override
+	public void copyTo(int loc, PackableMemory dst, int dstLoc, int len){
+		if(dst.isDirect()){
+			((DirectPackableMemory) dst).buffer.put(dstLoc, buffer, loc, len);
+		} else {
+			buffer.get(loc, dst.mem, dstLoc, len);
+		}
+	}
+	
+	
+	@Override
+	public ByteBuffer view(int loc, int len){
+		return buffer.slice(loc, len);
+	}
+	
+	
+	@Override
+	public void clear(){
+		int i = 0;
+		for(; i + 8 <= size; i = i + 8){
+			buffer.putLong(i, 0L);
+		}
+		for(; i<size; i++){
+			buffer.put(i, (byte) 0);
+		}
+	}
+}
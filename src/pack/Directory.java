@@ -0,0 +1,603 @@
+package pack;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * The Directory class implements a directory stored in a file of the LDisk as an extendible hash table, so finding,
+ * adding or removing a name reads and writes a single block of the directory (two when a block is split), however
+ * many files the directory holds.
+ *
+ * Every block of the directory is a bucket holding the entries whose names hash to its prefix, that is, whose hash
+ * has the prefix as its lowest 'depth' bits. A bucket starts with its depth, its prefix and the number of bytes used
+ * by its entries, followed by the entries, packed one after another. Each entry holds the file descriptor index of
+ * the file, the length of its name and its name, one byte per char:
+ *
+ *   | depth (4) | prefix (4) | used (4) | fd (4) | length (1) | name... | fd (4) | length (1) | name... | ...
+ *
+ * The table from the hash prefixes to the buckets is kept in memory, and built when the directory is loaded from
+ * the headers of its buckets. When an entry doesn't fit in its bucket, the bucket is split into itself and a new block
+ * appended to the directory, one bit deeper, doubling the table if the bucket was as deep as the table. Buckets left
+ * empty by removals are kept, and reused by the names hashing to them. An empty directory has no blocks at all.
+ *
+ * Names with the same hash are never told apart by splitting their bucket, so a bucket is only split if the entries
+ * of the hash of the new one fit in a block once the bucket is as deep as it can be. Otherwise the entry is added to
+ * the bucket of a second hash of its name, computed in a different way, and the bucket of its first hash is marked as
+ * overflowed (in the highest bit of its depth), so its names are also looked for in the bucket of their second hash.
+ * The blocks appended by an insert which fails are merged back into the buckets they were split from, and given back.
+ */
+public class Directory {
+
+	public static final int HEADER_LENGTH = 12; // Bytes of the header of a bucket
+	public static final int ENTRY_HEADER_LENGTH = 5; // Bytes of an entry before its name
+	public static final int MAX_NAME_LENGTH = 255; // Chars, if the blocks hold them
+	private static final int MAX_DEPTH = 20; // Bits of the hash told apart by the table
+	private static final int OVERFLOW = 1 << 31; // Bit set in the depth of a bucket some of whose names took their second hash
+	private static final int SALT = 0x811C9DC5; // Start of the second hash (the offset basis of FNV-1a)
+	private static final int FNV_PRIME = 0x01000193; // Multiplier of the second hash
+	public static final long START = 0; // Position of the listing of its first entry
+	public static final long END = 1L << 32; // Position of the listing past its last entry
+
+	private final FileSystem fs;		// File system the directory belongs to, which grows its file
+	private final BlockCache disk;		// Cache through which the blocks of the directory are accessed
+	private final int fileDesc;			// File descriptor index of the directory
+	private final int blockLength;		// Block length (in bytes)
+	private int [] blocks;				// Block of the disk of each block of the directory
+	private int numBlocks;				// Number of blocks of the directory
+	private int depth;					// Bits of the hash indexing the table
+	private int [] table;				// Block of the directory of each hash prefix
+	private int size;					// Number of entries
+	private int bucketBlock;			// Block of the directory of the bucket of the last name located
+	private final PackableMemory bucket;	// Block reused to read/write the buckets
+	private final PackableMemory sibling;	// Block reused to build the bucket split from another one
+
+
+	/**
+	 * Class constructor. Loads a directory, reading the header of each of its blocks to build the table.
+	 * @param fs			file system the directory belongs to.
+	 * @param disk			cache through which the blocks of the directory are accessed.
+	 * @param fileDesc		file descriptor index of the directory.
+	 * @param blocks		block of the disk of each block of the directory.
+	 */
+	public Directory(FileSystem fs, BlockCache disk, int fileDesc, int [] blocks){
+		this.fs = fs;
+		this.disk = disk;
+		this.fileDesc = fileDesc;
+		this.blockLength = disk.getBlockLength();
+		this.blocks = blocks;
+		this.numBlocks = blocks.length;
+		bucket = new PackableMemory(blockLength);
+		sibling = new PackableMemory(blockLength);
+
+		// The table is as deep as the deepest bucket, and each bucket fills the entries of its prefix
+		int [] bucketDepth = new int[numBlocks];
+		int [] bucketPrefix = new int[numBlocks];
+		for(int i = 0; i<numBlocks; i++){
+			disk.read_block(blocks[i], bucket);
+			bucketDepth[i] = bucketDepth(bucket);
+			bucketPrefix[i] = bucket.unpack(4);
+			depth = Math.max(depth, bucketDepth[i]);
+			size += countEntries(bucket);
+		}
+		table = new int[1 << depth];
+		for(int i = 0; i<numBlocks; i++){
+			for(int j = bucketPrefix[i]; j<table.length; j = j + (1 << bucketDepth[i])){
+				table[j] = i;
+			}
+		}
+	}
+
+
+	/**
+	 * Indicates whether a name can be held by a directory whose blocks have the given length: it must have
+	 * at least one char, chars of one byte other than 0, and fit in a block of the directory.
+	 * @param name			name of the file.
+	 * @param blockLength	block length (in bytes).
+	 * @return				'true' if the name is valid; 'false' otherwise.
+	 */
+	public static boolean isValidName(String name, int blockLength){
+		if(name.isEmpty() || name.length() > maxNameLength(blockLength)){
+			return false;
+		}
+		for(int i = 0; i<name.length(); i++){
+			char c = name.charAt(i);
+			if(c == 0 || c > 0xFF){
+				return false;
+			}
+		}
+		return true;
+	}
+
+
+	/**
+	 * Returns the maximum length of the names held by a directory whose blocks have the given length.
+	 * @param blockLength	block length (in bytes).
+	 * @return				maximum number of chars of a name.
+	 */
+	public static int maxNameLength(int blockLength){
+		return Math.min(MAX_NAME_LENGTH, blockLength - HEADER_LENGTH - ENTRY_HEADER_LENGTH);
+	}
+
+
+	/**
+	 * Finds the file descriptor of a file, given its name, reading only the bucket of the name.
+	 * @param name		name of the file.
+	 * @return			the file descriptor index; -1 if there is no such file.
+	 */
+	public int lookup(String name){
+		if(numBlocks == 0){
+			return -1;
+		}
+		int offset = locate(name);
+		return offset == -1 ? -1 : bucket.unpack(offset);
+	}
+
+
+	/**
+	 * Adds a file to the directory. The name must be valid and not be in the directory yet.
+	 * The bucket of the name is split, as many times as needed, if the entry doesn't fit in it. The entry takes the bucket
+	 * of the second hash of the name if splitting would never make room for it.
+	 * @param name			name of the file.
+	 * @param fileDesc		file descriptor index of the file.
+	 * @return				'true' for success; 'false' if the directory cannot grow (e.g. the disk is full), or if neither
+	 * 						bucket of the name can make room for it.
+	 */
+	public boolean insert(String name, int fileDesc){
+		// The first entry of an empty directory takes a block holding every prefix
+		if(numBlocks == 0){
+			if(!addBlock()){
+				return false;
+			}
+			bucket.clear();
+			disk.write_metadata_block(blocks[0], bucket);
+			table = new int[] {0};
+			depth = 0;
+		}
+
+		int entryLength = ENTRY_HEADER_LENGTH + name.length();
+		int hash = hash(name);
+		boolean overflow = !canHold(hash, entryLength);
+		if(overflow){
+			hash = secondHash(name);
+			if(!canHold(hash, entryLength)){
+				return false;
+			}
+		}
+		int count = numBlocks;
+		while(true){
+			int block = table[hash & (table.length - 1)];
+			disk.read_block(blocks[block], bucket);
+			int used = bucket.unpack(8);
+			if(HEADER_LENGTH + used + entryLength <= blockLength){
+				int offset = HEADER_LENGTH + used;
+				bucket.pack(fileDesc, offset);
+				bucket.mem[offset + 4] = (byte) name.length();
+				for(int i = 0; i<name.length(); i++){
+					bucket.mem[offset + ENTRY_HEADER_LENGTH + i] = (byte) name.charAt(i);
+				}
+				bucket.pack(used + entryLength, 8);
+				disk.write_metadata_block(blocks[block], bucket);
+				size++;
+				if(overflow){
+					markOverflow(hash(name));
+				}
+				return true;
+			}
+			if(!split(block)){
+				truncate(count);
+				return false;
+			}
+		}
+	}
+
+
+	/**
+	 * Removes a file from the directory, given its name. The entries following it in its bucket are moved back.
+	 * @param name		name of the file.
+	 * @return			the file descriptor index the file had; -1 if there is no such file.
+	 */
+	public int remove(String name){
+		if(numBlocks == 0){
+			return -1;
+		}
+		int offset = locate(name);
+		if(offset == -1){
+			return -1;
+		}
+		int block = bucketBlock;
+		int removed = bucket.unpack(offset);
+		int end = HEADER_LENGTH + bucket.unpack(8);
+		int entryLength = ENTRY_HEADER_LENGTH + (bucket.mem[offset + 4] & 0xFF);
+		System.arraycopy(bucket.mem, offset + entryLength, bucket.mem, offset, end - offset - entryLength);
+		Arrays.fill(bucket.mem, end - entryLength, end, (byte) 0);
+		bucket.pack(end - entryLength - HEADER_LENGTH, 8);
+		disk.write_metadata_block(blocks[block], bucket);
+		size--;
+		return removed;
+	}
+
+
+	/**
+	 * Reads the entries of the directory from a position of its listing on. The entries are listed in the order of the
+	 * hashes of their names with their bits reversed, where the entries of each bucket follow those of the buckets
+	 * before it: a position is a reversed hash, and the entries of a bucket are the ones between two positions.
+	 * So a position is still valid after entries are added or removed, and buckets split.
+	 * The entries whose names have the same hash are always read together, even past the maximum number of entries.
+	 * @param cursor	position of the first entry to read (START for the first entry).
+	 * @param max		maximum number of entries to read.
+	 * @param names		list where the names of the entries are added.
+	 * @param descs		list where the file descriptor indexes of the entries are added.
+	 * @param keys		list where the positions of the entries are added.
+	 * @return			position following the last entry read; END if there are no entries left.
+	 */
+	public long list(long cursor, int max, List<String> names, List<Integer> descs, List<Long> keys){
+		int read = 0;
+		while(cursor < END && numBlocks > 0){
+			// Read the bucket holding the position, and sort its entries by position
+			int hash = Integer.reverse((int) cursor);
+			disk.read_block(blocks[table[hash & (table.length - 1)]], bucket);
+			int bucketDepth = bucketDepth(bucket);
+			long bucketEnd = (Integer.toUnsignedLong(Integer.reverse(bucket.unpack(4))) | ((1L << (32 - bucketDepth)) - 1)) + 1;
+			int end = HEADER_LENGTH + bucket.unpack(8);
+			long [] entries = new long[countEntries(bucket)];
+			int count = 0;
+			for(int offset = HEADER_LENGTH; offset<end; offset = offset + ENTRY_HEADER_LENGTH + (bucket.mem[offset + 4] & 0xFF)){
+				entries[count++] = Integer.toUnsignedLong(Integer.reverse(placedHash(bucket, offset))) << 31 | offset;
+			}
+			Arrays.sort(entries);
+			
+			for(int i = 0; i<count; i++){
+				long key = entries[i] >>> 31;
+				if(key < cursor){
+					continue;
+				}
+				if(read >= max && key != keys.get(keys.size() - 1)){
+					return key;
+				}
+				int offset = (int) (entries[i] & Integer.MAX_VALUE);
+				int length = bucket.mem[offset + 4] & 0xFF;
+				char [] name = new char[length];
+				for(int j = 0; j<length; j++){
+					name[j] = (char) (bucket.mem[offset + ENTRY_HEADER_LENGTH + j] & 0xFF);
+				}
+				names.add(new String(name));
+				descs.add(bucket.unpack(offset));
+				keys.add(key);
+				read++;
+			}
+			cursor = bucketEnd;
+		}
+		return END;
+	}
+
+
+	/**
+	 * Returns the number of files of the directory.
+	 * @return		number of files.
+	 */
+	public int size(){
+		return size;
+	}
+
+
+	/**
+	 * Returns the file descriptor index of the directory.
+	 * @return		file descriptor index.
+	 */
+	public int getFileDesc(){
+		return fileDesc;
+	}
+
+
+	/**
+	 * Splits a full bucket into itself and a new block appended to the directory, one bit deeper: the entries whose hash
+	 * has the new bit set move to the new block. The table is doubled first if the bucket is as deep as the table.
+	 * The new bucket is marked as overflowed if the bucket is. Leaves the bucket in the block reused to read buckets.
+	 * @param block		block of the directory of the bucket, already read.
+	 * @return			'true' for success; 'false' if the bucket is as deep as it can be or the directory cannot grow.
+	 */
+	private boolean split(int block){
+		int bucketDepth = bucketDepth(bucket);
+		int overflow = bucket.unpack(0) & OVERFLOW;
+		int prefix = bucket.unpack(4);
+		if(bucketDepth == MAX_DEPTH || !addBlock()){
+			return false;
+		}
+		int newBlock = numBlocks - 1;
+		if(bucketDepth == depth){
+			int [] newTable = new int[table.length * 2];
+			System.arraycopy(table, 0, newTable, 0, table.length);
+			System.arraycopy(table, 0, newTable, table.length, table.length);
+			table = newTable;
+			depth++;
+		}
+
+		// Move the entries with the new bit set to the new bucket, and pack the rest at the beginning of the old one
+		int bit = 1 << bucketDepth;
+		sibling.clear();
+		sibling.pack((bucketDepth + 1) | overflow, 0);
+		sibling.pack(prefix | bit, 4);
+		int end = HEADER_LENGTH + bucket.unpack(8);
+		int kept = HEADER_LENGTH;
+		int moved = HEADER_LENGTH;
+		for(int offset = HEADER_LENGTH; offset<end; ){
+			int entryLength = ENTRY_HEADER_LENGTH + (bucket.mem[offset + 4] & 0xFF);
+			if((placedHash(bucket, offset) & bit) != 0){
+				System.arraycopy(bucket.mem, offset, sibling.mem, moved, entryLength);
+				moved = moved + entryLength;
+			} else {
+				System.arraycopy(bucket.mem, offset, bucket.mem, kept, entryLength);
+				kept = kept + entryLength;
+			}
+			offset = offset + entryLength;
+		}
+		Arrays.fill(bucket.mem, kept, end, (byte) 0);
+		bucket.pack((bucketDepth + 1) | overflow, 0);
+		bucket.pack(kept - HEADER_LENGTH, 8);
+		sibling.pack(moved - HEADER_LENGTH, 8);
+		disk.write_metadata_block(blocks[newBlock], sibling);
+		disk.write_metadata_block(blocks[block], bucket);
+
+		// The prefixes with the new bit set now lead to the new bucket
+		for(int j = prefix | bit; j<table.length; j = j + (bit << 1)){
+			table[j] = newBlock;
+		}
+		return true;
+	}
+
+
+	/**
+	 * Merges the blocks appended to the directory past a number of blocks back into the buckets they were split from,
+	 * the last one first, and gives them back to the disk. The table is halved while no bucket is as deep as it.
+	 * @param count		number of blocks the directory keeps.
+	 */
+	private void truncate(int count){
+		if(numBlocks == count){
+			return;
+		}
+		while(numBlocks > count){
+			// The last block was split from the bucket with the same prefix but its highest bit
+			disk.read_block(blocks[numBlocks - 1], sibling);
+			int bucketDepth = bucketDepth(sibling);
+			int prefix = sibling.unpack(4);
+			int bit = 1 << (bucketDepth - 1);
+			int block = table[prefix ^ bit];
+			disk.read_block(blocks[block], bucket);
+			int used = bucket.unpack(8);
+			int moved = sibling.unpack(8);
+			System.arraycopy(sibling.mem, HEADER_LENGTH, bucket.mem, HEADER_LENGTH + used, moved);
+			bucket.pack((bucketDepth - 1) | ((bucket.unpack(0) | sibling.unpack(0)) & OVERFLOW), 0);
+			bucket.pack(used + moved, 8);
+			disk.write_metadata_block(blocks[block], bucket);
+			for(int j = prefix; j<table.length; j = j + (bit << 1)){
+				table[j] = block;
+			}
+			numBlocks--;
+		}
+		while(depth > 0 && Arrays.equals(table, 0, table.length / 2, table, table.length / 2, table.length)){
+			table = Arrays.copyOf(table, table.length / 2);
+			depth--;
+		}
+		fs.shrinkDirectory(fileDesc, numBlocks);
+	}
+
+
+	/**
+	 * Indicates whether a new entry can be added to the bucket of a hash, splitting it if needed: the entries which
+	 * are placed by the same bits of the hash as the entry must fit in a block with it. Reads the bucket.
+	 * @param hash			hash placing the entry.
+	 * @param entryLength	length of the entry (in bytes).
+	 * @return				'true' if the entry can be added; 'false' if the bucket would be split in vain.
+	 */
+	private boolean canHold(int hash, int entryLength){
+		disk.read_block(blocks[table[hash & (table.length - 1)]], bucket);
+		int mask = (1 << MAX_DEPTH) - 1;
+		int used = entryLength;
+		int end = HEADER_LENGTH + bucket.unpack(8);
+		for(int offset = HEADER_LENGTH; offset<end; ){
+			int length = ENTRY_HEADER_LENGTH + (bucket.mem[offset + 4] & 0xFF);
+			if(((placedHash(bucket, offset) ^ hash) & mask) == 0){
+				used = used + length;
+			}
+			offset = offset + length;
+		}
+		return HEADER_LENGTH + used <= blockLength;
+	}
+
+
+	/**
+	 * Marks the bucket of a hash as overflowed, so the names of the hash are also looked for in the bucket of their
+	 * second hash.
+	 * @param hash		hash of a name.
+	 */
+	private void markOverflow(int hash){
+		int block = table[hash & (table.length - 1)];
+		disk.read_block(blocks[block], bucket);
+		int bucketDepth = bucket.unpack(0);
+		if((bucketDepth & OVERFLOW) == 0){
+			bucket.pack(bucketDepth | OVERFLOW, 0);
+			disk.write_metadata_block(blocks[block], bucket);
+		}
+	}
+
+
+	/**
+	 * Finds the entry of a name, reading the bucket of its hash, and the bucket of its second hash if the first one
+	 * has overflowed and doesn't hold it. Leaves the bucket in the block reused to read buckets, and its block in
+	 * bucketBlock.
+	 * @param name		name of the file.
+	 * @return			offset of the entry in the bucket (in bytes); -1 if the name is not in the directory.
+	 */
+	private int locate(String name){
+		bucketBlock = table[hash(name) & (table.length - 1)];
+		disk.read_block(blocks[bucketBlock], bucket);
+		int offset = find(bucket, name);
+		if(offset != -1 || (bucket.unpack(0) & OVERFLOW) == 0){
+			return offset;
+		}
+		bucketBlock = table[secondHash(name) & (table.length - 1)];
+		disk.read_block(blocks[bucketBlock], bucket);
+		return find(bucket, name);
+	}
+
+
+	/**
+	 * Appends a block to the file of the directory.
+	 * @return		'true' for success; 'false' if the disk is full.
+	 */
+	private boolean addBlock(){
+		int block_num = fs.growDirectory(fileDesc);
+		if(block_num == -1){
+			return false;
+		}
+		if(numBlocks == blocks.length){
+			blocks = Arrays.copyOf(blocks, Math.max(1, numBlocks * 2));
+		}
+		blocks[numBlocks] = block_num;
+		numBlocks++;
+		return true;
+	}
+
+
+	/**
+	 * Finds the entry of a name in a bucket.
+	 * @param bucket	bucket.
+	 * @param name		name of the file.
+	 * @return			offset of the entry in the bucket (in bytes); -1 if the name is not in the bucket.
+	 */
+	private static int find(PackableMemory bucket, String name){
+		int end = HEADER_LENGTH + bucket.unpack(8);
+		for(int offset = HEADER_LENGTH; offset<end; ){
+			int length = bucket.mem[offset + 4] & 0xFF;
+			if(length == name.length()){
+				int i = 0;
+				while(i<length && (bucket.mem[offset + ENTRY_HEADER_LENGTH + i] & 0xFF) == name.charAt(i)){
+					i++;
+				}
+				if(i == length){
+					return offset;
+				}
+			}
+			offset = offset + ENTRY_HEADER_LENGTH + length;
+		}
+		return -1;
+	}
+
+
+	/**
+	 * Counts the entries of a bucket.
+	 * @param bucket	bucket.
+	 * @return			number of entries.
+	 */
+	private static int countEntries(PackableMemory bucket){
+		int count = 0;
+		int end = HEADER_LENGTH + bucket.unpack(8);
+		for(int offset = HEADER_LENGTH; offset<end; offset = offset + ENTRY_HEADER_LENGTH + (bucket.mem[offset + 4] & 0xFF)){
+			count++;
+		}
+		return count;
+	}
+
+
+	/**
+	 * Computes the hash of a name: the hash of its chars as String.hashCode() computes it, with its bits mixed so
+	 * the lowest ones, which index the table, depend on every char.
+	 * @param name		name of the file.
+	 * @return			hash of the name.
+	 */
+	private static int hash(String name){
+		int h = 0;
+		for(int i = 0; i<name.length(); i++){
+			h = 31 * h + name.charAt(i);
+		}
+		return mix(h);
+	}
+
+
+	/**
+	 * Computes the hash of the name of an entry of a bucket, as hash(String) computes it.
+	 * @param bucket	bucket.
+	 * @param offset	offset of the entry in the bucket (in bytes).
+	 * @return			hash of the name.
+	 */
+	private static int hash(PackableMemory bucket, int offset){
+		int h = 0;
+		int length = bucket.mem[offset + 4] & 0xFF;
+		for(int i = 0; i<length; i++){
+			h = 31 * h + (bucket.mem[offset + ENTRY_HEADER_LENGTH + i] & 0xFF);
+		}
+		return mix(h);
+	}
+
+
+	/**
+	 * Computes the second hash of a name: the FNV-1a hash of its chars, starting from a salt, with its bits mixed.
+	 * Names with the same hash(String) have different second hashes, since the chars are combined in another way.
+	 * @param name		name of the file.
+	 * @return			second hash of the name.
+	 */
+	private static int secondHash(String name){
+		int h = SALT;
+		for(int i = 0; i<name.length(); i++){
+			h = (h ^ name.charAt(i)) * FNV_PRIME;
+		}
+		return mix(h);
+	}
+
+
+	/**
+	 * Computes the second hash of the name of an entry of a bucket, as secondHash(String) computes it.
+	 * @param bucket	bucket.
+	 * @param offset	offset of the entry in the bucket (in bytes).
+	 * @return			second hash of the name.
+	 */
+	private static int secondHash(PackableMemory bucket, int offset){
+		int h = SALT;
+		int length = bucket.mem[offset + 4] & 0xFF;
+		for(int i = 0; i<length; i++){
+			h = (h ^ (bucket.mem[offset + ENTRY_HEADER_LENGTH + i] & 0xFF)) * FNV_PRIME;
+		}
+		return mix(h);
+	}
+
+
+	/**
+	 * Computes the hash placing an entry of a bucket: the hash of its name if the bucket is the bucket of the hash,
+	 * or its second hash otherwise.
+	 * @param bucket	bucket.
+	 * @param offset	offset of the entry in the bucket (in bytes).
+	 * @return			hash placing the entry.
+	 */
+	private static int placedHash(PackableMemory bucket, int offset){
+		int h = hash(bucket, offset);
+		if((h & ((1 << bucketDepth(bucket)) - 1)) == bucket.unpack(4)){
+			return h;
+		}
+		return secondHash(bucket, offset);
+	}
+
+
+	/**
+	 * Returns the depth of a bucket, without the mark of an overflowed bucket.
+	 * @param bucket	bucket.
+	 * @return			depth of the bucket.
+	 */
+	private static int bucketDepth(PackableMemory bucket){
+		return bucket.unpack(0) & ~OVERFLOW;
+	}
+
+
+	/**
+	 * Mixes the bits of a hash (the finalizer of MurmurHash3).
+	 * @param h		hash.
+	 * @return		mixed hash.
+	 */
+	private static int mix(int h){
+		h ^= h >>> 16;
+		h *= 0x85EBCA6B;
+		h ^= h >>> 13;
+		h *= 0xC2B2AE35;
+		h ^= h >>> 16;
+		return h;
+	}
+}
@@ -0,0 +1,78 @@
+package pack;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * The DirectoryListing class iterates over the entries of a directory, reading them a page at a time, so listing
+ * a directory doesn't hold all of its entries in memory at once.
+ *
+ * The entries are listed in the order of the hashes of their names, each page starting where the previous one ended,
+ * so the names added or removed while listing don't make any other name be listed twice or skipped. The position
+ * reached can be taken with getCursor(), and the listing resumed from it later with FileSystem.list(String, long).
+ */
+public class DirectoryListing implements Iterator<DirEntry> {
+
+	private final FileSystem fs;		// File system holding the directory
+	private final int dirDesc;			// File descriptor index of the directory
+	private final int pageSize;			// Entries read at once
+	private final ArrayList<DirEntry> page = new ArrayList<>();	// Entries read and not returned yet
+	private final ArrayList<Long> keys = new ArrayList<>();		// Position of each entry of the page in the listing
+	private int next;					// Entry of the page returned next
+	private long cursor;				// Position in the listing following the page
+
+
+	/**
+	 * Class constructor. Creates a listing of a directory starting at a given position.
+	 * @param fs			file system holding the directory.
+	 * @param dirDesc		file descriptor index of the directory.
+	 * @param cursor		position in the listing of the first entry (Directory.START for the first entry).
+	 * @param pageSize		entries read at once. Must be at least 1.
+	 */
+	public DirectoryListing(FileSystem fs, int dirDesc, long cursor, int pageSize){
+		this.fs = fs;
+		this.dirDesc = dirDesc;
+		this.cursor = cursor;
+		this.pageSize = pageSize;
+	}
+
+
+	/**
+	 * Indicates whether there are entries left, reading the next page if the current one has been returned.
+	 * @return		'true' if there are entries left; 'false' otherwise.
+	 */
+	@Override
+	public boolean hasNext(){
+		while(next == page.size() && cursor != Directory.END){
+			page.clear();
+			keys.clear();
+			next = 0;
+			cursor = fs.readPage(dirDesc, cursor, pageSize, page, keys);
+		}
+		return next < page.size();
+	}
+
+
+	/**
+	 * Returns the next entry of the directory.
+	 * @return		the entry.
+	 * @throws NoSuchElementException	if there are no entries left.
+	 */
+	@Override
+	public DirEntry next(){
+		if(!hasNext()){
+			throw new NoSuchElementException();
+		}
+		return page.get(next++);
+	}
+
+
+	/**
+	 * Returns the position in the listing following the last entry returned, from which the listing can be resumed.
+	 * @return		the position; Directory.END if every entry has been returned.
+	 */
+	public long getCursor(){
+		return next < page.size() ? keys.get(next) : cursor;
+	}
+}
@@ -126,6 +126,18 @@ public class Driver {
     			} else {
     				bufferedWriter.write("error");
     			}
+    		} else if (num_params == 2 && command[0].equals("md")){
+    			if(fs.mkdir(command[1])){
+    				bufferedWriter.write(command[1] + " created");
+    			} else {
+    				bufferedWriter.write("error");
+    			}
+    		} else if (num_params == 2 && command[0].equals("dd")){
+    			if(fs.rmdir(command[1])){
+    				bufferedWriter.write(command[1] + " destroyed");
+    			} else {
+    				bufferedWriter.write("error");
+    			}
     		} else if (num_params == 2 && command[0].equals("op")){
     			status = fs.open(command[1]);
     			if(status != -1){
@@ -133,13 +145,13 @@ public class Driver {
     			} else {
     				bufferedWriter.write("error");
     			}
-    		} else if (num_params == 2 && command[0].equals("cl")){
+    		} else if (num_params == 2 && command[0].equals("cl") && isInt(command[1])){
     			if(fs.close(Integer.parseInt(command[1]))){
     				bufferedWriter.write(command[1] + " closed");
     			} else {
     				bufferedWriter.write("error");
     			}
-    		} else if (num_params == 3 && command[0].equals("rd")){
+    		} else if (num_params == 3 && command[0].equals("rd") && isInt(command[1]) && isCount(command[2])){
     			byte [] memory = new byte[Integer.parseInt(command[2])];
     			status = fs.read(Integer.parseInt(command[1]), memory, Integer.parseInt(command[2]));
     			if(status != -1){
@@ -149,7 +161,7 @@ public class Driver {
     			} else {
     				bufferedWriter.write("error");
     			}
-    		} else if (num_params == 4 && command[0].equals("wr")){
+    		} else if (num_params == 4 && command[0].equals("wr") && isInt(command[1]) && isCount(command[3])){
     			byte [] memory = new byte[Integer.parseInt(command[3])];
     			for(int i = 0; i<memory.length; i++){
     				memory[i] = (byte) command[2].charAt(0);
@@ -160,15 +172,29 @@ public class Driver {
     			} else {
     				bufferedWriter.write("error");
     			}
-    		} else if (num_params == 3 && command[0].equals("sk")){
+    		} else if (num_params == 3 && command[0].equals("sk") && isInt(command[1]) && isInt(command[2])){
     			if(fs.lseek(Integer.parseInt(command[1]), Integer.parseInt(command[2]))){
     				bufferedWriter.write("position is " + command[2]);
     			} else {
     				bufferedWriter.write("error");
     			}
-    		} else if (num_params == 1 && command[0].equals("dr")){
-    			String dir = fs.directory();
-    			bufferedWriter.write(dir);
+    		} else if (num_params == 3 && command[0].equals("al") && isInt(command[1]) && isLong(command[2])){
+    			if(fs.allocate(Integer.parseInt(command[1]), Long.parseLong(command[2]))){
+    				bufferedWriter.write(command[2] + " bytes allocated");
+    			} else {
+    				bufferedWriter.write("error");
+    			}
+    		} else if (num_params <= 2 && command[0].equals("dr")){
+    			// Write the names as the directory is read, a page at a time
+    			DirectoryListing listing = fs.list(num_params == 2 ? command[1] : "");
+    			if(listing != null){
+    				while(listing.hasNext()){
+    					bufferedWriter.write(listing.next().getName());
+    					bufferedWriter.write(" ");
+    				}
+    			} else {
+    				bufferedWriter.write("error");
+    			}
     		} else if (num_params == 1 && command[0].equals("in")) {
     			fs.init();
     			bufferedWriter.write("disk initialized");
@@ -181,6 +207,12 @@ public class Driver {
     			} else {
     				bufferedWriter.write("error");
     			}
+    		} else if (num_params == 3 && command[0].equals("in") && isInt(command[1]) && isInt(command[2])){
+    			if(fs.init(Integer.parseInt(command[1]), Integer.parseInt(command[2]))){
+    				bufferedWriter.write("disk initialized");
+    			} else {
+    				bufferedWriter.write("error");
+    			}
     		} else if (num_params == 2 && command[0].equals("sv")){
     			if(fs.save(command[1])){
     				bufferedWriter.write("disk saved");
@@ -188,6 +220,7 @@ public class Driver {
     				bufferedWriter.write("error");
     			}
     		} else {
+    			// Unknown commands, and numeric parameters which are not numbers, are errors
     			bufferedWriter.write("error");
     		}
     		
@@ -203,4 +236,44 @@ public class Driver {
             // ex.printStackTrace();
         }
 	}
+	
+	
+	/**
+	 * Indicates whether a parameter of a command is a number within the range of an int.
+	 * @param param		parameter of the command.
+	 * @return			'true' if it is such a number; 'false' otherwise.
+	 */
+	private static boolean isInt(String param){
+		try {
+			Integer.parseInt(param);
+			return true;
+		} catch (NumberFormatException e) {
+			return false;
+		}
+	}
+	
+	
+	/**
+	 * Indicates whether a parameter of a command is a number within the range of a long.
+	 * @param param		parameter of the command.
+	 * @return			'true' if it is such a number; 'false' otherwise.
+	 */
+	private static boolean isLong(String param){
+		try {
+			Long.parseLong(param);
+			return true;
+		} catch (NumberFormatException e) {
+			return false;
+		}
+	}
+	
+	
+	/**
+	 * Indicates whether a parameter of a command is a count of bytes: a number within the range of an int, not negative.
+	 * @param param		parameter of the command.
+	 * @return			'true' if it is such a number; 'false' otherwise.
+	 */
+	private static boolean isCount(String param){
+		return isInt(param) && Integer.parseInt(param) >= 0;
+	}
 }
\ No newline at end of file
@@ -0,0 +1,175 @@
+package pack;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.BitSet;
+
+/**
+ * The FileChannelDisk class implements a disk accessed directly on its image file, 
+ * with a positional read or write on the file for each block.
+ * Since the disk functions don't report errors, I/O errors are thrown as UncheckedIOException.
+ */
+public class FileChannelDisk implements BlockDevice {
+	
+	private final int numBlocks; // Number of blocks of the disk
+	private final int blockLength; // Block length (in bytes)
+	private final FileChannel channel; // Channel of the image file
+	private final BitSet dirtyBlocks; // Blocks written since the dirty blocks were last cleared
+	
+	
+	/**
+	 * Class constructor. Opens the disk over the given image file.
+	 * If the file does not exist or is shorter than the disk, it is created or extended with zeros.
+	 * @param image			file containing the image of the disk.
+	 * @param numBlocks		number of blocks of the disk.
+	 * @param blockLength	block length (in bytes).
+	 * @throws IOException	if the file cannot be opened.
+	 */
+	public FileChannelDisk(File image, int numBlocks, int blockLength) throws IOException{
+		this.numBlocks = numBlocks;
+		this.blockLength = blockLength;
+		dirtyBlocks = new BitSet(numBlocks);
+		channel = FileChannel.open(image.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+		
+		// Extend the file by writing its last byte, the rest of it reads as zeros
+		long size = (long) numBlocks*blockLength;
+		if(channel.size() < size){
+			channel.write(ByteBuffer.allocate(1), size - 1);
+		}
+	}
+	
+	
+	@Override
+	public int getNumBlocks(){
+		return numBlocks;
+	}
+	
+	
+	@Override
+	public int getBlockLength(){
+		return blockLength;
+	}
+	
+	
+	@Override
+	public void read_block(int i, PackableMemory myBlock){
+		// Check size of the block equals the block length, otherwise error
+		BlockDevice.checkBlockSize(myBlock, blockLength);
+		read(myBlock.view(0, blockLength), (long) i*blockLength);
+	}
+	
+	
+	@Override
+	public void write_block(int i, PackableMemory myBlock){
+		// Check size of the block equals the block length, otherwise error
+		BlockDevice.checkBlockSize(myBlock, blockLength);
+		write(myBlock.view(0, blockLength), (long) i*blockLength);
+		dirtyBlocks.set(i);
+	}
+	
+	
+	/**
+	 * Read several blocks from the disk, copying them one after the other into dst.
+	 * Each run of consecutive blocks is read with a single positional read.
+	 */
+	@Override
+	public void read_blocks(int[] blockIds, byte[] dst, int off){
+		for(int k = 0; k<blockIds.length; ){
+			int run = BlockDevice.runLength(blockIds, k);
+			read(ByteBuffer.wrap(dst, off + k*blockLength, run*blockLength), (long) blockIds[k]*blockLength);
+			k += run;
+		}
+	}
+	
+	
+	/**
+	 * Write several blocks into the disk, taking them one after the other from src.
+	 * Each run of consecutive blocks is written with a single positional write.
+	 */
+	@Override
+	public void write_blocks(int[] blockIds, byte[] src, int off){
+		for(int k = 0; k<blockIds.length; ){
+			int run = BlockDevice.runLength(blockIds, k);
+			write(ByteBuffer.wrap(src, off + k*blockLength, run*blockLength), (long) blockIds[k]*blockLength);
+			dirtyBlocks.set(blockIds[k], blockIds[k] + run);
+			k += run;
+		}
+	}
+	
+	
+	/**
+	 * Fills a buffer with the bytes of the image file starting at the given position.
+	 * Bytes past the end of the file are left as they are.
+	 * @param buffer	buffer to be filled.
+	 * @param pos		position of the image file.
+	 */
+	private void read(ByteBuffer buffer, long pos){
+		try {
+			long start = pos - buffer.position();
+			while(buffer.hasRemaining()){
+				if(channel.read(buffer, start + buffer.position()) < 0){
+					break;
+				}
+			}
+		}
+		catch(IOException ex) {
+			throw new UncheckedIOException(ex);
+		}
+	}
+	
+	
+	/**
+	 * Writes the bytes of a buffer into the image file starting at the given position.
+	 * @param buffer	buffer to be written.
+	 * @param pos		position of the image file.
+	 */
+	private void write(ByteBuffer buffer, long pos){
+		try {
+			long start = pos - buffer.position();
+			while(buffer.hasRemaining()){
+				channel.write(buffer, start + buffer.position());
+			}
+		}
+		catch(IOException ex) {
+			throw new UncheckedIOException(ex);
+		}
+	}
+	
+	
+	@Override
+	public BitSet getDirtyBlocks(){
+		return dirtyBlocks;
+	}
+	
+	
+	@Override
+	public void clearDirtyBlocks(){
+		dirtyBlocks.clear();
+	}
+	
+	
+	@Override
+	public void force(){
+		try {
+			channel.force(false);
+		}
+		catch(IOException ex) {
+			throw new UncheckedIOException(ex);
+		}
+	}
+	
+	
+	@Override
+	public void close(){
+		try {
+			channel.close();
+		}
+		catch(IOException ex) {
+			throw new UncheckedIOException(ex);
+		}
+	}
+}
@@ -0,0 +1,614 @@
+package pack;
+
+import java.util.Arrays;
+import java.util.BitSet;
+
+/**
+ * The FileDescriptor class holds a file descriptor read from the LDisk, and maps the blocks of the file to the blocks
+ * of the disk through extents: runs of consecutive blocks of the file stored in consecutive blocks of the disk.
+ * A file written sequentially is stored in a few extents, so it can be read with a few large reads of the disk.
+ *
+ * The extents of a file form a tree, whose root is held by the descriptor:
+ * 	- With depth 0, the entries of the root are the extents of the file: the first block of the disk and the number
+ * 	  of blocks of the extent.
+ * 	- With depth 1 (indirect), the entries of the root point to extent blocks holding the extents of the file.
+ * 	- With depth 2 (double-indirect), the entries of the root point to index blocks, whose entries point to extent blocks.
+ * Every entry of an index holds a block of the disk and the number of blocks of the file below it, so a block of the
+ * file is found walking down a single branch. The extents hold the first blocks of the file one after the other,
+ * so the blocks of the file past the last extent are the only ones without a block of the disk, and are read as zeros.
+ * When the root is full, its entries are moved into a new block, and the tree grows one level.
+ * A file of up to INLINE_LENGTH bytes with no blocks keeps its bytes inline, in place of the entries of the root,
+ * so it takes no block of the disk, and is read and written without reading or writing any block but its descriptor.
+ *
+ * A file descriptor takes FileSystem.FD_LENGTH bytes of the LDisk, and contains:
+ * 	- The length of the file (4 bytes), -1 if the descriptor is free.
+ * 	- The depth of the tree (2 bytes) and the number of entries of the root (2 bytes). The most significant bit
+ * 	  is set instead if the bytes of the file are inline, and the next one if the file is a directory.
+ * 	- Up to ROOT_ENTRIES entries (8 bytes each): a block of the disk and a number of blocks. Or the bytes of the file.
+ * An extent or index block contains its number of entries and its level (4 bytes each), and then its entries.
+ * An instance is reused to work with different descriptors, so the file operations don't allocate it each time.
+ */
+public class FileDescriptor {
+
+	public static final int ROOT_ENTRIES = 3;
+	public static final int MAX_DEPTH = 2; // Double-indirect
+	private static final int HEADER_SIZE = 8; // Bytes before the entries, in the descriptor and in a block
+	private static final int ENTRY_SIZE = 8; // Bytes
+	public static final int INLINE_LENGTH = ROOT_ENTRIES * ENTRY_SIZE; // Bytes of a file kept in its descriptor
+	private static final int INLINE = 1 << 31; // Bit set in the depth and number of entries if the file is inline
+	private static final int DIRECTORY = 1 << 30; // Bit set in the depth and number of entries if the file is a directory
+	private static final int APPENDED = 0; // The run was added to a branch
+	private static final int FULL = 1; // The branch has no room for the run
+	private static final int FAILED = 2; // The disk has no room for a new block of the branch
+
+	int length;				// Length of the file (-1 if the descriptor is free)
+	int depth;				// Depth of the tree of extents
+	int numEntries;			// Number of entries of the root
+	int numBlocks;			// Number of blocks of the file held by the extents
+	final int[] entryBlock = new int[ROOT_ENTRIES];	// Block of the disk of each entry of the root
+	final int[] entryCount = new int[ROOT_ENTRIES];	// Number of blocks of the file of each entry of the root
+	boolean inline;			// Whether the bytes of the file are kept in the descriptor
+	boolean directory;		// Whether the file is a directory (never inline)
+	final byte[] inlineData = new byte[INLINE_LENGTH];	// Bytes of the file, if inline
+
+	// Extent holding the block found by the last lookup
+	int extentFileBlock;	// First block of the file
+	int extentDiskBlock;	// First block of the disk
+	int extentCount;		// Number of blocks
+
+	private final PackableMemory[] nodes = new PackableMemory[MAX_DEPTH];	// Block read/written at each level
+	private final int[] lastEntries = new int[MAX_DEPTH];	// Entries of the last block of each level, while counting
+
+
+	/**
+	 * Reads the descriptor stored at a position of a block.
+	 * @param block		block of the LDisk holding the descriptor.
+	 * @param off		position of the descriptor in the block.
+	 */
+	public void read(PackableMemory block, int off){
+		length = block.unpack(off);
+		int shape = block.unpack(off + 4);
+		inline = (shape & INLINE) != 0;
+		directory = !inline && (shape & DIRECTORY) != 0;
+		if(inline){
+			depth = 0;
+			numEntries = 0;
+			numBlocks = 0;
+			block.copyTo(off + HEADER_SIZE, inlineData, 0, INLINE_LENGTH);
+			return;
+		}
+		depth = Math.min((shape & ~DIRECTORY) >>> 16, MAX_DEPTH);
+		numEntries = Math.min(shape & 0xffff, ROOT_ENTRIES);
+		numBlocks = 0;
+		for(int i = 0; i<numEntries; i++){
+			entryBlock[i] = block.unpack(off + HEADER_SIZE + i*ENTRY_SIZE);
+			entryCount[i] = block.unpack(off + HEADER_SIZE + i*ENTRY_SIZE + 4);
+			numBlocks += entryCount[i];
+		}
+	}
+
+
+	/**
+	 * Writes the descriptor at a position of a block. The unused entries are cleared.
+	 * @param block		block of the LDisk where the descriptor will be written.
+	 * @param off		position of the descriptor in the block.
+	 */
+	public void write(PackableMemory block, int off){
+		block.pack(length, off);
+		if(inline){
+			block.pack(INLINE, off + 4);
+			block.copyFrom(inlineData, 0, off + HEADER_SIZE, INLINE_LENGTH);
+			return;
+		}
+		block.pack((directory ? DIRECTORY : 0) | depth << 16 | numEntries, off + 4);
+		for(int i = 0; i<ROOT_ENTRIES; i++){
+			block.pack(i < numEntries ? entryBlock[i] : 0, off + HEADER_SIZE + i*ENTRY_SIZE);
+			block.pack(i < numEntries ? entryCount[i] : 0, off + HEADER_SIZE + i*ENTRY_SIZE + 4);
+		}
+	}
+
+
+	/**
+	 * Resets the descriptor to an empty file, with the given length (0 for a new file, -1 for a free descriptor).
+	 * The blocks of the file must have been freed beforehand.
+	 * @param len		length of the file.
+	 */
+	public void reset(int len){
+		length = len;
+		inline = false;
+		directory = false;
+		depth = 0;
+		numEntries = 0;
+		numBlocks = 0;
+	}
+
+
+	/**
+	 * Copies another descriptor into this one.
+	 * @param other		descriptor copied.
+	 */
+	public void copyFrom(FileDescriptor other){
+		length = other.length;
+		inline = other.inline;
+		directory = other.directory;
+		depth = other.depth;
+		numEntries = other.numEntries;
+		numBlocks = other.numBlocks;
+		System.arraycopy(other.entryBlock, 0, entryBlock, 0, ROOT_ENTRIES);
+		System.arraycopy(other.entryCount, 0, entryCount, 0, ROOT_ENTRIES);
+		System.arraycopy(other.inlineData, 0, inlineData, 0, INLINE_LENGTH);
+	}
+
+
+	/**
+	 * Keeps the bytes of a file with no blocks inline, in the descriptor.
+	 * @param src		memory holding the bytes of the file from its position 0 (e.g. its first block).
+	 * @param len		length of the file. Must be at most INLINE_LENGTH.
+	 */
+	public void setInline(PackableMemory src, int len){
+		inline = true;
+		length = len;
+		src.copyTo(0, inlineData, 0, len);
+		Arrays.fill(inlineData, len, INLINE_LENGTH, (byte) 0);
+	}
+
+
+	/**
+	 * Finds the block of the disk holding a block of the file, and the extent holding it.
+	 * @param device	disk holding the extent and index blocks.
+	 * @param block		block of the file.
+	 * @return			block of the disk; -1 if the block of the file has no block of the disk.
+	 */
+	public int lookup(BlockDevice device, int block){
+		if(block < 0 || block >= numBlocks){
+			return -1;
+		}
+
+		// Find the entry of the root, and then the entry of each block down the branch, holding the block
+		int base = 0;
+		int i = 0;
+		while(i < numEntries - 1 && block - base >= entryCount[i]){
+			base += entryCount[i];
+			i++;
+		}
+		int target = entryBlock[i];
+		int count = entryCount[i];
+		for(int level = depth - 1; level >= 0; level--){
+			PackableMemory node = readNode(device, target, level);
+			int entries = node.unpack(0);
+			int j = 0;
+			while(j < entries - 1 && block - base >= node.unpack(entryOffset(j) + 4)){
+				base += node.unpack(entryOffset(j) + 4);
+				j++;
+			}
+			target = node.unpack(entryOffset(j));
+			count = node.unpack(entryOffset(j) + 4);
+		}
+
+		extentFileBlock = base;
+		extentDiskBlock = target;
+		extentCount = count;
+		return target + block - base;
+	}
+
+
+	/**
+	 * Maps the blocks of the file following the last extent to a run of consecutive blocks of the disk.
+	 * The run is merged into the last extent when it continues it. Otherwise it is added to the last extent block,
+	 * and new extent and index blocks are allocated as the tree fills up. The file must not be inline.
+	 * @param cache			cache of the disk, where the extent and index blocks are written as metadata blocks.
+	 * @param freeSpace		map of the free blocks of the disk, where new extent and index blocks are allocated.
+	 * @param start			first block of the disk.
+	 * @param n				number of blocks.
+	 * @return				'true' for success; 'false' if the tree is full or the disk has no room for its blocks.
+	 */
+	public boolean append(BlockCache cache, FreeSpaceMap freeSpace, int start, int n){
+		if(depth == 0){
+			if(numEntries > 0 && entryBlock[numEntries-1] + entryCount[numEntries-1] == start){
+				entryCount[numEntries-1] += n;
+				numBlocks += n;
+				return true;
+			}
+			if(numEntries < ROOT_ENTRIES){
+				addEntry(start, n);
+				return true;
+			}
+		} else {
+			int result = appendToNode(cache, freeSpace, entryBlock[numEntries-1], depth - 1, start, n);
+			if(result == APPENDED){
+				entryCount[numEntries-1] += n;
+				numBlocks += n;
+				return true;
+			}
+			if(result == FAILED){
+				return false;
+			}
+			if(numEntries < ROOT_ENTRIES){
+				int child = newBranch(cache, freeSpace, depth - 1, start, n);
+				if(child == -1){
+					return false;
+				}
+				addEntry(child, n);
+				return true;
+			}
+		}
+
+		// The root is full: its entries are moved into a new block, and the tree grows one level
+		if(depth == MAX_DEPTH){
+			return false;
+		}
+		int child = freeSpace.allocate();
+		if(child == -1){
+			return false;
+		}
+		PackableMemory node = nodeBuffer(cache, depth);
+		node.clear();
+		node.pack(numEntries, 0);
+		node.pack(depth, 4);
+		for(int i = 0; i<numEntries; i++){
+			node.pack(entryBlock[i], entryOffset(i));
+			node.pack(entryCount[i], entryOffset(i) + 4);
+		}
+		cache.write_metadata_block(child, node);
+
+		depth++;
+		numEntries = 1;
+		entryBlock[0] = child;
+		entryCount[0] = numBlocks;
+		return append(cache, freeSpace, start, n);
+	}
+
+
+	/**
+	 * Returns the number of extent and index blocks appending a number of runs of blocks takes at most, when none of
+	 * them continues the run before it, so each takes an extent of its own. The runs the tree has no room for take none.
+	 * @param device		disk holding the extent and index blocks.
+	 * @param runs			number of runs of blocks.
+	 * @return				number of extent and index blocks.
+	 */
+	public int treeBlocksFor(BlockDevice device, int runs){
+		int perNode = (device.getBlockLength() - HEADER_SIZE) / ENTRY_SIZE;
+		int levels = depth;
+		int root = numEntries;
+		if(depth > 0){
+			// Entries of the last block of each level, down the last branch
+			int target = entryBlock[numEntries-1];
+			for(int level = depth - 1; level >= 0; level--){
+				PackableMemory node = readNode(device, target, level);
+				lastEntries[level] = node.unpack(0);
+				target = node.unpack(entryOffset(lastEntries[level] - 1));
+			}
+		}
+
+		// Follow append(): the runs fill the last extent block, and then take a new branch below the lowest block with room
+		int blocks = 0;
+		while(runs > 0){
+			if(levels == 0 && root < ROOT_ENTRIES){
+				int n = Math.min(runs, ROOT_ENTRIES - root);
+				root += n;
+				runs -= n;
+				continue;
+			}
+			if(levels > 0){
+				if(lastEntries[0] < perNode){
+					int n = Math.min(runs, perNode - lastEntries[0]);
+					lastEntries[0] += n;
+					runs -= n;
+					continue;
+				}
+				int level = 1;
+				while(level < levels && lastEntries[level] == perNode){
+					level++;
+				}
+				if(level < levels || root < ROOT_ENTRIES){
+					if(level < levels){
+						lastEntries[level]++;
+					} else {
+						root++;
+					}
+					Arrays.fill(lastEntries, 0, level, 1);
+					blocks += level;
+					runs--;
+					continue;
+				}
+			}
+
+			// The root is full: the tree grows one level, unless it is full
+			if(levels == MAX_DEPTH){
+				break;
+			}
+			lastEntries[levels] = root;
+			levels++;
+			root = 1;
+			blocks++;
+		}
+		return blocks;
+	}
+
+
+	/**
+	 * Frees the blocks of the file past a number of blocks: the end of its last extents, and the extent and index blocks
+	 * left without entries. The depth of the tree is kept. The file must not be inline.
+	 * @param cache			cache of the disk, where the extent and index blocks are written as metadata blocks.
+	 * @param freeSpace		map of the free blocks of the disk.
+	 * @param blocks		number of blocks the file keeps.
+	 */
+	public void truncate(BlockCache cache, FreeSpaceMap freeSpace, int blocks){
+		while(numBlocks > blocks){
+			int i = numEntries - 1;
+			int n = Math.min(numBlocks - blocks, entryCount[i]);
+			truncateEntry(cache, freeSpace, entryBlock[i], entryCount[i], depth - 1, n);
+			entryCount[i] -= n;
+			numBlocks -= n;
+			if(entryCount[i] == 0){
+				numEntries--;
+			}
+		}
+	}
+
+
+	/**
+	 * Frees every block of the file: the blocks of its extents, and its extent and index blocks.
+	 * @param device		disk holding the extent and index blocks.
+	 * @param freeSpace		map of the free blocks of the disk.
+	 */
+	public void free(BlockDevice device, FreeSpaceMap freeSpace){
+		for(int i = 0; i<numEntries; i++){
+			freeEntry(device, freeSpace, entryBlock[i], entryCount[i], depth - 1);
+		}
+	}
+
+
+	/**
+	 * Marks the extent and index blocks of the file in a set of blocks, and optionally the blocks of its extents.
+	 * @param device		disk holding the extent and index blocks.
+	 * @param blocks		set of blocks of the disk.
+	 * @param extents		'true' to mark the blocks of the extents too; 'false' to mark only the extent and index blocks.
+	 */
+	public void markBlocks(BlockDevice device, BitSet blocks, boolean extents){
+		for(int i = 0; i<numEntries; i++){
+			markEntry(device, blocks, extents, entryBlock[i], entryCount[i], depth - 1);
+		}
+	}
+
+
+	/**
+	 * Adds an entry to the root.
+	 * @param block		block of the disk of the entry.
+	 * @param n			number of blocks of the file of the entry.
+	 */
+	private void addEntry(int block, int n){
+		entryBlock[numEntries] = block;
+		entryCount[numEntries] = n;
+		numEntries++;
+		numBlocks += n;
+	}
+
+
+	/**
+	 * Adds a run of blocks to the last branch below an extent or index block.
+	 * @param cache			cache of the disk.
+	 * @param freeSpace		map of the free blocks of the disk.
+	 * @param node_num		extent or index block.
+	 * @param level			level of the block (0 for an extent block).
+	 * @param start			first block of the disk of the run.
+	 * @param n				number of blocks of the run.
+	 * @return				APPENDED, FULL or FAILED.
+	 */
+	private int appendToNode(BlockCache cache, FreeSpaceMap freeSpace, int node_num, int level, int start, int n){
+		PackableMemory node = readNode(cache, node_num, level);
+		int entries = node.unpack(0);
+		int last = entryOffset(entries - 1);
+		int lastBlock = node.unpack(last);
+		int lastCount = node.unpack(last + 4);
+
+		if(level == 0){
+			if(lastBlock + lastCount == start){
+				node.pack(lastCount + n, last + 4);
+			} else if(entries < capacity(node)){
+				addNodeEntry(node, entries, start, n);
+			} else {
+				return FULL;
+			}
+			cache.write_metadata_block(node_num, node);
+			return APPENDED;
+		}
+
+		int result = appendToNode(cache, freeSpace, lastBlock, level - 1, start, n);
+		if(result == FAILED){
+			return FAILED;
+		}
+		if(result == FULL){
+			if(entries == capacity(node)){
+				return FULL;
+			}
+			int child = newBranch(cache, freeSpace, level - 1, start, n);
+			if(child == -1){
+				return FAILED;
+			}
+			addNodeEntry(node, entries, child, n);
+		} else {
+			node.pack(lastCount + n, last + 4);
+		}
+		cache.write_metadata_block(node_num, node);
+		return APPENDED;
+	}
+
+
+	/**
+	 * Frees the last blocks below an entry: the end of an extent, or the end of the entries of an extent or index block,
+	 * freeing the block and every block below it if none is left.
+	 * @param cache			cache of the disk.
+	 * @param freeSpace		map of the free blocks of the disk.
+	 * @param block			first block of the extent, or extent or index block.
+	 * @param count			number of blocks of the file below the entry.
+	 * @param level			level of the block (0 for an extent block, -1 for an extent).
+	 * @param n				number of blocks of the file to free.
+	 */
+	private void truncateEntry(BlockCache cache, FreeSpaceMap freeSpace, int block, int count, int level, int n){
+		if(level < 0){
+			freeSpace.free(block + count - n, n);
+			return;
+		}
+		if(n == count){
+			freeEntry(cache, freeSpace, block, count, level);
+			return;
+		}
+		PackableMemory node = readNode(cache, block, level);
+		int entries = node.unpack(0);
+		while(n > 0){
+			int last = entryOffset(entries - 1);
+			int lastCount = node.unpack(last + 4);
+			int m = Math.min(n, lastCount);
+			truncateEntry(cache, freeSpace, node.unpack(last), lastCount, level - 1, m);
+			if(m == lastCount){
+				node.pack(0, last);
+				node.pack(0, last + 4);
+				entries--;
+			} else {
+				node.pack(lastCount - m, last + 4);
+			}
+			n -= m;
+		}
+		node.pack(entries, 0);
+		cache.write_metadata_block(block, node);
+	}
+
+
+	/**
+	 * Allocates a new branch holding a single run of blocks: an extent block, and an index block for each level above it.
+	 * @param cache			cache of the disk.
+	 * @param freeSpace		map of the free blocks of the disk.
+	 * @param level			level of the top block of the branch (0 for an extent block).
+	 * @param start			first block of the disk of the run.
+	 * @param n				number of blocks of the run.
+	 * @return				top block of the branch; -1 if the disk has no room for it.
+	 */
+	private int newBranch(BlockCache cache, FreeSpaceMap freeSpace, int level, int start, int n){
+		int child = start;
+		for(int l = 0; l<=level; l++){
+			int node_num = freeSpace.allocate();
+			if(node_num == -1){
+				// Free the blocks of the branch allocated so far
+				for(int k = l - 1; k >= 0; k--){
+					int next = readNode(cache, child, k).unpack(entryOffset(0));
+					freeSpace.set(child, false);
+					child = next;
+				}
+				return -1;
+			}
+			PackableMemory node = nodeBuffer(cache, l);
+			node.clear();
+			node.pack(0, 0);
+			node.pack(l, 4);
+			addNodeEntry(node, 0, child, n);
+			cache.write_metadata_block(node_num, node);
+			child = node_num;
+		}
+		return child;
+	}
+
+
+	/**
+	 * Frees the blocks below an entry: the blocks of an extent, or an extent or index block and every block below it.
+	 */
+	private void freeEntry(BlockDevice device, FreeSpaceMap freeSpace, int block, int count, int level){
+		if(level < 0){
+			freeSpace.free(block, count);
+			return;
+		}
+		PackableMemory node = readNode(device, block, level);
+		int entries = node.unpack(0);
+		for(int j = 0; j<entries; j++){
+			freeEntry(device, freeSpace, node.unpack(entryOffset(j)), node.unpack(entryOffset(j) + 4), level - 1);
+		}
+		freeSpace.set(block, false);
+	}
+
+
+	/**
+	 * Marks the blocks below an entry in a set of blocks: the blocks of an extent (if asked to), or an extent or index
+	 * block and every block below it.
+	 */
+	private void markEntry(BlockDevice device, BitSet blocks, boolean extents, int block, int count, int level){
+		int numBlocks = device.getNumBlocks();
+		if(level < 0){
+			if(extents && block >= 0 && block < numBlocks){
+				blocks.set(block, Math.min(block + Math.max(count, 0), numBlocks));
+			}
+			return;
+		}
+		if(block < 0 || block >= numBlocks){
+			return;
+		}
+		blocks.set(block);
+		PackableMemory node = readNode(device, block, level);
+		int entries = Math.min(node.unpack(0), capacity(node));
+		for(int j = 0; j<entries; j++){
+			markEntry(device, blocks, extents, node.unpack(entryOffset(j)), node.unpack(entryOffset(j) + 4), level - 1);
+		}
+	}
+
+
+	/**
+	 * Adds an entry to an extent or index block.
+	 * @param node		extent or index block.
+	 * @param entries	number of entries of the block.
+	 * @param block		block of the disk of the entry.
+	 * @param n			number of blocks of the file of the entry.
+	 */
+	private static void addNodeEntry(PackableMemory node, int entries, int block, int n){
+		node.pack(block, entryOffset(entries));
+		node.pack(n, entryOffset(entries) + 4);
+		node.pack(entries + 1, 0);
+	}
+
+
+	/**
+	 * Reads an extent or index block into the block kept for its level.
+	 * @param device	disk holding the block.
+	 * @param node_num	block of the disk.
+	 * @param level		level of the block (0 for an extent block).
+	 * @return			the block read.
+	 */
+	private PackableMemory readNode(BlockDevice device, int node_num, int level){
+		PackableMemory node = nodeBuffer(device, level);
+		device.read_block(node_num, node);
+		return node;
+	}
+
+
+	/**
+	 * Returns the block kept for a level of the tree, allocating it for the block length of the disk if needed.
+	 * Each level has its own block, so a block being walked is not overwritten by the blocks below it.
+	 * @param device	disk holding the extent and index blocks.
+	 * @param level		level of the tree (0 for extent blocks).
+	 * @return			the block.
+	 */
+	private PackableMemory nodeBuffer(BlockDevice device, int level){
+		if(nodes[level] == null || nodes[level].size != device.getBlockLength()){
+			nodes[level] = new PackableMemory(device.getBlockLength());
+		}
+		return nodes[level];
+	}
+
+
+	/**
+	 * Returns the number of entries an extent or index block can hold.
+	 * @param node		extent or index block.
+	 * @return			number of entries.
+	 */
+	private static int capacity(PackableMemory node){
+		return (node.size - HEADER_SIZE) / ENTRY_SIZE;
+	}
+
+
+	/**
+	 * Returns the position of an entry in an extent or index block.
+	 * @param entry		index of the entry.
+	 * @return			position (in bytes).
+	 */
+	private static int entryOffset(int entry){
+		return HEADER_SIZE + entry*ENTRY_SIZE;
+	}
+}
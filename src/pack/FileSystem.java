@@ -2,29 +2,76 @@ package pack;
 
 import java.io.*;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
 /**
  * The FileSystem class will implement the file system and its various functions to interact with the contents of the disk.
- * These functions are: create a file, destroy a file, open a file, close a file, read from a file, write to a file,
- * seek to a position in the file, get the directory, initialize disk (or restore it) and save the disk.
+ * These functions are: create a file, destroy a file, create and destroy a directory, open a file, close a file,
+ * read from a file, write to a file, seek to a position in the file, get the directory, initialize disk (or restore it)
+ * and save the disk.
  * Additionally, a set of internal methods have been developed to assist the functionality of the aforementioned funtions.
  * @author David Garca Santacruz, ID#: 51062654
  */
 public class FileSystem {
 
 	public static final int MAX_NUM_OPEN_FILES = 4;
-	public static final int MAX_FILE_NAME = 4;
+	public static final int MAX_FILE_NAME = Directory.MAX_NAME_LENGTH; // Chars, as long as a block of the directory holds them
 	public static final int DISK_MAP = 3;
-	public static final int SLOT_SIZE = 8; // Bytes
+	public static final int SLOT_SIZE = 8; // Bytes of a slot of the directories of fixed slots (superblock version 3 and older)
+	private static final int LEGACY_MAX_FILE_NAME = 4; // Chars of the names of the directories of fixed slots
 
-	public static final int NUM_DESCRIPTORS = 24;
-	public static final int FD_LENGTH = 16; // Bytes
-	public static final int NUM_FD_BLOCKS = NUM_DESCRIPTORS * FD_LENGTH / LDisk.BLOCK_LENGTH; // 6
-	public static final int NUM_FD_PER_BLOCK = LDisk.BLOCK_LENGTH / FD_LENGTH; // 4
+	public static final int FD_LENGTH = 32; // Bytes
+	public static final int MAX_FILE_LENGTH = Integer.MAX_VALUE; // Bytes
+	public static final int DEFAULT_ALLOCATION_UNIT = 1; // Blocks allocated at once when a file grows
+	public static final int DEFAULT_DELAYED_BLOCKS = 32; // Blocks of the open files held in memory until allocated
+	static final int LEGACY_FD_LENGTH = 16; // Bytes of the descriptors of the images before extents
+	public static final int DEFAULT_CACHE_CAPACITY = 64; // Blocks
+	public static final int IMAGE_CHUNK_SIZE = 1 << 20; // Bytes transferred at once when loading or saving an image
+	public static final int DEFAULT_GROUP_COMMIT = 32; // Operations committed to the journal at once
+	public static final int DENTRY_CACHE_CAPACITY = 1024; // Names of the dentry cache
+	public static final int DESCRIPTOR_CACHE_CAPACITY = 64; // Descriptors of the descriptor cache
+	public static final int LIST_PAGE_SIZE = 64; // Entries of a directory read at once when it is listed
 
-	private LDisk myDisk;
+	private BlockCache myDisk;		// Cache through which the disk is accessed
+	private CowDisk cowDisk;		// Disk behind the cache, through which snapshots are taken
+	private boolean readOnly;		// Whether the disk is a snapshot, mounted read-only
+	private Superblock superblock;	// Geometry and layout of the LDisk
+	private int formatBlocks;		// Number of blocks of the disks formatted by init()
+	private int formatBlockLength;	// Block length of the disks formatted by init()
 	private OpenFileTable[] OFT;
-	private int[] MASK;
+	private FreeSpaceMap freeSpace;	// Bitmap of the LDisk, kept in memory
+	private DescriptorTable descTable;	// Location of the file descriptors, and which of them are free
+	private BlockDevice.Backend backend;	// Backend used to build the disk
+	private int cacheCapacity;				// Number of blocks held by the cache in front of the disk
+	private File imageFile;					// Image file the disk works over (null if the disk is in memory)
+	private File savedImage;				// Image file an in-memory disk was loaded from or saved to, which only
+											// differs from the disk in its dirty blocks (null if there is none)
+	private int groupCommit = DEFAULT_GROUP_COMMIT;	// Operations committed to the journal at once
+	private int pendingOperations;			// Operations not committed to the journal yet
+	private int journalCapacity;			// Blocks of a transaction of the journal of the disk (0 if it has none)
+	private boolean compressImages;			// Whether images are saved in the compressed format
+	private boolean lazyLoad = true;		// Whether in-memory disks load their image on demand
+	private boolean verifyOnLoad;			// Whether the checksums of an image are verified when it is restored
+	private LazyImageDisk lazyDisk;			// Disk loading its image on demand (null if the disk is fully loaded)
+	private CompletableFuture<BitSet> verification;	// Last verification of the checksums of an image (null if none)
+	private PackableMemory zeroBlock;		// Block of zeros written into the blocks allocated but never written
+	private PackableMemory inlineBlock;		// Block reused to move the bytes of a file out of its descriptor
+	private final FileDescriptor fdScratch = new FileDescriptor();	// Descriptor reused by the file operations
+	private int allocationUnit = DEFAULT_ALLOCATION_UNIT;	// Blocks allocated at once when a file grows
+	private int delayedBlocks = DEFAULT_DELAYED_BLOCKS;	// Blocks of the open files held in memory until allocated
+	private PendingBlocks pendingBlocks;	// Blocks written to the open files which have no block of the disk yet
+	private Directory [] directories;		// Directories loaded, by file descriptor index (the root is always loaded)
+	private DentryCache dentries;			// File found by name in each directory, or that there is none
+	private DescriptorCache descriptors;	// Descriptors of the files in use, decoded, written back when closed or synced
+	private int nameStart;					// Position of the last component of the last path resolved
 
 	
 	/**
@@ -33,148 +80,130 @@ public class FileSystem {
 	 * Initializes the OFT, the bitmap, the file descriptors and the directory.
 	 */
 	public FileSystem() {
-		// Initialize the LDisk, which is empty
-		myDisk = new LDisk();
-
-		// Initialize the OFT and each of its entries (as empty)
-		OFT = new OpenFileTable[MAX_NUM_OPEN_FILES];
-		for (int i = 0; i < OFT.length; i++) {
-			OFT[i] = new OpenFileTable();
-		}
-
-		// Initialize the mask to work with the bitmap
-		initializeMask();
-
-		// Initialize bitmap
-		PackableMemory temp_block = new PackableMemory(LDisk.BLOCK_LENGTH);	// Block to read/write from/to the LDisk
-			
-		// Read the bitmap and mark blocks 0...6 as used by setting their bit to 1 with the corresponding mask
-		myDisk.read_block(0, temp_block); // Read the BM
-		for(int i = 0; i<=6; i++){
-			int temp_BM = temp_block.unpack(0);
-			temp_BM = temp_BM | MASK[i];
-			temp_block.pack(temp_BM, 0);
+		this(BlockDevice.Backend.HEAP);
+	}
+	
+	
+	/**
+	 * Class constructor.
+	 * Creates a FileSystem with the default geometry, whose disk is built with the given backend.
+	 * @param backend	backend used to build the disk.
+	 */
+	public FileSystem(BlockDevice.Backend backend) {
+		this(LDisk.NUM_BLOCKS, LDisk.BLOCK_LENGTH, backend);
+	}
+	
+	
+	/**
+	 * Class constructor.
+	 * Creates a FileSystem whose disks will be formatted with the given geometry and built with the given backend.
+	 * An in-memory FileSystem starts with an empty disk, while a file-backed FileSystem has no disk until 
+	 * init(String) opens it over an image file, since its geometry may not fit in memory.
+	 * @param numBlocks		number of blocks of the disk.
+	 * @param blockLength	length of each block (in bytes). Must be at least 64 and a multiple of 16.
+	 * @param backend		backend used to build the disk.
+	 * @throws IllegalArgumentException		if the geometry is not valid.
+	 */
+	public FileSystem(int numBlocks, int blockLength, BlockDevice.Backend backend) {
+		this(numBlocks, blockLength, backend, DEFAULT_CACHE_CAPACITY);
+	}
+	
+	
+	/**
+	 * Class constructor.
+	 * Creates a FileSystem whose disks will be formatted with the given geometry and built with the given backend,
+	 * and accessed through a cache holding the given number of blocks.
+	 * @param numBlocks		number of blocks of the disk.
+	 * @param blockLength	length of each block (in bytes). Must be at least 64 and a multiple of 16.
+	 * @param backend		backend used to build the disk.
+	 * @param cacheCapacity	number of blocks held by the cache. Must be at least 1.
+	 * @throws IllegalArgumentException		if the geometry or the cache capacity are not valid.
+	 */
+	public FileSystem(int numBlocks, int blockLength, BlockDevice.Backend backend, int cacheCapacity) {
+		new Superblock(numBlocks, blockLength); // Check the geometry
+		if(cacheCapacity < 1) {
+			throw new IllegalArgumentException("Invalid cache capacity: " + cacheCapacity);
 		}
-		myDisk.write_block(0, temp_block); // Write the changes back to the disk
-		
-		// Initialize file descriptors, all empty (length and block numbers equal to -1)
-		// Block containing only empty FD
-		PackableMemory temp_desc = new PackableMemory(LDisk.BLOCK_LENGTH);	
-		for(int i = 0; i<LDisk.BLOCK_LENGTH; i = i+4){
-			temp_desc.pack(-1, i);
+		this.cacheCapacity = cacheCapacity;
+		this.formatBlocks = numBlocks;
+		this.formatBlockLength = blockLength;
+		this.backend = backend;
+		if(!backend.isFileBacked()) {
+			init();
 		}
-		// Copy the block with empty FD to the blocks 1...6, which contain FD
-		for(int i = 1; i<=NUM_FD_BLOCKS; i++){
-			myDisk.write_block(i, temp_desc); 
+	}
+	
+	
+	/**
+	 * Class constructor.
+	 * Creates a FileSystem which mounts a snapshot read-only: files can be opened, read and listed, and the snapshot
+	 * can be saved to an image file, but every operation that would write to the disk fails.
+	 * @param snapshot		snapshot taken with snapshot().
+	 * @throws IllegalArgumentException		if the snapshot does not start with a superblock.
+	 */
+	public FileSystem(Snapshot snapshot) {
+		PackableMemory temp_block = new PackableMemory(snapshot.getBlockLength());
+		snapshot.read_block(0, temp_block);
+		Superblock snapshotSuperblock = Superblock.read(temp_block);
+		if(snapshotSuperblock == null) {
+			throw new IllegalArgumentException("Not a snapshot of a formatted disk");
 		}
 		
-		// Initialize directory
-		// Set length of FD 0 to 0
-		myDisk.read_block(1, temp_block);
-		temp_block.pack(0, 0);
-		myDisk.write_block(1, temp_block);
-		OFT[0] = new OpenFileTable(0, 0);
-		
-		// Create a generic free slot (length = -1)
-		PackableMemory free_slot = new PackableMemory(SLOT_SIZE);
-		free_slot.pack(-1, 4);
+		this.cacheCapacity = DEFAULT_CACHE_CAPACITY;
+		this.formatBlocks = snapshotSuperblock.numBlocks;
+		this.formatBlockLength = snapshotSuperblock.blockLength;
+		this.backend = BlockDevice.Backend.HEAP;
+		setDisk(snapshot, snapshotSuperblock, null);
+		readOnly = true;
 		
-		// Write the 24 free slots to the directory
-		lseek(0, 0);
-		for(int i = 0; i<NUM_DESCRIPTORS; i++){
-			write(0, free_slot.mem, SLOT_SIZE);
-		}
+		initializeOFT();
+		freeSpace = FreeSpaceMap.read(myDisk, superblock);
+		openDirectory();
 	}
 	
 	
 	/**
-	 * Creates a new file in the LDisk, given its name, as long as there are available file descriptors / slots.
-	 * @param file_name		name of the file to be created. Must be at most four chars and unique.
+	 * Creates a new file in the LDisk, given its path, as long as there are available file descriptors.
+	 * @param file_name		path of the file to be created: its name, or the names of the directories holding it from
+	 * 						the root and its name, separated by '/'. The directories must exist, and the name must be unique
+	 * 						in its directory, and at most MAX_FILE_NAME chars of one byte that fit in a block of the directory.
 	 * @return				boolean status: 'true' for success; 'false' for error.
 	 */
 	public boolean create(String file_name) {
-		// Check file name length (error if larger than 4)
-		if (file_name.length()>MAX_FILE_NAME){
-			return false;
-		}
-		
-		// Check file name uniqueness (error if not unique)
-		if (fileNameExists(file_name)){
-			return false;
-		}
-		
-		PackableMemory temp_block = new PackableMemory(LDisk.BLOCK_LENGTH);	// Block to read/write from/to the LDisk
-
-		// 1. Find a free file descriptor
-		int free_desc_index = -1;
-		
-		boolean found = false;
-		// Iterate through all the FD blocks
-		for (int i = 1; i <= NUM_FD_BLOCKS && !found; i++) { 
-			myDisk.read_block(i, temp_block);
-			// Iterate through all the FD in the block
-			for (int j = 0; j < LDisk.BLOCK_LENGTH && !found; j = j + FD_LENGTH) { 
-				int length = temp_block.unpack(j);
-				if (length < 0) {
-					found = true;
-					temp_block.pack(0, j); // For a free FD -> update length to 0
-					myDisk.write_block(i, temp_block);
-					free_desc_index = (i - 1) * NUM_FD_PER_BLOCK + j / FD_LENGTH;
-				}
-			}
-		}
-		
-		// If there are no free descriptors, there is an error
-		if(free_desc_index == -1){
-			return false;
-		}
-		
-		// 2. Find a free directory entry
-		// Go to the beginning of the directory
-		lseek(0, 0);
-		
-		PackableMemory temp_slot = new PackableMemory(SLOT_SIZE); 	// Block to work with slots
-		// Iterate over all the slots
-		for (int i = 0; i < OFT[0].length; i = i + SLOT_SIZE) { 
-			lseek(0, i);
-			read(0, temp_slot.mem, SLOT_SIZE);
-			// Find a free slot
-			if (temp_slot.unpack(4) < 0) { 
-				// 3. Fill both entries
-				// Update name
-				for (int j = 0; j < file_name.length(); j++) {
-					temp_slot.mem[j] = (byte) file_name.toCharArray()[j];
-				}
-				// Update descriptor index
-				temp_slot.pack(free_desc_index, 4);
-				
-				lseek(0, i); // Beginning of slot to write
-				write(0, temp_slot.mem, SLOT_SIZE); // Overwrite slot with new info.
-				
-				return true;
-			}
-		}
-		
-		// If there are not a free slots, there is an error
-		return false;
+		return createEntry(file_name, false);
+	}
+	
+	
+	/**
+	 * Creates a new, empty directory in the LDisk, given its path, as long as there are available file descriptors.
+	 * @param path		path of the directory to be created, as for create().
+	 * @return			boolean status: 'true' for success; 'false' for error.
+	 */
+	public boolean mkdir(String path) {
+		return createEntry(path, true);
 	}
 	
 	
 	/**
-	 * Destroys a file from the LDisk, given its name. The file must exist and not be opened.
-	 * @param file_name		name of the file to be destroyed. Must be at most four chars.
+	 * Destroys a file from the LDisk, given its path. The file must exist, not be a directory and not be opened.
+	 * @param file_name		path of the file to be destroyed.
 	 * @return				boolean status: 'true' for success; 'false' for error.
 	 */
 	public boolean destroy(String file_name){
-		// Check file name length (error if larger than 4)
-		if (file_name.length()>MAX_FILE_NAME){
+		// Check the disk can be written
+		if (readOnly){
 			return false;
 		}
 		
 		// 1. Search the directory to find file descriptor
-		int file_desc = findFileDesc(file_name);
-		// If there file does not exist, there is an error
-		if(file_desc == -1){
+		int dir_desc = resolveParent(file_name);
+		if(dir_desc == -1){
+			return false;
+		}
+		int entry = lookupEntry(dir_desc, file_name, nameStart, file_name.length());
+		int file_desc = dentries.getFileDesc(entry);
+		// If there file does not exist, or is a directory, there is an error
+		if(file_desc == -1 || dentries.isDirectory(entry)){
 			return false;
 		}
 		
@@ -185,60 +214,63 @@ public class FileSystem {
 			}
 		}
 		
-		// 4. Free file descriptor
-		freeFileDesc(file_name);
-		
-		// 2. Remove directory entry
-		PackableMemory temp_block = new PackableMemory(LDisk.BLOCK_LENGTH); // Block to read/write from/to the LDisk
+		// 2. Remove directory entry, and 3. update bitmap and 4. free file descriptor
+		removeEntry(dir_desc, file_name.substring(nameStart), file_desc);
 		
-		// Getting block where descriptor is
-		int desc_block = file_desc/NUM_FD_PER_BLOCK + 1;
-		myDisk.read_block(desc_block, temp_block);
+		endOperation();
 		
-		// Storing the block numbers of used blocks of the file in an ArrayList (as long as file is not empty)
-		int length = temp_block.unpack(file_desc%NUM_FD_PER_BLOCK*FD_LENGTH);
-		ArrayList<Integer> blocks = new ArrayList<Integer>();
-		for(int i = 4; i<FD_LENGTH && length > 0; i=i+4){ 
-			int temp_block_num = temp_block.unpack(file_desc%NUM_FD_PER_BLOCK*FD_LENGTH+i);
-			if(temp_block_num>0){
-				blocks.add(temp_block_num);
-			}
+		//5. Return status
+		return true;
+	}
+	
+	
+	/**
+	 * Destroys a directory from the LDisk, given its path. The directory must exist, be empty and not be the root.
+	 * @param path		path of the directory to be destroyed.
+	 * @return			boolean status: 'true' for success; 'false' for error.
+	 */
+	public boolean rmdir(String path){
+		// Check the disk can be written
+		if (readOnly){
+			return false;
 		}
 		
-		temp_block.pack(-1, file_desc%NUM_FD_PER_BLOCK*FD_LENGTH); // Set the length to -1 to mark descriptor as free
-		myDisk.write_block(desc_block, temp_block);
-		
-		//3. Update bitmap
-		// Read the bitmap and mark used blocks as free by setting their bit to 0 with the corresponding mask
-		myDisk.read_block(0, temp_block); //Read the BM
-		for(int i = 0; i<blocks.size(); i++){
-			int temp_BM = temp_block.unpack(blocks.get(i)/32*32);
-			temp_BM = temp_BM & ~MASK[blocks.get(i)%32];
-			temp_block.pack(temp_BM, blocks.get(i)/32*32);
+		// Search the directory holding it to find its file descriptor
+		int dir_desc = resolveParent(path);
+		if(dir_desc == -1){
+			return false;
+		}
+		int entry = lookupEntry(dir_desc, path, nameStart, path.length());
+		int file_desc = dentries.getFileDesc(entry);
+		// If the directory does not exist, is a file, or is not empty, there is an error
+		if(file_desc == -1 || !dentries.isDirectory(entry) || loadDirectory(file_desc).size() > 0){
+			return false;
 		}
-		myDisk.write_block(0, temp_block);
 		
-		//5. Return status
+		removeEntry(dir_desc, path.substring(nameStart), file_desc);
+		directories[file_desc] = null;
+		
+		endOperation();
 		return true;
 	}
 
 	
 	/**
-	 * Opens a file from the LDisk, given its name, as long as there are available entries in the OFT. 
-	 * The file must exist and not be opened.
-	 * @param file_name		name of the file to be opened. Must be at most four chars.
+	 * Opens a file from the LDisk, given its path, as long as there are available entries in the OFT. 
+	 * The file must exist, not be a directory and not be opened.
+	 * @param file_name		path of the file to be opened.
 	 * @return				OFT index; -1 for error.
 	 */
 	public int open(String file_name) {
-		// Check file name length (error if larger than 4)
-		if (file_name.length()>MAX_FILE_NAME){
+		// 1. Search directory to find index of file descriptor
+		int dir_desc = resolveParent(file_name);
+		if(dir_desc == -1){
 			return -1;
 		}
-		
-		// 1. Search directory to find index of file descriptor
-		int file_desc = findFileDesc(file_name);
-		// If there file does not exist, there is an error
-		if(file_desc == -1){
+		int entry = lookupEntry(dir_desc, file_name, nameStart, file_name.length());
+		int file_desc = dentries.getFileDesc(entry);
+		// If there file does not exist, or is a directory, there is an error
+		if(file_desc == -1 || dentries.isDirectory(entry)){
 			return -1;
 		}
 		
@@ -252,20 +284,12 @@ public class FileSystem {
 		// 2. Allocate a free OFT entry reusing deleted entries
 		for (int i = 0; i < OFT.length; i++) {
 			if (OFT[i].length == -1) {
-				// Read the descriptor block
-				int desc_block = file_desc / NUM_FD_PER_BLOCK + 1;
-				PackableMemory temp_block = new PackableMemory(LDisk.BLOCK_LENGTH);
-				myDisk.read_block(desc_block, temp_block);
-				// Find the file length
-				int length = temp_block.unpack(file_desc % NUM_FD_PER_BLOCK * FD_LENGTH);
-				// Allocate the OFT entry depending on whether the file is empty or not
-				if(length > 0){	// File is not empty -> There is a first block
-					int first_block = temp_block.unpack(file_desc % NUM_FD_PER_BLOCK * FD_LENGTH + 4);
-					myDisk.read_block(first_block, temp_block);
-					OFT[i] = new OpenFileTable(temp_block, file_desc, length);
-				} else { // File is empty -> There is not a first block (the buffer is initialized with an empty block)
-					OFT[i] = new OpenFileTable(file_desc, length);
-				}
+				// Read the descriptor to find the file length
+				int length = readDescriptor(file_desc).length;
+				// Assign the OFT entry, reusing its buffer, and read the first block of the file into it
+				// (an empty file gets an empty block)
+				OFT[i].assign(file_desc, length);
+				readBlockIntoBuffer(i, 0);
 				return i;
 			}
 		}
@@ -273,16 +297,18 @@ public class FileSystem {
 		// If there are not free entries in the OFT, there is an error
 		return -1;
 	}
+
 	
 	
 	/**
 	 * Closes a file from the LDisk, given its OFT index. The file must be open.
 	 * @param index		index in the OFT of the file to be closed. It must be within the OFT boundaries.
-	 * @return			boolean status: 'true' for success; 'false' for error.
+	 * @return			boolean status: 'true' for success; 'false' for error (e.g. bytes written to the file were lost,
+	 * 					since the disk had no room for them).
 	 */
 	public boolean close(int index){
-		// Check index is within OFT boundaries, if not error
-		if(!(index >= 0 && index <OFT.length)){
+		// Check index is within OFT boundaries (entry 0 is reserved for the directory), if not error
+		if(!(index > 0 && index <OFT.length)){
 			return false;
 		}
 		
@@ -291,29 +317,144 @@ public class FileSystem {
 			return false;
 		}
 		
-		PackableMemory temp_block = new PackableMemory(LDisk.BLOCK_LENGTH);
-		
-		// Read the descriptor block
-		int desc_block = OFT[index].fileDescIndex/NUM_FD_PER_BLOCK+1;
-		myDisk.read_block(desc_block, temp_block);
-		
-		// 2. Update file length in descriptor
-		temp_block.pack(OFT[index].length, OFT[index].fileDescIndex%NUM_FD_PER_BLOCK*FD_LENGTH);
-		myDisk.write_block(desc_block, temp_block);
-		
-		// Only if the file is not empty (it was been written), // 1. Write buffer to disk
-		if(OFT[index].length > 0){
-			writeBufferToDisk(index);
-		}
+		// 1. Write buffer to disk and 2. Update file length in descriptor, writing the descriptor back to its block
+		boolean stored = flushFile(index);
+		descriptors.writeBack(OFT[index].fileDescIndex);
 		
-		// 3. Free OFT entry
+		// 3. Free OFT entry, and the blocks still reserved for it
+		freeSpace.release(reservedBlocks(index, readDescriptor(OFT[index].fileDescIndex)));
 		OFT[index].free();
+		endOperation();
 		
-		// 4. Return status
-		return true;
+		// 4. Return status: an error if bytes written to the file were lost
+		return stored;
 	}
 
 	
+	/**
+	 * Writes every change made to the disk back to it, without closing the open files: the buffers and lengths
+	 * of the open files are written to the disk, the dirty blocks of the cache are written back and the disk
+	 * is forced to write them to its image file (if it has one).
+	 * @return		boolean status: 'true' for success; 'false' for error (e.g. bytes written to an open file were lost,
+	 * 				since the disk had no room for them).
+	 */
+	public boolean sync(){
+		boolean stored = true;
+		for(int i = 1; i<OFT.length; i++){
+			if(OFT[i].fileDescIndex != -1 && !flushFile(i)){
+				stored = false;
+			}
+		}
+		syncDisk();
+		pendingOperations = 0;
+		return stored;
+	}
+	
+	
+	/**
+	 * Takes a copy-on-write snapshot of the disk: a read-only view of its current state, which shares every block with
+	 * the disk and only copies a block the first time it is written afterwards. The open files are synced first, so their
+	 * changes are part of the snapshot; apart from that, taking a snapshot doesn't depend on the size of the disk.
+	 * The snapshot can be mounted with FileSystem(Snapshot) or exported to an image file, and must be released
+	 * once it is not needed.
+	 * @return		the snapshot.
+	 */
+	public Snapshot snapshot(){
+		sync();
+		return cowDisk.snapshot();
+	}
+	
+	
+	/**
+	 * Sets the number of operations (create, destroy, close and write) whose metadata changes are committed to the journal
+	 * of a file-backed disk at once. Larger groups need fewer writes to the image file, but more operations are lost on a crash.
+	 * @param operations	number of operations per group. Must be at least 1.
+	 * @return				boolean status: 'true' for success; 'false' for error.
+	 */
+	public boolean setGroupCommit(int operations){
+		if(operations < 1){
+			return false;
+		}
+		groupCommit = operations;
+		return true;
+	}
+	
+	
+	/**
+	 * Sets the number of blocks allocated at once when a file grows past its allocated blocks, so files written
+	 * at the same time don't interleave their blocks. The blocks allocated past the end of a file are kept by the file
+	 * until it is destroyed.
+	 * @param blocks	number of blocks of the allocation unit. Must be at least 1.
+	 * @return			boolean status: 'true' for success; 'false' for error.
+	 */
+	public boolean setAllocationUnit(int blocks){
+		if(blocks < 1){
+			return false;
+		}
+		allocationUnit = blocks;
+		return true;
+	}
+	
+	
+	/**
+	 * Sets the number of blocks written to the open files which are held in memory, without a block of the disk,
+	 * until the files are closed, synced or saved, or until these blocks run out. The blocks of a file are then
+	 * allocated at once, so they are contiguous, and the blocks of files destroyed or rewritten before they are flushed
+	 * don't cause allocations in the meantime. The blocks held are flushed first.
+	 * @param blocks	number of blocks held in memory (0 allocates every block as soon as it is written). Must be at least 0.
+	 * @return			boolean status: 'true' for success; 'false' for error.
+	 */
+	public boolean setDelayedAllocation(int blocks){
+		if(blocks < 0){
+			return false;
+		}
+		flushPendingBlocks();
+		delayedBlocks = blocks;
+		// A file-backed FileSystem has no disk until its image is opened
+		if(pendingBlocks != null){
+			pendingBlocks = new PendingBlocks(delayedBlocks, superblock.blockLength, backend == BlockDevice.Backend.DIRECT);
+		}
+		return true;
+	}
+	
+	
+	/**
+	 * Returns the number of free blocks of the disk.
+	 * @return		number of free blocks.
+	 */
+	public int getFreeBlocks(){
+		return freeSpace.getFreeBlocks();
+	}
+	
+	
+	/**
+	 * Returns the cache through which the disk is accessed, so its hit, miss and eviction counters can be read.
+	 * @return		cache of the disk.
+	 */
+	public BlockCache getCache(){
+		return myDisk;
+	}
+	
+	
+	/**
+	 * Returns the dentry cache through which the paths are resolved, so its hit and miss counters can be read.
+	 * @return		dentry cache.
+	 */
+	public DentryCache getDentryCache(){
+		return dentries;
+	}
+	
+	
+	/**
+	 * Returns the descriptor cache through which the file descriptors are accessed, so its hit and miss counters
+	 * can be read.
+	 * @return		descriptor cache.
+	 */
+	public DescriptorCache getDescriptorCache(){
+		return descriptors;
+	}
+	
+	
 	/**
 	 * Reads a given number of bytes from an open file, given its OFT index, into a memory area. The file must be open.
 	 * @param index		index in the OFT of the file to be read. It must be within the OFT boundaries.
@@ -323,8 +464,8 @@ public class FileSystem {
 	 * @return			number of bytes read, -1 for error.
 	 */
 	public int read(int index, byte [] mem_area, int count){
-		// Check index is within OFT boundaries, if not error
-		if(!(index >= 0 && index <OFT.length)){
+		// Check index is within OFT boundaries (entry 0 is reserved for the directory), if not error
+		if(!(index > 0 && index <OFT.length)){
 			return -1;
 		}
 		
@@ -339,18 +480,18 @@ public class FileSystem {
 		}
 		
 		// 1. Compute position in the R/W buffer
-		int bufferPos = OFT[index].currentPosition%LDisk.BLOCK_LENGTH;
+		int bufferPos = OFT[index].currentPosition%superblock.blockLength;
 		
 		int bytesRead = 0;
 		
 		// 2. Copy from buffer to memory (until desired count or end of file is reached)
 		for (int i = 0; i<count && OFT[index].currentPosition < OFT[index].length; i++){
-			mem_area[i] = OFT[index].buffer.mem[bufferPos];
+			mem_area[i] = OFT[index].buffer.get(bufferPos);
 			bytesRead++;
 			bufferPos++;
 			
 			// End of buffer reached
-			if(bufferPos >= LDisk.BLOCK_LENGTH){
+			if(bufferPos >= superblock.blockLength){
 				// Write the buffer to disk
 				writeBufferToDisk(index);
 				
@@ -373,11 +514,12 @@ public class FileSystem {
 	 * @param mem_area	memory area where the bytes to be written reside. Its size must be at least 'count'.
 	 * @param count		number of bytes to write into the file. 
 	 * 					If the count tries to write beyond the maximum file size, it reads only up to the maximum file size.
+	 * 					If the disk has no room for the blocks of the bytes, it writes only up to the last block it has room for.
 	 * @return			number of bytes written; -1 for error.	
 	 */
 	public int write(int index, byte [] mem_area, int count){
-		// Check index is within OFT boundaries, if not error
-		if(!(index >= 0 && index <OFT.length)){
+		// Check index is within OFT boundaries (entry 0 is reserved for the directory), if not error
+		if(!(index > 0 && index <OFT.length)){
 			return -1;
 		}
 		
@@ -386,25 +528,39 @@ public class FileSystem {
 			return -1;
 		}
 		
-		// Check the memory area is large enough to write such amount of bytes
-		if(mem_area.length < count){
+		// Check the memory area is large enough to write such amount of bytes, and that the disk can be written
+		if(mem_area.length < count || readOnly){
 			return -1;
 		}
 		
 		// 1. Compute position in the R/W buffer
-		int bufferPos = OFT[index].currentPosition%LDisk.BLOCK_LENGTH;
+		int bufferPos = OFT[index].currentPosition%superblock.blockLength;
 		
 		int bytesWritten = 0;
 		
+		// The blocks allocated past the end of the file are cleared before the end of the file moves past them
+		if(count > 0 && OFT[index].currentPosition > OFT[index].length){
+			clearBlocksPastEnd(index);
+		}
+		
 		// 2. Copy from memory to buffer (until desired count or end of file is reached)
-		for (int i = 0; i<count && OFT[index].currentPosition < LDisk.BLOCK_LENGTH*DISK_MAP; i++){
-			OFT[index].buffer.mem[bufferPos] = mem_area[i];
+		for (int i = 0; i<count && OFT[index].currentPosition < MAX_FILE_LENGTH; i++){
+			// The block of the disk of each block is reserved before the block is written, so no byte written is lost
+			if((i == 0 || bufferPos == 0) && !reserveBlocks(index, count - i)){
+				break;
+			}
+			OFT[index].buffer.put(mem_area[i], bufferPos);
 			bytesWritten++;
 			
+			// Update file length, before the buffer is written to disk
+			if(OFT[index].currentPosition >= OFT[index].length){
+				OFT[index].length = OFT[index].currentPosition + 1;
+			}
+			
 			bufferPos++;
 			
 			// End of buffer reached
-			if(bufferPos >= LDisk.BLOCK_LENGTH){
+			if(bufferPos >= superblock.blockLength){
 				// Write buffer to disk
 				writeBufferToDisk(index);
 				
@@ -416,11 +572,7 @@ public class FileSystem {
 			OFT[index].currentPosition++;
 		}
 
-		// Update file length
-		int newLength = OFT[index].currentPosition - OFT[index].length;
-		if(newLength > 0){
-			OFT[index].length += newLength;
-		}
+		endOperation();
 		
 		// Return status
 		return bytesWritten;
@@ -436,8 +588,8 @@ public class FileSystem {
 	 * @return			boolean status: 'true' for success; 'false' for error.
 	 */
 	public boolean lseek(int index, int pos){
-		// Check index is within OFT boundaries, if not error
-		if(!(index >= 0 && index <OFT.length)){
+		// Check index is within OFT boundaries (entry 0 is reserved for the directory), if not error
+		if(!(index > 0 && index <OFT.length)){
 			return false;
 		}
 		
@@ -447,18 +599,13 @@ public class FileSystem {
 		}
 		
 		// Check position is within file boundaries, if not error
-		if(!(pos >= 0 && pos <= LDisk.BLOCK_LENGTH*DISK_MAP)){
+		if(!(pos >= 0 && pos <= MAX_FILE_LENGTH)){
 			return false;
 		} 
 		
 		// Find the current block within the file and the new block
-		int current_block = OFT[index].currentPosition / LDisk.BLOCK_LENGTH + 1; // which of three blocks currently are
-		// In case we reached the last position
-		if(current_block > DISK_MAP){
-			current_block = DISK_MAP;
-		}
-		
-		int new_block = pos / LDisk.BLOCK_LENGTH + 1;
+		int current_block = bufferBlock(OFT[index].currentPosition);
+		int new_block = bufferBlock(pos);
 		
 		// 1. If the new position is not within the current block
 		if (current_block != new_block){
@@ -466,16 +613,7 @@ public class FileSystem {
 			writeBufferToDisk(index);
 
 			// Read new block
-			PackableMemory temp_block = new PackableMemory(LDisk.BLOCK_LENGTH);
-			myDisk.read_block(OFT[index].fileDescIndex/NUM_FD_PER_BLOCK + 1, temp_block);
-			//myDisk.read_block(temp_block.unpack(OFT[index].fileDescIndex%NUM_FD_PER_BLOCK*FD_LENGTH + new_block*4), OFT[index].buffer);	
-			
-			int new_block_num = temp_block.unpack(OFT[index].fileDescIndex%NUM_FD_PER_BLOCK*FD_LENGTH + new_block*4);
-			if(new_block_num == -1){
-			OFT[index].buffer = new PackableMemory(LDisk.BLOCK_LENGTH);
-			} else {
-				myDisk.read_block(new_block_num, OFT[index].buffer);
-			}
+			readBlockIntoBuffer(index, new_block);
 		}
 		
 		// 2. Set the current position to the new position
@@ -487,95 +625,154 @@ public class FileSystem {
 	
 	
 	/**
-	 * Prints the names of all the files in the directory.
-	 * @return		String representing the directory, that is, the names of all the existing files separated by a whitespace.
+	 * Reserves the blocks of the disk for an open file, given its OFT index, up to a given length, so a file whose final
+	 * size is known is written with no allocation at all. The blocks are allocated in a single pass over the free blocks,
+	 * in a single run if there is one, and the descriptor of the file is updated once.
+	 * The length of the file doesn't change: the reserved blocks past the end of the file are read as zeros until written.
+	 * @param index		index in the OFT of the file. It must be within the OFT boundaries.
+	 * @param length	length of the file the blocks are reserved for (in bytes). It must be within the maximum file size.
+	 * @return			boolean status: 'true' for success; 'false' for error (e.g. the disk has no room for the blocks).
 	 */
-	
-	public String directory(){
-		String directory = "";
+	public boolean allocate(int index, long length){
+		// Check index is within OFT boundaries (entry 0 is reserved for the directory), if not error
+		if(!(index > 0 && index <OFT.length)){
+			return false;
+		}
+		
+		// Check the OFT entry does contain an open file, if not error
+		if(OFT[index].fileDescIndex == -1){
+			return false;
+		}
 		
-		// Go to the beginning of the directory
-		lseek(0, 0);
+		// Check the length is within the maximum file size, and that the disk can be written
+		if(!(length >= 0 && length <= MAX_FILE_LENGTH) || readOnly){
+			return false;
+		}
 		
-		PackableMemory temp_slot = new PackableMemory(SLOT_SIZE);
+		// The bytes kept in the descriptor and the blocks held in memory are allocated first,
+		// so the blocks reserved follow them
+		if(!moveInlineData(index)){
+			return false;
+		}
+		flushPendingBlocks(index);
 		
-		// Read the directory entries and append the name of each existing file to the string 
-		for(int i = 0; i<OFT[0].length; i = i+SLOT_SIZE){
-			read(0, temp_slot.mem, SLOT_SIZE);
-			
-			// Append the name of the file only if the slot entry is not empty
-			int temp_fd = temp_slot.unpack(4);
-			if(temp_fd >= 0){
-				char [] nameChar = new char [4];
-				for(int j = 0; j<4; j++){
-					nameChar[j] = (char) temp_slot.mem[j];
-				}
-				String name = new String(nameChar);
-				
-				if(!name.trim().isEmpty()){
-					directory = directory.concat(name.trim().concat(" "));
-				}
-			}
+		// Allocate the blocks missing, and update the descriptor with the new extents
+		int blocks = (int) ((length + superblock.blockLength - 1) / superblock.blockLength);
+		FileDescriptor fd = readDescriptor(OFT[index].fileDescIndex);
+		if(fd.numBlocks >= blocks){
+			return true;
 		}
+		int fileBlocks = (int) (((long) OFT[index].length + superblock.blockLength - 1) / superblock.blockLength);
+		boolean allocated = allocateFileBlocks(index, fd, blocks, 0, fileBlocks);
+		writeDescriptor(OFT[index].fileDescIndex, fd);
 		
-		return directory;
+		endOperation();
+		
+		return allocated;
 	}
 	
 	
 	/**
-	 * Initializes the disk, setting up the bitmap and opening the directory.
+	 * Prints the names of all the files in the root directory.
+	 * @return		String representing the directory, that is, the names of all the existing files separated by a whitespace.
 	 */
-	public void init() {
-		// Initialize the LDisk, which is empty
-		myDisk = new LDisk();
-
-		// Initialize the OFT and each of its entries (as empty)
-		OFT = new OpenFileTable[MAX_NUM_OPEN_FILES];
-		for (int i = 0; i < OFT.length; i++) {
-			OFT[i] = new OpenFileTable();
+	
+	public String directory(){
+		return directory("");
+	}
+	
+	
+	/**
+	 * Prints the names of all the files and directories in a directory, given its path.
+	 * @param path		path of the directory; empty or "/" for the root directory.
+	 * @return			String representing the directory, that is, the names of all the existing files separated by
+	 * 					a whitespace; null if the directory doesn't exist.
+	 */
+	public String directory(String path){
+		DirectoryListing listing = list(path);
+		if(listing == null){
+			return null;
 		}
-
-		// Initialize the mask to work with the bitmap
-		initializeMask();
-
-		// Initialize bitmap
-		PackableMemory temp_block = new PackableMemory(LDisk.BLOCK_LENGTH); // Block to read/write from/to the LDisk
-
-		// Read the bitmap and mark blocks 0...6 as used by setting their bit to 1 with the corresponding mask
-		myDisk.read_block(0, temp_block); // Read the BM
-		for (int i = 0; i <= 6; i++) {
-			int temp_BM = temp_block.unpack(0);
-			temp_BM = temp_BM | MASK[i];
-			temp_block.pack(temp_BM, 0);
-		}
-		myDisk.write_block(0, temp_block); // Write the changes back to the disk
-
-		// Initialize file descriptors, all empty (length and block numbers equal to -1)
-		// Block containing only empty FD
-		PackableMemory temp_desc = new PackableMemory(LDisk.BLOCK_LENGTH);
-		for (int i = 0; i < LDisk.BLOCK_LENGTH; i = i + 4) {
-			temp_desc.pack(-1, i);
+		StringBuilder directory = new StringBuilder();
+		while(listing.hasNext()){
+			directory.append(listing.next().getName()).append(' ');
 		}
-		// Copy the block with empty FD to the blocks 1...6, which contain FD
-		for (int i = 1; i <= NUM_FD_BLOCKS; i++) {
-			myDisk.write_block(i, temp_desc);
+		return directory.toString();
+	}
+	
+	
+	/**
+	 * Lists the entries of a directory, given its path, with the name, the file descriptor index and the length of each
+	 * file. The entries are read a page at a time as they are iterated, so the whole listing is never held in memory.
+	 * @param path		path of the directory; empty or "/" for the root directory.
+	 * @return			iterator over the entries of the directory; null if the directory doesn't exist.
+	 */
+	public DirectoryListing list(String path){
+		return list(path, Directory.START);
+	}
+	
+	
+	/**
+	 * Lists the entries of a directory, given its path, from a position of its listing on, as list(String) does.
+	 * A large directory can be listed a page at a time, resuming each page from the cursor of the previous one.
+	 * @param path		path of the directory; empty or "/" for the root directory.
+	 * @param cursor	position of the listing to resume from, taken from DirectoryListing.getCursor()
+	 * 					(Directory.START for the first entry).
+	 * @return			iterator over the entries of the directory; null if the directory doesn't exist.
+	 */
+	public DirectoryListing list(String path, long cursor){
+		int dir_desc = resolveDirectory(path);
+		if(dir_desc == -1 || cursor < Directory.START){
+			return null;
 		}
-
-		// Initialize directory
-		// Set length of FD 0 to 0
-		myDisk.read_block(1, temp_block);
-		temp_block.pack(0, 0);
-		myDisk.write_block(1, temp_block);
-		OFT[0] = new OpenFileTable(0, 0);
-
-		// Create a generic free slot (length = -1)
-		PackableMemory free_slot = new PackableMemory(SLOT_SIZE);
-		free_slot.pack(-1, 4);
-
-		// Write the 24 free slots to the directory
-		lseek(0, 0);
-		for (int i = 0; i < NUM_DESCRIPTORS; i++) {
-			write(0, free_slot.mem, SLOT_SIZE);
+		return new DirectoryListing(this, dir_desc, cursor, LIST_PAGE_SIZE);
+	}
+	
+	
+	/**
+	 * Streams the entries of a directory, given its path, as list(String) iterates them.
+	 * @param path		path of the directory; empty or "/" for the root directory.
+	 * @return			stream of the entries of the directory; an empty stream if the directory doesn't exist.
+	 */
+	public Stream<DirEntry> entries(String path){
+		DirectoryListing listing = list(path);
+		if(listing == null){
+			return Stream.empty();
+		}
+		return StreamSupport.stream(Spliterators.spliteratorUnknownSize(listing, Spliterator.ORDERED | Spliterator.NONNULL), false);
+	}
+	
+	
+	/**
+	 * Initializes the disk, setting up the bitmap and opening the directory.
+	 * File-backed backends use an in-memory disk until a disk is restored with init(String).
+	 */
+	public void init() {
+		// Initialize the disk, which is empty
+		Superblock newSuperblock = new Superblock(formatBlocks, formatBlockLength);
+		setDisk(createMemoryDisk(newSuperblock), newSuperblock, null);
+		
+		format();
+	}
+	
+	
+	/**
+	 * Initializes the disk with the given geometry, which will also be used by later calls to init().
+	 * @param numBlocks		number of blocks of the disk.
+	 * @param blockLength	length of each block (in bytes). Must be at least 64 and a multiple of 16.
+	 * @return				boolean status: 'true' for success; 'false' for error (invalid geometry).
+	 */
+	public boolean init(int numBlocks, int blockLength) {
+		try {
+			// Check the geometry before discarding the current disk
+			new Superblock(numBlocks, blockLength);
+			formatBlocks = numBlocks;
+			formatBlockLength = blockLength;
+			init();
+			return true;
+		}
+		catch(IllegalArgumentException ex) {
+			return false;
 		}
 	}
 	
@@ -583,6 +780,7 @@ public class FileSystem {
 	/**
 	 * Restores the disk, given a file with a disk state saved. 
 	 * If the file does exist the disk is restored, otherwise it is initialized as an empty disk.
+	 * The geometry of the disk is read back from the superblock at the beginning of the file.
 	 * @param fileName		name of the file which contains the disk state.
 	 * @return				status: '0' for success (disk restored); '1' for success (disk initialized); '-1' for error.
 	 */
@@ -591,63 +789,76 @@ public class FileSystem {
 		
 		try {
 			if(!file.exists()) {
-				init();
+				// Open the disk over a new image file, formatting it
+				if(backend.isFileBacked()) {
+					Superblock newSuperblock = new Superblock(formatBlocks, formatBlockLength);
+					setDisk(openFileDisk(file, newSuperblock), newSuperblock, file.getCanonicalFile());
+					format();
+				} else {
+					init();
+				}
                 return 1;
 			}
 			
-			// Initialize the LDisk, which is empty
-			myDisk = new LDisk();
-
-			// Initialize the OFT and each of its entries (as empty)
-			OFT = new OpenFileTable[MAX_NUM_OPEN_FILES];
-			for (int i = 0; i < OFT.length; i++) {
-				OFT[i] = new OpenFileTable();
+			// Compressed images are always loaded into memory
+			if(CompressedImageDisk.isCompressedImage(file)) {
+				loadCompressedImage(file);
+				initializeOFT();
+				freeSpace = FreeSpaceMap.read(myDisk, superblock);
+				openDirectory();
+				return 0;
 			}
-
-			// Initialize the mask to work with the bitmap
-			initializeMask();
 			
-            // Use this for reading the data
-			PackableMemory block = new PackableMemory(LDisk.BLOCK_LENGTH);
-
-            FileInputStream inputStream = new FileInputStream(file);
-
-            // read fills buffer with data and returns
-            // the number of bytes read (which of course
-            // may be less than the buffer size, but
-            // it will never be more).
-            int total = 0;
-            int nRead = 0;
-            while((nRead = inputStream.read(block.mem)) != -1) {
-            	myDisk.write_block(total / LDisk.BLOCK_LENGTH, block);
-                // Convert to String so we can display it.
-                // Of course you wouldn't want to do this with
-                // a 'real' binary file.
-                //System.out.println(new String(buffer));
-                total += nRead;
-            }           
-            
-            // Always close files
-            inputStream.close();       
-        }
-        catch(FileNotFoundException ex) {
-        	return -1;
-        }
-        catch(IOException ex) {
-        	return -1;
+			// Read the geometry of the disk from its superblock
+			Superblock imageSuperblock = readSuperblock(file);
+			if(imageSuperblock == null) {
+				// Images saved before the superblock was introduced are imported into a new disk
+				return importLegacyImage(file) ? 0 : -1;
+			}
+			
+			// Finish writing the metadata changes left in the journal by a crash
+			replayJournal(file, imageSuperblock);
+			
+			// Images whose descriptors have block numbers instead of extents are imported into a new disk
+			if(imageSuperblock.version < Superblock.EXTENT_VERSION) {
+				return importOldImage(file, imageSuperblock) ? 0 : -1;
+			}
+			
+			if(backend.isFileBacked()) {
+				// A file-backed disk already holds the image, blocks will be read on first access.
+				// Its checksums would not be kept up to date, so they are removed
+				ImageChecksums.remove(file, imageSuperblock);
+				setDisk(openFileDisk(file, imageSuperblock), imageSuperblock, file.getCanonicalFile());
+			} else {
+				// Initialize the disk, which is empty, and either copy the image into it or load it on demand
+				BlockDevice disk = createMemoryDisk(imageSuperblock);
+				if(lazyLoad && file.length() >= imageSuperblock.diskSize()) {
+					disk = new LazyImageDisk(file, disk, imageSuperblock.dataStart);
+				} else {
+					loadImage(file, disk);
+					disk.clearDirtyBlocks();
+				}
+				setDisk(disk, imageSuperblock, null);
+				savedImage = file.getCanonicalFile();
+				if(verifyOnLoad && ImageChecksums.hasChecksums(file, imageSuperblock)) {
+					verifyImage();
+				}
+			}
         }
+        catch(IOException ex) {
+        	return -1;
+        }
+		catch(IllegalArgumentException ex) {
+			return -1;
+		}
+
+		// Initialize the OFT and each of its entries (as empty)
+		initializeOFT();
+
+		// Read the bitmap into memory
+		freeSpace = FreeSpaceMap.read(myDisk, superblock);
 		
-		// Open directory
-		PackableMemory temp_block = new PackableMemory(LDisk.BLOCK_LENGTH);
-		
-		// Read directory's length and first block number from the directory's FD
-		myDisk.read_block(1, temp_block);
-		int dir_length = temp_block.unpack(0);
-		int first_dir_block = temp_block.unpack(4);
-		
-		// Read directory's first block and open an entry in the OFT for it
-		myDisk.read_block(first_dir_block, temp_block);
-		OFT[0] = new OpenFileTable(temp_block, 0, dir_length);
+		openDirectory();
 		
 		return 0;
 	}
@@ -655,218 +866,1529 @@ public class FileSystem {
 	
 	/**
 	 * Saves the state of the disk into the given file, creating a new file if it doesn't exist.
+	 * If the file is the image the disk was loaded from or last saved to, only the blocks written since then
+	 * are rewritten in place.
 	 * @param fileName		name of the file which will contain the disk state.
-	 * @return				boolean status: 'true' for success; 'false' for error.
+	 * @return				boolean status: 'true' for success; 'false' for error (e.g. bytes written to an open file
+	 * 						were lost, since the disk had no room for them; the disk is still saved).
 	 */
 	public boolean save(String fileName){
-		// Close all the files before saving so that all changes in the buffer are recorded
-		for(int i = 0; i<OFT.length; i++){
-			close(i);
+		// Close all the files before saving so that all changes in the buffer are recorded.
+		// The directory is written by the operations on files, so the disk can still be used after saving it
+		boolean stored = true;
+		for(int i = 1; i<OFT.length; i++){
+			if(OFT[i].fileDescIndex != -1 && !close(i)){
+				stored = false;
+			}
 		}
 		
 		File file = new File(fileName);
  
         try {
-            // Put some bytes in a buffer so we can
-            // write them. Usually this would be
-            // image data or something. Or it might
-            // be unicode text.
-            //String bytes = "Hello theren";
-            //byte[] buffer = bytes.getBytes();
-        	if(!file.exists()) {
-                file.createNewFile();
-            }
+        	// Write the cached changes back to the disk
+        	syncDisk();
+        	pendingOperations = 0;
         	
-            FileOutputStream outputStream = new FileOutputStream(file);
-            
-            PackableMemory block = new PackableMemory(LDisk.BLOCK_LENGTH);
-            for(int i = 0; i<LDisk.NUM_BLOCKS; i++){
-            	myDisk.read_block(i, block);
-            	outputStream.write(block.mem);
-            }
-
-            // Always close files.
-            outputStream.close();
-            return true;
+        	// The image being verified may be the one written
+        	awaitVerification();
+        	
+        	// A file-backed disk only needs its changes forced into its own image file
+        	if(imageFile != null && imageFile.equals(file.getCanonicalFile())) {
+        		return stored;
+        	}
+        	
+        	BlockDevice device = myDisk.getDevice();
+        	File canonicalFile = file.getCanonicalFile();
+        	boolean incremental = !compressImages && canonicalFile.equals(savedImage) && ImageChecksums.hasImageLength(file, superblock);
+        	if(!incremental && lazyDisk != null) {
+        		// The image the disk is loaded from may be the one rewritten, so it is fully loaded first
+        		lazyDisk.loadAll();
+        	}
+        	if(compressImages) {
+        		// A compressed image is always rewritten as a whole
+        		CompressedImageDisk.write(file, device);
+        		device.clearDirtyBlocks();
+        		savedImage = null;
+        		return stored;
+        	}
+        	if(incremental) {
+        		saveDirtyBlocks(file, device);
+        	} else {
+        		saveImage(file, device);
+        	}
+        	
+        	// The image is now up to date with the disk
+        	device.clearDirtyBlocks();
+        	savedImage = canonicalFile;
+            return stored;
         }
         catch(IOException ex) {
             return false;
         }
+        catch(UncheckedIOException ex) {
+        	return false;
+        }
 	}
 	
 	
 	/**
-	 * Initializes the values of the mask that will be used to manipulate individual bits of the bitmap.
+	 * Sets whether init(String) loads the image of an in-memory disk on demand. If so, only the superblock, the bitmap, 
+	 * the file descriptors and the journal are loaded when the image is restored, and the rest of the blocks the first 
+	 * time they are accessed, so restoring an image doesn't depend on its size. The image file is kept open, and must
+	 * not be modified by anyone else, until every block has been loaded.
+	 * @param lazy		'true' to load images on demand (default); 'false' to load them fully when restored.
 	 */
-	private void initializeMask(){
-		MASK = new int[32];
-		MASK[31] = 1;
-		for(int i = 30; i>=0; i--){
-			MASK[i] = MASK[i+1] << 1;
-		}
+	public void setLazyLoad(boolean lazy){
+		lazyLoad = lazy;
+	}
+	
+	
+	/**
+	 * Sets whether init(String) verifies the checksums of the image of an in-memory disk in the background,
+	 * as verifyImage() does, when the image has checksums.
+	 * @param verify	'true' to verify images when restored; 'false' otherwise (default).
+	 */
+	public void setVerifyOnLoad(boolean verify){
+		verifyOnLoad = verify;
 	}
 	
 	
 	/**
-	 * Reads the directory to find if the given file name is unique or not, that is, if it is already used by another file.
-	 * @param file_name		name of the file to be checked for uniqueness.
-	 * @return				'true' if it does already exist in the directory; 'false' if not.
+	 * Verifies, in the background, the checksum of every block of the image the in-memory disk was loaded from or last
+	 * saved to. The blocks are verified in parallel across the available cores, while the disk can still be used.
+	 * Saving the disk waits for the verification to finish.
+	 * @return		future holding the indexes of the corrupt blocks; failed if there is no image or it has no checksums.
 	 */
-	private boolean fileNameExists(String file_name){
-		boolean exists = false;
-		lseek(0, 0);
-		PackableMemory temp_slot = new PackableMemory(SLOT_SIZE); 	// Block to work with slots
+	public CompletableFuture<BitSet> verifyImage(){
+		File image = savedImage;
+		Superblock imageSuperblock = superblock;
+		if(image == null) {
+			return CompletableFuture.failedFuture(new IOException("The disk has no image to verify"));
+		}
 		
-		// Traverse the directory looking for the file name
-		for(int i = 0; i<OFT[0].length && !exists; i = i+SLOT_SIZE){
-			read(0, temp_slot.mem, SLOT_SIZE);
-			// Obtain the name from each slot
-			char [] nameChar = new char [4];
-			for(int j = 0; j<4; j++){
-				nameChar[j] = (char) temp_slot.mem[j];
+		verification = CompletableFuture.supplyAsync(() -> {
+			try {
+				return ImageChecksums.verify(image, imageSuperblock);
 			}
-			String name = new String(nameChar);
-			// Check if it matches
-			if(name.trim().equals(file_name)){
-				exists = true;
+			catch(IOException ex) {
+				throw new UncheckedIOException(ex);
 			}
+		});
+		return verification;
+	}
+	
+	
+	/**
+	 * Returns the last verification of the checksums of an image, started by verifyImage() or by init(String).
+	 * @return		future holding the indexes of the corrupt blocks; null if no verification has been started.
+	 */
+	public CompletableFuture<BitSet> getVerification(){
+		return verification;
+	}
+	
+	
+	/**
+	 * Sets whether save() writes images in the compressed format, where chunks of blocks are compressed and chunks 
+	 * of zeros are not stored at all. Compressed images are always loaded into memory by init(String), and rewritten
+	 * as a whole when saved. Restoring a compressed image enables the compressed format, so it is saved back compressed.
+	 * @param compress		'true' to save compressed images; 'false' to save plain images.
+	 */
+	public void setCompressImages(boolean compress){
+		compressImages = compress;
+	}
+	
+	
+	/**
+	 * Formats the current LDisk, setting up the OFT, the superblock, the bitmap, the file descriptors and the directory.
+	 */
+	private void format() {
+		// Initialize the OFT and each of its entries (as empty)
+		initializeOFT();
+
+		// Initialize bitmap, with all blocks free. It is written back to the disk with the rest of the metadata
+		freeSpace = new FreeSpaceMap(superblock);
+
+		// Write the superblock into block 0
+		PackableMemory temp_block = new PackableMemory(superblock.blockLength); // Block to read/write from/to the LDisk
+		superblock.write(temp_block);
+		myDisk.write_metadata_block(0, temp_block);
+		
+		// Mark the superblock, bitmap, descriptor and journal blocks as used by setting their bit to 1
+		for (int i = 0; i < superblock.dataStart; i++) {
+			freeSpace.set(i, true);
+		}
+
+		// Initialize file descriptors, all empty (length equal to -1 and no extents)
+		// Block containing only empty FD
+		PackableMemory temp_desc = new PackableMemory(superblock.blockLength);
+		fdScratch.reset(-1);
+		for (int i = 0; i < superblock.blockLength; i = i + FD_LENGTH) {
+			fdScratch.write(temp_desc, i);
+		}
+		// Copy the block with empty FD to all the blocks which contain FD
+		for (int i = 0; i < superblock.descBlocks; i++) {
+			myDisk.write_metadata_block(superblock.descStart + i, temp_desc); 
+		}
+
+		// Initialize directory
+		// Set length of FD 0 to 0, as a directory: an empty directory has no blocks until its first file is created
+		setDescriptorTable(new DescriptorTable(superblock));
+		descTable.set(0, true);
+		fdScratch.reset(0);
+		fdScratch.directory = true;
+		writeDescriptor(0, fdScratch);
+		OFT[0].assign(0, 0);
+		setRootDirectory(new Directory(this, myDisk, 0, new int[0]));
+		
+		// A new image file is only valid once it holds the whole format
+		if(imageFile != null) {
+			syncDisk();
 		}
-		return exists;
 	}
 	
 	
 	/**
-	 * Finds the file descriptor for a file, given its name
-	 * @param file_name		name of the file for which the file descriptor will be seek. Must be at most four chars.
-	 * @return				the file descriptor index; -1 if not found
+	 * Waits for the last verification of the checksums of an image to finish, whatever its result.
 	 */
-	private int findFileDesc(String file_name){
-		int file_desc = -1;
-		
-		// Go to the beginning of the directory
-		lseek(0, 0);
-		PackableMemory temp_slot = new PackableMemory(SLOT_SIZE);
-		for (int i = 0; i < OFT[0].length; i = i + SLOT_SIZE) { // Iterate over all the slots
-			read(0, temp_slot.mem, SLOT_SIZE); // Read a slot
-			
-			// Read the name from the slot
-			char [] nameChar = new char [4];
-			for(int j = 0; j<4; j++){
-				nameChar[j] = (char) temp_slot.mem[j];
+	private void awaitVerification() {
+		if(verification != null) {
+			try {
+				verification.join();
+			}
+			catch(CompletionException ex) {
+				// The result of the verification is reported through its future
 			}
+		}
+	}
+	
+	
+	/**
+	 * Writes every block of a disk into an image file, creating the file if it doesn't exist.
+	 * The checksums of the blocks are written in a trailer after them.
+	 * @param file			image file.
+	 * @param device		disk to be saved, behind the cache, so its blocks don't evict the cached blocks.
+	 * @throws IOException	if the file cannot be written.
+	 */
+	private void saveImage(File file, BlockDevice device) throws IOException {
+		if(!file.exists()) {
+            file.createNewFile();
+        }
+    	
+        FileOutputStream outputStream = new FileOutputStream(file);
+        try {
+        	// Read the blocks in chunks of consecutive blocks that are transferred at once
+	        int chunkBlocks = Math.max(1, Math.min(IMAGE_CHUNK_SIZE / superblock.blockLength, superblock.numBlocks));
+	        byte [] chunk = new byte[chunkBlocks * superblock.blockLength];
+	        int [] checksums = new int[superblock.numBlocks];
+	        for(int i = 0; i<superblock.numBlocks; i = i + chunkBlocks){
+	        	int [] blockIds = blockRange(i, Math.min(chunkBlocks, superblock.numBlocks - i));
+	        	device.read_blocks(blockIds, chunk, 0);
+	        	outputStream.write(chunk, 0, blockIds.length * superblock.blockLength);
+	        	for(int j = 0; j<blockIds.length; j++){
+	        		checksums[i + j] = ImageChecksums.checksum(chunk, j * superblock.blockLength, superblock.blockLength);
+	        	}
+	        }
+	        outputStream.write(ImageChecksums.trailer(checksums));
+        } finally {
+        	// Always close files.
+        	outputStream.close();
+        }
+	}
+	
+	
+	/**
+	 * Rewrites in place, in an image file up to date with the disk except for its dirty blocks, only the dirty blocks.
+	 * Each run of consecutive dirty blocks is written with a single positional write. The dirty data blocks are written
+	 * first, and then the dirty metadata blocks are written through the journal of the image, so a crash while saving
+	 * never leaves the metadata of the image half written. Finally the checksums of the blocks are updated, if the image has them.
+	 * @param file			image file.
+	 * @param device		disk to be saved, behind the cache, so its blocks don't evict the cached blocks.
+	 * @throws IOException	if the file cannot be written.
+	 */
+	private void saveDirtyBlocks(File file, BlockDevice device) throws IOException {
+		BitSet dirtyBlocks = device.getDirtyBlocks();
+		BitSet dirtyMetadata = metadataBlocks(device);
+		dirtyMetadata.and(dirtyBlocks);
+		BitSet dirtyData = (BitSet) dirtyBlocks.clone();
+		dirtyData.andNot(dirtyMetadata);
+		
+		FileChannelDisk image = new FileChannelDisk(file, superblock.numBlocks, superblock.blockLength);
+		try {
+			copyBlocks(device, image, dirtyData);
+			image.force();
 			
-			String name = new String(nameChar);
+			if(superblock.journalBlocks == 0) {
+				copyBlocks(device, image, dirtyMetadata);
+				image.force();
+				return;
+			}
 			
-			// Find the name
-			if (name.trim().equals(file_name) ){
-				file_desc = temp_slot.unpack(4); // Record file descriptor
-				break;
+			// Commit the metadata blocks to the journal, in as few transactions as it can hold, before writing them
+			Journal journal = new Journal(image, superblock.journalStart, superblock.journalBlocks);
+			int [] metadata = dirtyMetadata.stream().toArray();
+			int capacity = journal.capacity();
+			for(int k = 0; k<metadata.length; k = k + capacity) {
+				int [] blockIds = Arrays.copyOfRange(metadata, k, Math.min(metadata.length, k + capacity));
+				byte [] images = new byte[blockIds.length * superblock.blockLength];
+				device.read_blocks(blockIds, images, 0);
+				journal.commit(blockIds, images, 0);
+				image.write_blocks(blockIds, images, 0);
+				image.force();
+				journal.clear();
 			}
-		}	
+			
+			// The journal blocks were only written to the image
+			BitSet journalBlocks = new BitSet(superblock.numBlocks);
+			journalBlocks.set(superblock.journalStart, superblock.journalStart + superblock.journalBlocks);
+			ImageChecksums.update(file, superblock, journalBlocks, image);
+		}
+		catch(UncheckedIOException ex) {
+			throw ex.getCause();
+		} finally {
+			image.close();
+		}
 		
-		return file_desc;
+		ImageChecksums.update(file, superblock, dirtyBlocks, device);
 	}
 	
 	
 	/**
-	 * Finds and frees the file descriptor for a file, given its name.
-	 * @param file_name		name of the file for which the file descriptor will be freed. Must be at most four chars.
+	 * Copies a set of blocks from a disk to another one with the same geometry, in chunks of consecutive blocks.
+	 * @param source		disk the blocks are read from.
+	 * @param target		disk the blocks are written to.
+	 * @param blocks		indexes of the blocks to be copied.
 	 */
-	private void freeFileDesc(String file_name){
-		// Go to the beginning of the directory
-		lseek(0, 0);
-		PackableMemory temp_slot = new PackableMemory(SLOT_SIZE);
-		for (int i = 0; i < OFT[0].length; i = i + SLOT_SIZE) { // Iterate over all the slots
-			read(0, temp_slot.mem, SLOT_SIZE); // Read a slot
+	private void copyBlocks(BlockDevice source, BlockDevice target, BitSet blocks) {
+		int chunkBlocks = Math.max(1, Math.min(IMAGE_CHUNK_SIZE / superblock.blockLength, superblock.numBlocks));
+        byte [] chunk = new byte[chunkBlocks * superblock.blockLength];
+        
+		for(int i = blocks.nextSetBit(0); i >= 0; ) {
+			// Run of blocks, of at most one chunk
+			int end = Math.min(blocks.nextClearBit(i), i + chunkBlocks);
+			int [] blockIds = blockRange(i, end - i);
+			source.read_blocks(blockIds, chunk, 0);
+			target.write_blocks(blockIds, chunk, 0);
+			i = blocks.nextSetBit(end);
+		}
+	}
+	
+	
+	/**
+	 * Finds the metadata blocks of a disk: the superblock, the bitmap, the file descriptors, the extent and index blocks
+	 * of every file and the blocks of the directories.
+	 * @param device		disk, behind the cache and up to date with it.
+	 * @return				indexes of the metadata blocks.
+	 */
+	private BitSet metadataBlocks(BlockDevice device) {
+		BitSet metadata = new BitSet(superblock.numBlocks);
+		metadata.set(0, superblock.journalStart);
+		
+		PackableMemory temp_block = new PackableMemory(superblock.blockLength);
+		FileDescriptor fd = new FileDescriptor();
+		int block = -1;
+		for(int i = 0; i<descTable.getNumDescriptors(); i++) {
+			if(descTable.blockOf(i) != block) {
+				block = descTable.blockOf(i);
+				device.read_block(block, temp_block);
+			}
+			fd.read(temp_block, descTable.offsetOf(i));
+			if(fd.length != -1) {
+				// The blocks of the directories are metadata too (the root may predate the directory flag)
+				fd.markBlocks(device, metadata, fd.directory || i == 0);
+			}
+		}
+		descTable.markBlocks(metadata);
+		return metadata;
+	}
+	
+	
+	/**
+	 * Opens the directory of a restored LDisk, building the table of its buckets, and reserves the entry 0 of the OFT
+	 * for it. The directory of fixed slots of an image of version 3 is rewritten as a hash table first.
+	 */
+	private void openDirectory() {
+		setDescriptorTable(DescriptorTable.read(myDisk, superblock));
+		OFT[0].assign(0, 0);
+		if(superblock.version < Superblock.DIRECTORY_VERSION){
+			upgradeDirectory();
+			return;
+		}
+		setRootDirectory(new Directory(this, myDisk, 0, directoryBlocks(0)));
+	}
+	
+	
+	/**
+	 * Initializes the OFT and each of its entries (as empty).
+	 */
+	private void initializeOFT() {
+		OFT = new OpenFileTable[MAX_NUM_OPEN_FILES];
+		for (int i = 0; i < OFT.length; i++) {
+			OFT[i] = new OpenFileTable(newBuffer());
+		}
+		pendingBlocks = new PendingBlocks(delayedBlocks, superblock.blockLength, backend == BlockDevice.Backend.DIRECT);
+	}
+	
+	
+	/**
+	 * Reads the superblock from the beginning of an image file.
+	 * @param file			image file.
+	 * @return				the superblock of the image; null if the image does not start with a superblock.
+	 * @throws IOException	if the file cannot be read.
+	 */
+	private Superblock readSuperblock(File file) throws IOException {
+		PackableMemory header = new PackableMemory(Superblock.MIN_BLOCK_LENGTH);
+		FileInputStream inputStream = new FileInputStream(file);
+		try {
+			if(inputStream.readNBytes(header.mem, 0, header.size) < header.size) {
+				return null;
+			}
+		} finally {
+			inputStream.close();
+		}
+		return Superblock.read(header);
+	}
+	
+	
+	/**
+	 * Loads a compressed image into a new in-memory disk (on the heap for file-backed backends), decompressing it chunk by chunk.
+	 * @param file			compressed image file.
+	 * @throws IOException	if the file cannot be read or is corrupt.
+	 */
+	private void loadCompressedImage(File file) throws IOException {
+		CompressedImageDisk image = new CompressedImageDisk(file);
+		try {
+			PackableMemory temp_block = new PackableMemory(image.getBlockLength());
+			image.read_block(0, temp_block);
+			Superblock imageSuperblock = Superblock.read(temp_block);
+			if(imageSuperblock == null || imageSuperblock.numBlocks != image.getNumBlocks()
+					|| imageSuperblock.blockLength != image.getBlockLength()) {
+				throw new IOException("Compressed image without a valid superblock: " + file);
+			}
 			
-			// Read the name from the slot
-			char [] nameChar = new char [4];
-			for(int j = 0; j<4; j++){
-				nameChar[j] = (char) temp_slot.mem[j];
+			// Images whose descriptors have block numbers instead of extents are imported into a new disk
+			if(imageSuperblock.version < Superblock.EXTENT_VERSION) {
+				if(!importFiles(image, imageSuperblock.descStart, new Superblock(imageSuperblock.numBlocks, imageSuperblock.blockLength))) {
+					throw new IOException("Compressed image whose files cannot be imported: " + file);
+				}
+				compressImages = true;
+				return;
 			}
 			
-			String name = new String(nameChar);
+			BlockDevice disk = createMemoryDisk(imageSuperblock);
+			BitSet allBlocks = new BitSet(imageSuperblock.numBlocks);
+			allBlocks.set(0, imageSuperblock.numBlocks);
+			setDisk(disk, imageSuperblock, null);
+			copyBlocks(image, disk, allBlocks);
+			disk.clearDirtyBlocks();
+			compressImages = true;
+		}
+		catch(UncheckedIOException ex) {
+			throw ex.getCause();
+		} finally {
+			image.close();
+		}
+	}
+	
+	
+	/**
+	 * Copies an image file into a disk, block by block.
+	 * @param file			image file.
+	 * @param disk			disk with the same geometry as the image.
+	 * @throws IOException	if the file cannot be read.
+	 */
+	private void loadImage(File file, BlockDevice disk) throws IOException {
+		int blockLength = disk.getBlockLength();
+		int chunkBlocks = Math.max(1, Math.min(IMAGE_CHUNK_SIZE / blockLength, disk.getNumBlocks()));
+		byte [] chunk = new byte[chunkBlocks * blockLength];
+		InputStream inputStream = new FileInputStream(file);
+		try {
+			// Copy the image in chunks of consecutive blocks that are transferred at once.
+			// The last block may be shorter in a truncated image, the rest of it is left empty
+			for(int i = 0; i<disk.getNumBlocks(); i = i + chunkBlocks) {
+				int [] blockIds = blockRange(i, Math.min(chunkBlocks, disk.getNumBlocks() - i));
+				int nRead = inputStream.readNBytes(chunk, 0, blockIds.length * blockLength);
+				if(nRead <= 0) {
+					break;
+				}
+				Arrays.fill(chunk, nRead, chunk.length, (byte) 0);
+				disk.write_blocks(Arrays.copyOf(blockIds, (nRead + blockLength - 1) / blockLength), chunk, 0);
+			}
+		} finally {
+			inputStream.close();
+		}
+	}
+	
+	
+	/**
+	 * Builds an array with the indexes of a range of consecutive blocks.
+	 * @param first		index of the first block.
+	 * @param count		number of blocks.
+	 * @return			indexes of the blocks.
+	 */
+	private static int [] blockRange(int first, int count) {
+		int [] blockIds = new int[count];
+		for(int i = 0; i<count; i++) {
+			blockIds[i] = first + i;
+		}
+		return blockIds;
+	}
+	
+	
+	/**
+	 * Allocates an empty buffer of one block for an entry of the OFT, off-heap if the disk is built with the DIRECT backend.
+	 * @return		the new buffer.
+	 */
+	private PackableMemory newBuffer() {
+		return PackableMemory.allocate(superblock.blockLength, backend == BlockDevice.Backend.DIRECT);
+	}
+	
+	
+	/**
+	 * Creates an empty in-memory disk with the given geometry, using the backend of the FileSystem
+	 * (the heap for file-backed backends).
+	 * @param newSuperblock		superblock describing the geometry of the disk.
+	 * @return					the new disk.
+	 */
+	private BlockDevice createMemoryDisk(Superblock newSuperblock) {
+		if(backend == BlockDevice.Backend.DIRECT) {
+			return new DirectDisk(newSuperblock.numBlocks, newSuperblock.blockLength);
+		}
+		return new LDisk(newSuperblock.numBlocks, newSuperblock.blockLength);
+	}
+	
+	
+	/**
+	 * Opens a disk over an image file, using the file-backed backend of the FileSystem.
+	 * @param file				image file.
+	 * @param newSuperblock		superblock describing the geometry of the disk.
+	 * @return					the disk.
+	 * @throws IOException		if the file cannot be opened.
+	 */
+	private BlockDevice openFileDisk(File file, Superblock newSuperblock) throws IOException {
+		if(backend == BlockDevice.Backend.MAPPED) {
+			return new MappedDisk(file, newSuperblock.numBlocks, newSuperblock.blockLength);
+		}
+		return new FileChannelDisk(file, newSuperblock.numBlocks, newSuperblock.blockLength);
+	}
+	
+	
+	/**
+	 * Replaces the disk of the FileSystem, releasing the previous one, and puts a new cache in front of it,
+	 * behind which snapshots are taken.
+	 * The metadata blocks of a disk working over an image file are written through its journal.
+	 * @param disk				new disk.
+	 * @param newSuperblock		superblock describing the geometry and layout of the new disk.
+	 * @param image				image file the new disk works over; null if it lives in memory.
+	 */
+	private void setDisk(BlockDevice disk, Superblock newSuperblock, File image) {
+		if(myDisk != null) {
+			myDisk.close();
+		}
+		cowDisk = new CowDisk(disk);
+		myDisk = new BlockCache(cowDisk, cacheCapacity, backend == BlockDevice.Backend.DIRECT);
+		lazyDisk = disk instanceof LazyImageDisk ? (LazyImageDisk) disk : null;
+		journalCapacity = 0;
+		if(image != null && newSuperblock.journalBlocks > 0) {
+			Journal journal = new Journal(cowDisk, newSuperblock.journalStart, newSuperblock.journalBlocks);
+			myDisk.setJournal(journal);
+			journalCapacity = journal.capacity();
+		}
+		readOnly = false;
+		superblock = newSuperblock;
+		zeroBlock = new PackableMemory(superblock.blockLength);
+		inlineBlock = new PackableMemory(superblock.blockLength);
+		imageFile = image;
+		savedImage = null;
+		pendingOperations = 0;
+	}
+	
+	
+	/**
+	 * Replays the journal of an image file, writing the metadata blocks of a transaction committed to it before a crash
+	 * to their own place.
+	 * @param file				image file.
+	 * @param imageSuperblock	superblock of the image.
+	 * @throws IOException		if the file cannot be opened.
+	 */
+	private void replayJournal(File file, Superblock imageSuperblock) throws IOException {
+		if(imageSuperblock.journalBlocks == 0 || file.length() < imageSuperblock.diskSize()) {
+			return;
+		}
+		
+		FileChannelDisk disk = new FileChannelDisk(file, imageSuperblock.numBlocks, imageSuperblock.blockLength);
+		try {
+			int [] replayed = new Journal(disk, imageSuperblock.journalStart, imageSuperblock.journalBlocks).replay();
 			
-			// Find the name
-			if (name.trim().equals(file_name) ){
-				// 4. Free file descriptor
-				temp_slot.pack(-1, 4);	
-				lseek(0, i); // Beginning of slot to write
-				write(0, temp_slot.mem, SLOT_SIZE); // Overwrite slot with new info.
-				
-				break;
+			// The checksums of the replayed blocks, and of the journal, are brought up to date
+			if(replayed.length > 0) {
+				BitSet blocks = new BitSet(imageSuperblock.numBlocks);
+				for(int i = 0; i<replayed.length; i++) {
+					blocks.set(replayed[i]);
+				}
+				blocks.set(imageSuperblock.journalStart, imageSuperblock.journalStart + imageSuperblock.journalBlocks);
+				ImageChecksums.update(file, imageSuperblock, blocks, disk);
 			}
-		}	
+		} finally {
+			disk.close();
+		}
 	}
 	
 	
 	/**
-	 * Writes the buffer of an open file, given its OFT index, into the LDisk.
-	 * @param index		index of the file in the OFT.
+	 * Writes the descriptors and the bitmap blocks changed in memory into the cache, and then every change held by the cache
+	 * back to the disk, committing the metadata blocks through the journal (if there is one).
 	 */
-	private void writeBufferToDisk(int index){
-		// Write buffer to disk
-		int current_block = OFT[index].currentPosition/LDisk.BLOCK_LENGTH + 1;
-		// In case we reached the last position
-		if(current_block >= DISK_MAP){
-			current_block = DISK_MAP;
+	private void syncDisk() {
+		descriptors.writeBack();
+		freeSpace.writeBack(myDisk);
+		myDisk.sync();
+	}
+	
+	
+	/**
+	 * Ends an operation which changed the metadata of the disk. Once a group of operations has ended, their changes
+	 * are committed to the journal of a file-backed disk at once.
+	 * The group is committed earlier if the journal could not hold the changes of another operation with its changes.
+	 * The disks in memory only reach their image file when saved, so their operations are not grouped.
+	 */
+	private void endOperation() {
+		if(imageFile == null) {
+			return;
+		}
+		
+		pendingOperations++;
+		if(pendingOperations >= groupCommit) {
+			syncDisk();
+			pendingOperations = 0;
+		}
+		checkJournal();
+	}
+	
+	
+	/**
+	 * Commits the metadata changes made so far to the journal of a file-backed disk if the journal could not hold them
+	 * together with the changes of one more step of an operation, so every commit fits in a single transaction.
+	 * Called at the end of each operation, and within the operations which can change any number of metadata blocks
+	 * (before each block added to a directory, and each run of blocks added to a file), where the metadata of the disk
+	 * is consistent. A directory being upgraded is only consistent once the upgrade ends, so it is committed at once.
+	 */
+	private void checkJournal() {
+		if(journalCapacity == 0 || superblock.version < Superblock.DIRECTORY_VERSION) {
+			return;
 		}
 		
-		PackableMemory temp_block = new PackableMemory(LDisk.BLOCK_LENGTH);
-		myDisk.read_block(OFT[index].fileDescIndex/NUM_FD_PER_BLOCK + 1, temp_block);
+		int pending = myDisk.getDirtyMetadata() + descriptors.getDirtyEntries() + freeSpace.getDirtyBlocks();
+		if(pending + stepMetadata() > journalCapacity) {
+			syncDisk();
+			pendingOperations = 0;
+		}
+	}
+	
+	
+	/**
+	 * Returns the largest number of metadata blocks one step of an operation changes: the superblock, every bitmap
+	 * block, the descriptor blocks of a file and of its directory, a new descriptor block with its index block and the
+	 * block linking it, two buckets of a directory, and the blocks of a branch of a tree of extents, old and new.
+	 * @return		number of metadata blocks.
+	 */
+	private int stepMetadata() {
+		return 1 + superblock.bitmapBlocks + 2 + 3 + 2 + (2 * FileDescriptor.MAX_DEPTH + 1);
+	}
+	
+	
+	/**
+	 * Imports an image saved before the superblock was introduced (64 blocks of 64 bytes, with the bitmap in block 0
+	 * and the file descriptors in blocks 1...6) into a new in-memory disk with the default geometry,
+	 * copying every file of its directory.
+	 * @param file			legacy image file.
+	 * @return				'true' if the image was imported; 'false' if it isn't a legacy image.
+	 * @throws IOException	if the file cannot be read.
+	 */
+	private boolean importLegacyImage(File file) throws IOException {
+		if(backend.isFileBacked() || file.length() != (long) LDisk.NUM_BLOCKS*LDisk.BLOCK_LENGTH) {
+			return false;
+		}
 		
-		int current_block_num = temp_block.unpack(OFT[index].fileDescIndex%NUM_FD_PER_BLOCK*FD_LENGTH + current_block*4);
+		LDisk legacyDisk = new LDisk();
+		loadImage(file, legacyDisk);
+		importFiles(legacyDisk, 1, new Superblock(LDisk.NUM_BLOCKS, LDisk.BLOCK_LENGTH));
+		return true;
+	}
+	
+	
+	/**
+	 * Imports an image of an older version of the superblock, whose file descriptors have 3 block numbers instead of
+	 * extents, into a new in-memory disk with the same geometry, copying every file of its directory.
+	 * @param file				image file.
+	 * @param imageSuperblock	superblock of the image.
+	 * @return					'true' if the image was imported; 'false' if the disk cannot be imported with the backend
+	 * 							of the FileSystem or some file could not be copied.
+	 * @throws IOException		if the file cannot be read.
+	 */
+	private boolean importOldImage(File file, Superblock imageSuperblock) throws IOException {
+		if(backend.isFileBacked()) {
+			return false;
+		}
 		
-		// Allocate new block if block does not exist
-		if(current_block_num == -1){
-			// Allocate a new block through the bitmap
-			myDisk.read_block(0, temp_block);
-			boolean found = false;
-			for(int j = 0; j<2 && !found; j++){
-				for(int k = 0; k<32 && !found; k++){
-					int temp_BM = temp_block.unpack(j*4);
-					int test = temp_BM & MASK[k];
-					if(test == 0){
-						// Set the bit of this block to 1, as it will be used
-						temp_BM = temp_BM | MASK[k];
-						temp_block.pack(temp_BM, j*4);
-						myDisk.write_block(0, temp_block);
-						// Update the current block number to the new block found
-						current_block_num = j*32+k;
-						found = true;
-					}
-				}
+		LDisk oldDisk = new LDisk(imageSuperblock.numBlocks, imageSuperblock.blockLength);
+		loadImage(file, oldDisk);
+		return importFiles(oldDisk, imageSuperblock.descStart, new Superblock(imageSuperblock.numBlocks, imageSuperblock.blockLength));
+	}
+	
+	
+	/**
+	 * Formats a new in-memory disk and copies into it every file of a disk whose file descriptors have 3 block numbers
+	 * (the legacy images and the images of the older versions of the superblock).
+	 * @param oldDisk			disk holding the files.
+	 * @param oldDescStart		first block of the file descriptors of the disk.
+	 * @param newSuperblock		superblock of the new disk.
+	 * @return					'true' if every file was copied; 'false' otherwise.
+	 * @throws IOException		if the name of a file cannot be decoded.
+	 */
+	private boolean importFiles(BlockDevice oldDisk, int oldDescStart, Superblock newSuperblock) throws IOException {
+		// Format an empty disk
+		setDisk(createMemoryDisk(newSuperblock), newSuperblock, null);
+		format();
+		
+		// Copy each file of the old directory into the new disk
+		boolean copied = true;
+		byte [] directory = readLegacyFile(oldDisk, oldDescStart, 0);
+		PackableMemory temp_slot = new PackableMemory(SLOT_SIZE);
+		for(int i = 0; i + SLOT_SIZE <= directory.length; i = i + SLOT_SIZE) {
+			System.arraycopy(directory, i, temp_slot.mem, 0, SLOT_SIZE);
+			String name = new String(temp_slot.mem, 0, LEGACY_MAX_FILE_NAME, "ISO-8859-1").trim();
+			int file_desc = temp_slot.unpack(4);
+			if(file_desc > 0 && !name.isEmpty()) {
+				byte [] contents = readLegacyFile(oldDisk, oldDescStart, file_desc);
+				int index = create(name) ? open(name) : -1;
+				copied &= index != -1 && write(index, contents, contents.length) == contents.length;
+				close(index);
 			}
-			// Update file descriptor with new block number
-			myDisk.read_block(OFT[index].fileDescIndex/NUM_FD_PER_BLOCK + 1, temp_block);
-			temp_block.pack(current_block_num, OFT[index].fileDescIndex%NUM_FD_PER_BLOCK*FD_LENGTH + current_block*4);
-			myDisk.write_block(OFT[index].fileDescIndex/NUM_FD_PER_BLOCK + 1, temp_block);
 		}
-		// Write the buffer to disk
-		myDisk.write_block(current_block_num, OFT[index].buffer);
+		
+		// The bitmap of the new disk only reaches it when synced
+		sync();
+		return copied;
 	}
 	
 	
 	/**
-	 * Reads the next block of an open file, given its OFT index, and copies it into the OFT buffer.
-	 * @param index		index of the file in the OFT.
+	 * Reads the whole contents of a file from a disk whose file descriptors have 3 block numbers, given its file descriptor index.
+	 * @param oldDisk		disk holding the file.
+	 * @param oldDescStart	first block of the file descriptors of the disk.
+	 * @param file_desc		file descriptor index of the file.
+	 * @return				contents of the file.
 	 */
-	private void readNextBlockIntoBuffer(int index){
-		// Read the next block checking whether a next block does exist
-		// Find the current block number (relative to the buffer) and read the block containing the file descriptor of that file
-		int current_block = OFT[index].currentPosition/LDisk.BLOCK_LENGTH + 1;
-		PackableMemory temp_block = new PackableMemory(LDisk.BLOCK_LENGTH);
-		myDisk.read_block(OFT[index].fileDescIndex/NUM_FD_PER_BLOCK + 1, temp_block);
-		
-		// Only if there is a next block, we proceed to read it
-		if(current_block < DISK_MAP){
-			// Find the next block number and read it to the buffer if it exists or put an empty block in the buffer otherwise
-			int next_block_num = temp_block.unpack(OFT[index].fileDescIndex%NUM_FD_PER_BLOCK*FD_LENGTH + current_block*4 + 4);
-			if(next_block_num == -1){
-				OFT[index].buffer = new PackableMemory(LDisk.BLOCK_LENGTH);
-			} else {
-				myDisk.read_block(next_block_num, OFT[index].buffer);
+	private byte [] readLegacyFile(BlockDevice oldDisk, int oldDescStart, int file_desc) {
+		int blockLength = oldDisk.getBlockLength();
+		int descPerBlock = blockLength / LEGACY_FD_LENGTH;
+		int offset = file_desc % descPerBlock * LEGACY_FD_LENGTH;
+		PackableMemory temp_block = new PackableMemory(blockLength);
+		oldDisk.read_block(oldDescStart + file_desc / descPerBlock, temp_block);
+		int length = Math.max(0, Math.min(temp_block.unpack(offset), blockLength*DISK_MAP));
+		
+		byte [] contents = new byte [length];
+		PackableMemory data_block = new PackableMemory(blockLength);
+		for(int i = 0; i*blockLength < length; i++) {
+			int block_num = temp_block.unpack(offset + 4 + i*4);
+			if(block_num > 0 && block_num < oldDisk.getNumBlocks()) {
+				oldDisk.read_block(block_num, data_block);
+				System.arraycopy(data_block.mem, 0, contents, i*blockLength, Math.min(blockLength, length - i*blockLength));
 			}
 		}
+		return contents;
+	}
+	
+	
+	/**
+	 * Returns the descriptor of a file, as held by the descriptor cache.
+	 * @param fileDescIndex		file descriptor index.
+	 * @return					the descriptor.
+	 */
+	private FileDescriptor readDescriptor(int fileDescIndex){
+		return descriptors.get(fileDescIndex);
+	}
+	
+	
+	/**
+	 * Stores the descriptor of a file in the descriptor cache, which writes it into its block when the file is closed
+	 * or the disk is synced.
+	 * @param fileDescIndex		file descriptor index.
+	 * @param fd				the descriptor.
+	 */
+	private void writeDescriptor(int fileDescIndex, FileDescriptor fd){
+		descriptors.put(fileDescIndex, fd);
+	}
+	
+	
+	/**
+	 * Finds the block of a file holding a position, which is the block held by the OFT buffer when the cursor is there.
+	 * The position just past the maximum file size is held by the last block.
+	 * @param pos		position in the file.
+	 * @return			block of the file.
+	 */
+	private int bufferBlock(int pos){
+		return Math.min(pos, MAX_FILE_LENGTH - 1) / superblock.blockLength;
+	}
+	
+	
+	/**
+	 * Creates a new file or directory in the LDisk, given its path, as long as there are available file descriptors.
+	 * @param path			path of the file.
+	 * @param isDirectory	'true' to create an empty directory; 'false' to create an empty file.
+	 * @return				boolean status: 'true' for success; 'false' for error.
+	 */
+	private boolean createEntry(String path, boolean isDirectory){
+		// Check the disk can be written
+		if (readOnly){
+			return false;
+		}
+		
+		// Check the directories of the path exist, and the file name (error if the directory cannot hold it)
+		int dir_desc = resolveParent(path);
+		if(dir_desc == -1){
+			return false;
+		}
+		String file_name = path.substring(nameStart);
+		if(!Directory.isValidName(file_name, superblock.blockLength)){
+			return false;
+		}
+		
+		// Check file name uniqueness (error if not unique)
+		if (dentries.getFileDesc(lookupEntry(dir_desc, path, nameStart, path.length())) != -1){
+			return false;
+		}
+		
+		// 1. Find a free file descriptor. If there are no free descriptors, there is an error
+		int free_desc_index = allocateDescriptor();
+		if(free_desc_index == -1){
+			return false;
+		}
+		
+		// 2. Add the entry of the file to the directory. If the directory cannot grow, the descriptor is freed again
+		if (!loadDirectory(dir_desc).insert(file_name, free_desc_index)){
+			freeDescriptor(free_desc_index);
+			return false;
+		}
+		
+		// 3. Update length to 0, clearing the extents left by a destroyed file. The descriptor is only written once the
+		// directory holds the file, since the directory may be committed to the journal while it grows
+		fdScratch.reset(0);
+		fdScratch.directory = isDirectory;
+		writeDescriptor(free_desc_index, fdScratch);
+		dentries.put(dir_desc, file_name, free_desc_index, isDirectory);
+		
+		endOperation();
+		return true;
+	}
+	
+	
+	/**
+	 * Finds a free file descriptor, and marks it as used for a new file. If every descriptor is used, the descriptor
+	 * table grows by a block first.
+	 * @return				the file descriptor index; -1 if there are no free descriptors and the table cannot grow.
+	 */
+	private int allocateDescriptor(){
+		int free_desc_index = descTable.allocate();
+		if(free_desc_index == -1 && descTable.grow(myDisk, freeSpace)){
+			directories = Arrays.copyOf(directories, descTable.getNumDescriptors());
+			free_desc_index = descTable.allocate();
+		}
+		return free_desc_index;
+	}
+	
+	
+	/**
+	 * Removes a file or an empty directory from its directory, frees its blocks and frees its file descriptor.
+	 * @param dir_desc		file descriptor index of the directory holding the file.
+	 * @param file_name		name of the file.
+	 * @param file_desc		file descriptor index of the file.
+	 */
+	private void removeEntry(int dir_desc, String file_name, int file_desc){
+		loadDirectory(dir_desc).remove(file_name);
+		dentries.put(dir_desc, file_name, -1, false);
+		
+		FileDescriptor fd = readDescriptor(file_desc);
+		// Mark the blocks of every extent of the file, and its extent and index blocks, as free
+		fd.free(myDisk, freeSpace);
+		fd.reset(-1); // Set the length to -1 to mark descriptor as free
+		writeDescriptor(file_desc, fd);
+		freeDescriptor(file_desc);
+	}
+	
+	
+	/**
+	 * Marks a file descriptor as free. The extension blocks left at the end of the descriptor table with every descriptor
+	 * free are given back to the data blocks, and their descriptors leave the descriptor cache.
+	 * @param file_desc		file descriptor index.
+	 */
+	private void freeDescriptor(int file_desc){
+		descTable.set(file_desc, false);
+		if(descTable.shrink(myDisk, freeSpace)){
+			descriptors.invalidate(descTable.getNumDescriptors());
+			directories = Arrays.copyOf(directories, descTable.getNumDescriptors());
+		}
+	}
+	
+	
+	/**
+	 * Resolves the directories of a path, from the root, leaving the position of its last component in nameStart.
+	 * A path is a sequence of names separated by '/', and may start with '/'.
+	 * @param path		path of a file.
+	 * @return			file descriptor index of the directory holding the last component of the path; -1 if some
+	 * 					directory of the path doesn't exist or is not a directory.
+	 */
+	private int resolveParent(String path){
+		int dir_desc = 0;
+		int start = path.startsWith("/") ? 1 : 0;
+		for(int end = path.indexOf('/', start); end != -1; end = path.indexOf('/', start)){
+			int entry = lookupEntry(dir_desc, path, start, end);
+			if(dentries.getFileDesc(entry) == -1 || !dentries.isDirectory(entry)){
+				return -1;
+			}
+			dir_desc = dentries.getFileDesc(entry);
+			start = end + 1;
+		}
+		nameStart = start;
+		return dir_desc;
+	}
+	
+	
+	/**
+	 * Resolves the path of a directory, from the root.
+	 * @param path		path of a directory; empty or "/" for the root.
+	 * @return			file descriptor index of the directory; -1 if it doesn't exist or is not a directory.
+	 */
+	private int resolveDirectory(String path){
+		int dir_desc = resolveParent(path);
+		if(dir_desc == -1 || nameStart == path.length()){
+			return dir_desc;
+		}
+		int entry = lookupEntry(dir_desc, path, nameStart, path.length());
+		return dentries.isDirectory(entry) ? dentries.getFileDesc(entry) : -1;
+	}
+	
+	
+	/**
+	 * Looks up a name in a directory, given a path holding the name. The result is taken from the dentry cache if it
+	 * holds it; otherwise the directory is read, and the result cached, whether the name exists or not.
+	 * @param dir_desc		file descriptor index of the directory.
+	 * @param path			path holding the name.
+	 * @param start			position of the first char of the name in the path.
+	 * @param end			position following the last char of the name in the path.
+	 * @return				entry of the dentry cache holding the result.
+	 */
+	private int lookupEntry(int dir_desc, String path, int start, int end){
+		int entry = dentries.find(dir_desc, path, start, end);
+		if(entry == -1){
+			String file_name = path.substring(start, end);
+			int file_desc = Directory.isValidName(file_name, superblock.blockLength) ? loadDirectory(dir_desc).lookup(file_name) : -1;
+			entry = dentries.put(dir_desc, file_name, file_desc, file_desc != -1 && readDescriptor(file_desc).directory);
+		}
+		return entry;
+	}
+	
+	
+	/**
+	 * Returns a directory, given its file descriptor index, loading it the first time it is used.
+	 * @param dir_desc		file descriptor index of the directory.
+	 * @return				the directory.
+	 */
+	private Directory loadDirectory(int dir_desc){
+		if(directories[dir_desc] == null){
+			directories[dir_desc] = new Directory(this, myDisk, dir_desc, directoryBlocks(dir_desc));
+		}
+		return directories[dir_desc];
+	}
+	
+	
+	/**
+	 * Starts with no directory loaded but the root, and an empty dentry cache.
+	 * @param root		root directory.
+	 */
+	private void setRootDirectory(Directory root){
+		directories = new Directory[descTable.getNumDescriptors()];
+		directories[0] = root;
+		dentries = new DentryCache(DENTRY_CACHE_CAPACITY);
+	}
+	
+	
+	/**
+	 * Starts accessing the file descriptors through a descriptor table, with an empty descriptor cache in front of it.
+	 * @param table		descriptor table of the disk.
+	 */
+	private void setDescriptorTable(DescriptorTable table){
+		descTable = table;
+		descriptors = new DescriptorCache(myDisk, table, DESCRIPTOR_CACHE_CAPACITY);
+	}
+	
+	
+	/**
+	 * Reads a page of the entries of a directory for a listing, with the attributes of each file.
+	 * If the directory was destroyed meanwhile, the listing ends.
+	 * @param dir_desc		file descriptor index of the directory.
+	 * @param cursor		position of the listing of the first entry of the page.
+	 * @param max			maximum number of entries of the page.
+	 * @param page			list where the entries are added.
+	 * @param keys			list where the positions of the entries are added.
+	 * @return				position of the listing following the page; Directory.END if there are no entries left.
+	 */
+	long readPage(int dir_desc, long cursor, int max, List<DirEntry> page, List<Long> keys){
+		if(!readDescriptor(dir_desc).directory && dir_desc != 0){
+			return Directory.END;
+		}
+		ArrayList<String> names = new ArrayList<>();
+		ArrayList<Integer> descs = new ArrayList<>();
+		long next = loadDirectory(dir_desc).list(cursor, max, names, descs, keys);
+		for(int i = 0; i<names.size(); i++){
+			FileDescriptor fd = readDescriptor(descs.get(i));
+			int length = fd.length;
+			// An open file may be longer than its descriptor says
+			for(int j = 1; j<OFT.length; j++){
+				if(OFT[j].fileDescIndex == descs.get(i)){
+					length = OFT[j].length;
+				}
+			}
+			page.add(new DirEntry(names.get(i), descs.get(i), length, fd.directory));
+		}
+		return next;
+	}
+	
+	
+	/**
+	 * Finds the block of the disk of every block of a directory, given its file descriptor index.
+	 * @param fileDesc		file descriptor index of the directory.
+	 * @return				block of the disk of each block of the directory.
+	 */
+	private int [] directoryBlocks(int fileDesc){
+		FileDescriptor fd = readDescriptor(fileDesc);
+		int [] blocks = new int[fd.numBlocks];
+		for(int i = 0; i<blocks.length; i++){
+			blocks[i] = fd.lookup(myDisk, i);
+		}
+		return blocks;
+	}
+	
+	
+	/**
+	 * Appends a block to a directory, given its file descriptor index. The blocks of a directory are only written
+	 * by the directory, as metadata, so the new block is not filled with zeros.
+	 * @param fileDesc		file descriptor index of the directory.
+	 * @return				block of the disk of the new block; -1 if the disk is full.
+	 */
+	int growDirectory(int fileDesc){
+		checkJournal();
+		FileDescriptor fd = readDescriptor(fileDesc);
+		int block = fd.numBlocks;
+		if(!allocateBlocks(fileDesc, fd, block + 1, 0, 0)){
+			return -1;
+		}
+		fd.length = (block + 1) * superblock.blockLength;
+		writeDescriptor(fileDesc, fd);
+		return fd.lookup(myDisk, block);
+	}
+	
+	
+	/**
+	 * Gives back the blocks of a directory past a number of blocks, given its file descriptor index. The blocks are
+	 * only cut by the directory, once it no longer uses them.
+	 * @param fileDesc		file descriptor index of the directory.
+	 * @param blocks		number of blocks the directory keeps.
+	 */
+	void shrinkDirectory(int fileDesc, int blocks){
+		FileDescriptor fd = readDescriptor(fileDesc);
+		fd.truncate(myDisk, freeSpace, blocks);
+		fd.length = blocks * superblock.blockLength;
+		writeDescriptor(fileDesc, fd);
+	}
+	
+	
+	/**
+	 * Rewrites the directory of fixed slots of an image of version 3 as a hash table, adding every file of its slots
+	 * to an empty directory which takes the place of the old one, and brings the superblock up to the current version.
+	 */
+	private void upgradeDirectory(){
+		// Read the slots of the old directory
+		FileDescriptor fd = readDescriptor(0);
+		int length = fd.length;
+		int [] blocks = directoryBlocks(0);
+		String [] names = new String[length / SLOT_SIZE];
+		int [] descs = new int[names.length];
+		PackableMemory temp_block = new PackableMemory(superblock.blockLength);
+		for(int i = 0; i<names.length; i++){
+			int block = i * SLOT_SIZE / superblock.blockLength;
+			int offset = i * SLOT_SIZE % superblock.blockLength;
+			if(offset == 0){
+				temp_block.clear();
+				if(block < blocks.length){
+					myDisk.read_block(blocks[block], temp_block);
+				}
+			}
+			descs[i] = temp_block.unpack(offset + 4);
+			char [] nameChar = new char [LEGACY_MAX_FILE_NAME];
+			for(int j = 0; j<LEGACY_MAX_FILE_NAME; j++){
+				nameChar[j] = (char) (temp_block.mem[offset + j] & 0xFF);
+			}
+			names[i] = new String(nameChar).trim();
+		}
+		
+		// Free the blocks of the old directory, and add its files to an empty one
+		fd = readDescriptor(0);
+		fd.free(myDisk, freeSpace);
+		fd.reset(0);
+		fd.directory = true;
+		writeDescriptor(0, fd);
+		Directory root = new Directory(this, myDisk, 0, new int[0]);
+		setRootDirectory(root);
+		for(int i = 0; i<names.length; i++){
+			if(descs[i] > 0 && Directory.isValidName(names[i], superblock.blockLength) && root.lookup(names[i]) == -1){
+				root.insert(names[i], descs[i]);
+			}
+		}
+		
+		// The superblock is brought up to the current version
+		superblock.version = Superblock.VERSION;
+		temp_block.clear();
+		superblock.write(temp_block);
+		myDisk.write_metadata_block(0, temp_block);
+		if(imageFile != null) {
+			syncDisk();
+		}
+	}
+	
+	
+	/**
+	 * Writes the length and the buffer of an open file, given its OFT index, into the LDisk (unless it is read-only).
+	 * @param index		index of the file in the OFT.
+	 * @return			'true' if every byte written to the file is stored; 'false' if bytes were lost since the last
+	 * 					flush, since the disk had no room for them.
+	 */
+	private boolean flushFile(int index){
+		// Nothing is written to a read-only disk
+		if(readOnly){
+			return true;
+		}
+		
+		// Update file length in descriptor
+		FileDescriptor fd = readDescriptor(OFT[index].fileDescIndex);
+		fd.length = OFT[index].length;
+		writeDescriptor(OFT[index].fileDescIndex, fd);
+		
+		// Only if the file is not empty (it was been written), write buffer to disk
+		if(OFT[index].length > 0){
+			writeBufferToDisk(index);
+		}
+		
+		// Allocate and write the blocks of the file held in memory
+		flushPendingBlocks(index);
+		
+		// The bytes lost are reported once
+		boolean stored = !OFT[index].lost;
+		OFT[index].lost = false;
+		return stored;
+	}
+	
+	
+	/**
+	 * Writes the buffer of an open file, given its OFT index, into the LDisk (unless it is read-only).
+	 * If the block of the file held by the buffer has no block of the disk yet, blocks are allocated for it.
+	 * @param index		index of the file in the OFT.
+	 */
+	private void writeBufferToDisk(int index){
+		// Nothing is written to a read-only disk
+		if(readOnly){
+			return;
+		}
+		
+		// Find the block of the file held by the buffer. A block past the end of the file holds none of its bytes
+		int current_block = bufferBlock(OFT[index].currentPosition);
+		if((long) current_block*superblock.blockLength >= OFT[index].length){
+			return;
+		}
+		
+		// Find the block of the disk of the block of the file
+		int current_block_num = mapBlock(index, current_block);
+		
+		if(current_block_num == -1){
+			// A file short enough, with no blocks, keeps its bytes in its descriptor
+			FileDescriptor fd = readDescriptor(OFT[index].fileDescIndex);
+			if(fd.numBlocks == 0 && OFT[index].length <= FileDescriptor.INLINE_LENGTH){
+				fd.setInline(OFT[index].buffer, OFT[index].length);
+				writeDescriptor(OFT[index].fileDescIndex, fd);
+				return;
+			}
+			// If the bytes kept in the descriptor cannot be moved, the buffer cannot be written: the loss is reported
+			// when the file is flushed
+			if(!moveInlineData(index)){
+				OFT[index].lost = true;
+				return;
+			}
+			
+			// A block of a file without a block of the disk is held in memory until the file is flushed
+			if(holdBlock(index, current_block, OFT[index].buffer)){
+				return;
+			}
+		}
+		
+		// Allocate new block if block does not exist
+		if(current_block_num == -1){
+			FileDescriptor fd = readDescriptor(OFT[index].fileDescIndex);
+			int maxBlocks = (int) (((long) MAX_FILE_LENGTH + superblock.blockLength - 1) / superblock.blockLength);
+			allocateFileBlocks(index, fd, current_block + 1, Math.min(allocationUnit - 1, maxBlocks - current_block - 1), current_block);
+			// Update file descriptor with the new extents
+			writeDescriptor(OFT[index].fileDescIndex, fd);
+			current_block_num = fd.lookup(myDisk, current_block);
+			// If the disk is full, the buffer cannot be written: the loss is reported when the file is flushed
+			if(current_block_num == -1){
+				OFT[index].lost = true;
+				return;
+			}
+			OFT[index].cacheExtent(fd.extentFileBlock, fd.extentDiskBlock, fd.extentCount);
+		}
+		// Write the buffer to disk
+		myDisk.write_block(current_block_num, OFT[index].buffer);
+	}
+	
+	
+	/**
+	 * Reads the next block of an open file, given its OFT index, and copies it into the OFT buffer.
+	 * @param index		index of the file in the OFT.
+	 */
+	private void readNextBlockIntoBuffer(int index){
+		// Only if there is a next block within the maximum file size, we proceed to read it
+		int next_block = OFT[index].currentPosition/superblock.blockLength + 1;
+		if((long) next_block*superblock.blockLength < MAX_FILE_LENGTH){
+			readBlockIntoBuffer(index, next_block);
+		}
+	}
+	
+	
+	/**
+	 * Reads a block of an open file, given its OFT index, into the OFT buffer. Blocks without a block of the disk
+	 * and blocks past the end of the file are read as zeros.
+	 * The rest of the extent holding the block, up to the end of the file, is prefetched into the cache, so a file
+	 * read sequentially is read from the disk a few large runs of blocks at a time.
+	 * @param index		index of the file in the OFT.
+	 * @param block		block of the file.
+	 */
+	private void readBlockIntoBuffer(int index, int block){
+		int block_num = (long) block*superblock.blockLength >= OFT[index].length ? -1 : mapBlock(index, block);
+		int slot = block_num == -1 ? pendingBlocks.find(index, block) : -1;
+		if(slot != -1){
+			// The block is held in memory
+			pendingBlocks.get(slot).copyTo(0, OFT[index].buffer, 0, superblock.blockLength);
+		} else if(block_num == -1){
+			OFT[index].buffer.clear();
+			// The bytes of a short file may be kept in its descriptor
+			if(block == 0 && OFT[index].length > 0){
+				FileDescriptor fd = readDescriptor(OFT[index].fileDescIndex);
+				if(fd.inline){
+					OFT[index].buffer.copyFrom(fd.inlineData, 0, 0, Math.min(OFT[index].length, FileDescriptor.INLINE_LENGTH));
+				}
+			}
+		} else {
+			int fileBlocks = (int) (((long) OFT[index].length + superblock.blockLength - 1) / superblock.blockLength);
+			int extentBlocks = OFT[index].mapFileBlock + OFT[index].mapCount - block;
+			myDisk.prefetch(block_num, Math.min(extentBlocks, fileBlocks - block));
+			myDisk.read_block(block_num, OFT[index].buffer);
+		}
+	}
+	
+	
+	/**
+	 * Finds the block of the disk of a block of an open file, given its OFT index. The last extent resolved is kept in
+	 * the OFT entry, so the tree of extents of the file is only walked when the block is in another extent.
+	 * @param index		index of the file in the OFT.
+	 * @param block		block of the file.
+	 * @return			block of the disk; -1 if the block of the file has no block of the disk.
+	 */
+	private int mapBlock(int index, int block){
+		int block_num = OFT[index].lookup(block);
+		if(block_num == -1){
+			FileDescriptor fd = readDescriptor(OFT[index].fileDescIndex);
+			block_num = fd.lookup(myDisk, block);
+			if(block_num != -1){
+				OFT[index].cacheExtent(fd.extentFileBlock, fd.extentDiskBlock, fd.extentCount);
+			}
+		}
+		return block_num;
+	}
+	
+	
+	/**
+	 * Allocates blocks of the disk for the blocks of a file which have none, up to a given block, together with a number
+	 * of blocks following it if they can be allocated in the same runs (e.g. up to the allocation unit).
+	 * The blocks are allocated after the last block of the disk of the file if they are free, so the file grows within
+	 * its last extent; otherwise in a run of free blocks, or in as many free blocks as follow the first free one
+	 * if there is no such run. The new blocks within the end of the file are filled with zeros.
+	 * Each run may be committed to the journal before the next one is allocated, with the descriptor of the file.
+	 * @param fileDesc	file descriptor index of the file.
+	 * @param fd		descriptor of the file, where the new blocks are mapped.
+	 * @param end		block of the file following the last one to allocate.
+	 * @param more		number of blocks to allocate past the last one, as long as they are in the same run.
+	 * @param clear		block of the file from which the new blocks are not filled with zeros.
+	 * @return			'true' for success; 'false' if the disk is full or the tree of extents of the file is full
+	 * 					(the blocks allocated so far are kept by the file).
+	 */
+	private boolean allocateBlocks(int fileDesc, FileDescriptor fd, int end, int more, int clear){
+		while(fd.numBlocks < end){
+			writeDescriptor(fileDesc, fd);
+			checkJournal();
+			
+			int n = end + more - fd.numBlocks;
+			int start = -1;
+			int allocated = 0;
+			if(fd.numBlocks > 0){
+				start = fd.lookup(myDisk, fd.numBlocks - 1) + 1;
+				allocated = freeSpace.extend(start, n);
+			}
+			if(allocated == 0){
+				start = freeSpace.allocateRun(n);
+				allocated = n;
+				if(start == -1){
+					start = freeSpace.allocate();
+					if(start == -1){
+						return false;
+					}
+					allocated = 1 + freeSpace.extend(start + 1, n - 1);
+				}
+			}
+			
+			int first = fd.numBlocks;
+			if(!fd.append(myDisk, freeSpace, start, allocated)){
+				freeSpace.free(start, allocated);
+				return false;
+			}
+			for(int i = first; i<clear && i<first + allocated; i++){
+				clearBlock(start + i - first);
+			}
+		}
+		return true;
+	}
+	
+	
+	/**
+	 * Allocates blocks of the disk for the blocks of an open file, given its OFT index, like allocateBlocks(). The blocks
+	 * reserved for the file are released first, so the blocks reserved can be allocated, and those still needed afterwards
+	 * are reserved again: the reservation covers the worst case of the tree of extents, so they always can be.
+	 * The blocks past those reserved, and past the last one, only take free blocks which are not reserved.
+	 * @param index		index of the file in the OFT.
+	 * @param fd		descriptor of the file, where the new blocks are mapped.
+	 * @param end		block of the file following the last one to allocate.
+	 * @param more		number of blocks to allocate past the last one, as long as they are in the same runs.
+	 * @param clear		block of the file from which the new blocks are not filled with zeros.
+	 * @return			'true' for success; 'false' if the disk is full or the tree of extents of the file is full.
+	 */
+	private boolean allocateFileBlocks(int index, FileDescriptor fd, int end, int more, int clear){
+		int fileDesc = OFT[index].fileDescIndex;
+		boolean allocated = true;
+		int reservedEnd = Math.min(end, OFT[index].reservedEnd);
+		if(fd.numBlocks < reservedEnd){
+			freeSpace.release(reservedBlocks(index, fd));
+			allocated = allocateBlocks(fileDesc, fd, reservedEnd, 0, clear);
+			if(!freeSpace.reserve(reservedBlocks(index, fd))){
+				throw new IllegalStateException("Blocks reserved for file descriptor " + fileDesc + " were taken");
+			}
+		}
+		if(!allocated){
+			return false;
+		}
+		if(fd.numBlocks < end){
+			return allocateBlocks(fileDesc, fd, end, more, clear);
+		}
+		
+		// The blocks past the last one continue its run, so the tree of extents takes no block for them
+		if(more > 0 && fd.numBlocks > 0){
+			int reserved = reservedBlocks(index, fd);
+			int start = fd.lookup(myDisk, fd.numBlocks - 1) + 1;
+			int extended = freeSpace.extend(start, more);
+			if(extended > 0 && !fd.append(myDisk, freeSpace, start, extended)){
+				freeSpace.free(start, extended);
+			}
+			freeSpace.release(reserved - reservedBlocks(index, fd));
+		}
+		return true;
+	}
+	
+	
+	/**
+	 * Reserves blocks of the disk for the block of an open file held by the buffer, given its OFT index, before bytes are
+	 * written into it, together with the blocks before it which have none and are not reserved yet (they are allocated
+	 * with it) and the blocks the tree of extents may take for them, so the bytes written can always be stored.
+	 * The first block of a file short enough to keep its bytes in its descriptor needs none.
+	 * @param index		index of the file in the OFT.
+	 * @param count		number of bytes about to be written from the current position.
+	 * @return			'true' for success; 'false' if the disk has no room for the blocks.
+	 */
+	private boolean reserveBlocks(int index, int count){
+		int current_block = bufferBlock(OFT[index].currentPosition);
+		FileDescriptor fd = readDescriptor(OFT[index].fileDescIndex);
+		int first = Math.max(fd.numBlocks, OFT[index].reservedEnd);
+		if(current_block < first){
+			return true;
+		}
+		if(fd.numBlocks == 0 && current_block == 0
+				&& Math.max(OFT[index].length, (long) OFT[index].currentPosition + count) <= FileDescriptor.INLINE_LENGTH){
+			return true;
+		}
+		int reserved = reservedBlocks(index, fd);
+		int reservedEnd = OFT[index].reservedEnd;
+		OFT[index].reservedEnd = current_block + 1;
+		if(!freeSpace.reserve(reservedBlocks(index, fd) - reserved)){
+			OFT[index].reservedEnd = reservedEnd;
+			return false;
+		}
+		return true;
+	}
+	
+	
+	/**
+	 * Returns the number of blocks of the disk reserved for an open file, given its OFT index: the blocks of the file
+	 * reserved which have no block of the disk yet, and the extent and index blocks they may need if each of them is
+	 * allocated in a run of its own. However these blocks are allocated, the blocks left reserved afterwards are never
+	 * more than those reserved which were not taken.
+	 * @param index		index of the file in the OFT.
+	 * @param fd		descriptor of the file.
+	 * @return			number of blocks reserved.
+	 */
+	private int reservedBlocks(int index, FileDescriptor fd){
+		int blocks = OFT[index].reservedEnd - fd.numBlocks;
+		if(blocks <= 0){
+			return 0;
+		}
+		return blocks + fd.treeBlocksFor(myDisk, blocks);
+	}
+	
+	
+	/**
+	 * Holds in memory the buffer of an open file, given its OFT index, until the file is flushed. If every block held
+	 * is in use, the blocks of every open file are allocated and written first.
+	 * @param index		index of the file in the OFT.
+	 * @param block		block of the file held by the buffer.
+	 * @return			'true' if the buffer is held; 'false' if delayed allocation is disabled.
+	 */
+	private boolean holdBlock(int index, int block, PackableMemory src){
+		if(pendingBlocks.getCapacity() == 0){
+			return false;
+		}
+		if(!pendingBlocks.put(index, block, src)){
+			flushPendingBlocks();
+			pendingBlocks.put(index, block, src);
+		}
+		return true;
+	}
+	
+	
+	/**
+	 * Moves the bytes of an open file, given its OFT index, out of its descriptor into its first block, if they are
+	 * inline. Called before the file gets any block, since the blocks of a file take the place of its inline bytes.
+	 * The first block is held or allocated before the bytes leave the descriptor, so they are never lost.
+	 * @param index		index of the file in the OFT.
+	 * @return			'true' for success; 'false' if the disk has no room for the first block (the file keeps its bytes inline).
+	 */
+	private boolean moveInlineData(int index){
+		FileDescriptor fd = readDescriptor(OFT[index].fileDescIndex);
+		if(!fd.inline){
+			return true;
+		}
+		inlineBlock.clear();
+		inlineBlock.copyFrom(fd.inlineData, 0, 0, FileDescriptor.INLINE_LENGTH);
+		
+		// The descriptor keeps the inline bytes, in place of the extents, until the first block holds them
+		if(!holdBlock(index, 0, inlineBlock)){
+			allocateFileBlocks(index, fd, 1, 0, 0);
+			int block_num = fd.lookup(myDisk, 0);
+			if(block_num == -1){
+				return false;
+			}
+			myDisk.write_block(block_num, inlineBlock);
+		}
+		fd.inline = false;
+		writeDescriptor(OFT[index].fileDescIndex, fd);
+		return true;
+	}
+	
+	
+	/**
+	 * Allocates and writes the blocks held in memory of every open file.
+	 */
+	private void flushPendingBlocks(){
+		if(pendingBlocks == null){
+			return;
+		}
+		for(int i = 1; i<OFT.length && pendingBlocks.size() > 0; i++){
+			flushPendingBlocks(i);
+		}
+	}
+	
+	
+	/**
+	 * Allocates the blocks held in memory of an open file, given its OFT index, and writes them to the disk.
+	 * The blocks of the file up to the last one held are allocated at once, so they are contiguous if there is a run
+	 * of free blocks for them; those which are not held were never written, and are filled with zeros.
+	 * The blocks reserved for the file are enough for them, unless its tree of extents took some of them: the blocks
+	 * left without a block of the disk are then lost, which is reported when the file is flushed.
+	 * @param index		index of the file in the OFT.
+	 */
+	private void flushPendingBlocks(int index){
+		int last = pendingBlocks.lastBlock(index);
+		if(last == -1){
+			return;
+		}
+		
+		FileDescriptor fd = readDescriptor(OFT[index].fileDescIndex);
+		int first = fd.numBlocks;
+		int maxBlocks = (int) (((long) MAX_FILE_LENGTH + superblock.blockLength - 1) / superblock.blockLength);
+		allocateFileBlocks(index, fd, last + 1, Math.min(allocationUnit - 1, maxBlocks - last - 1), 0);
+		writeDescriptor(OFT[index].fileDescIndex, fd);
+		
+		for(int i = first; i<last && i<fd.numBlocks; i++){
+			if(pendingBlocks.find(index, i) == -1){
+				clearBlock(fd.lookup(myDisk, i));
+			}
+		}
+		for(int slot = 0; slot<pendingBlocks.getCapacity(); slot++){
+			if(pendingBlocks.getOwner(slot) == index){
+				int block_num = fd.lookup(myDisk, pendingBlocks.getFileBlock(slot));
+				if(block_num != -1){
+					myDisk.write_block(block_num, pendingBlocks.get(slot));
+				} else {
+					OFT[index].lost = true;
+				}
+			}
+		}
+		pendingBlocks.remove(index);
+	}
+	
+	
+	/**
+	 * Fills with zeros the blocks of an open file, given its OFT index, which are past the end of the file but before
+	 * its current position, and have a block of the disk. Called before writing past the end of the file, since these
+	 * blocks were allocated but never written, and are about to be within the end of the file.
+	 * @param index		index of the file in the OFT.
+	 */
+	private void clearBlocksPastEnd(int index){
+		int first = (int) (((long) OFT[index].length + superblock.blockLength - 1) / superblock.blockLength);
+		int current_block = bufferBlock(OFT[index].currentPosition);
+		if(first >= current_block){
+			return;
+		}
+		for(int i = first; i<current_block; i++){
+			int block_num = mapBlock(index, i);
+			// The blocks past the last extent have no block of the disk
+			if(block_num == -1){
+				break;
+			}
+			clearBlock(block_num);
+		}
+	}
+	
+	
+	/**
+	 * Fills a block of the disk with zeros.
+	 * @param block_num		block of the disk.
+	 */
+	private void clearBlock(int block_num){
+		myDisk.write_block(block_num, zeroBlock);
 	}
-}
\ No newline at end of file
+}
@@ -0,0 +1,265 @@
+package pack;
+
+import java.util.BitSet;
+
+/**
+ * The FreeSpaceMap class keeps the bitmap of the disk in memory, as an array of longs, so blocks are allocated and freed
+ * without reading the bitmap blocks from the disk, and a word of 64 blocks is searched at once.
+ * Free blocks are allocated next-fit: the search starts from the word where the last allocation ended and wraps around
+ * at the end of the disk, so allocating is O(1) amortized even on disks with millions of blocks.
+ * The bitmap blocks changed since the last write-back are remembered, and only those are written to the disk.
+ * Free blocks can be reserved for blocks which will be allocated later (e.g. blocks of files held in memory): the
+ * allocations leave the reserved blocks free, so the blocks they were reserved for can always be allocated.
+ *
+ * On the disk, the bitmap holds the bit of block b in byte b/8, from the most to the least significant bit.
+ * In memory, the bit of block b is bit b%64 of word b/64, from the least significant bit, so a word is the reverse
+ * of the long packed big-endian at the same position of the disk.
+ */
+public class FreeSpaceMap {
+
+	private final long[] words; // Bit of each block, set if the block is used
+	private final int numBlocks; // Number of blocks of the disk
+	private final int bitmapStart; // First block of the bitmap
+	private final int bitmapBlocks; // Number of blocks of the bitmap
+	private final int blockLength; // Block length (in bytes)
+	private final BitSet dirty; // Bitmap blocks changed since the last write-back (relative to bitmapStart)
+	private final PackableMemory temp_block; // Block reused to read/write the bitmap blocks
+	private int freeBlocks; // Number of free blocks
+	private int reservedBlocks; // Number of free blocks reserved, which the allocations leave free
+	private int cursor; // Word where the next search for a free block starts
+
+
+	/**
+	 * Class constructor. Creates a map of a disk with every block free, and every bitmap block dirty.
+	 * @param superblock	superblock describing the geometry and layout of the disk.
+	 */
+	public FreeSpaceMap(Superblock superblock){
+		this.numBlocks = superblock.numBlocks;
+		this.bitmapStart = superblock.bitmapStart;
+		this.bitmapBlocks = superblock.bitmapBlocks;
+		this.blockLength = superblock.blockLength;
+		words = new long[(numBlocks + 63) / 64];
+		dirty = new BitSet(bitmapBlocks);
+		dirty.set(0, bitmapBlocks);
+		temp_block = new PackableMemory(blockLength);
+		freeBlocks = numBlocks;
+
+		// The bits after the last block are never allocated
+		if(numBlocks % 64 != 0){
+			words[words.length - 1] = -1L << (numBlocks % 64);
+		}
+	}
+
+
+	/**
+	 * Reads the bitmap of a disk into a new map.
+	 * @param device		disk holding the bitmap.
+	 * @param superblock	superblock describing the geometry and layout of the disk.
+	 * @return				the map of the disk, with no dirty bitmap blocks.
+	 */
+	public static FreeSpaceMap read(BlockDevice device, Superblock superblock){
+		FreeSpaceMap map = new FreeSpaceMap(superblock);
+		int wordsPerBlock = map.blockLength / 8;
+		for(int i = 0; i<map.bitmapBlocks; i++){
+			device.read_block(map.bitmapStart + i, map.temp_block);
+			for(int j = 0; j<wordsPerBlock && i*wordsPerBlock + j < map.words.length; j++){
+				map.words[i*wordsPerBlock + j] |= Long.reverse(map.temp_block.unpackLong(j*8));
+			}
+		}
+
+		map.freeBlocks = 0;
+		for(int k = 0; k<map.words.length; k++){
+			map.freeBlocks += Long.bitCount(~map.words[k]);
+		}
+		map.dirty.clear();
+		return map;
+	}
+
+
+	/**
+	 * Allocates a free block, marking it as used.
+	 * @return		the number of the allocated block; -1 if the disk is full (or every free block is reserved).
+	 */
+	public int allocate(){
+		if(freeBlocks == reservedBlocks){
+			return -1;
+		}
+
+		// There is a free block, so the search ends before wrapping around twice
+		while(words[cursor] == -1L){
+			cursor = cursor + 1 == words.length ? 0 : cursor + 1;
+		}
+		int block = cursor*64 + Long.numberOfTrailingZeros(~words[cursor]);
+		set(block, true);
+		return block;
+	}
+
+
+	/**
+	 * Allocates a run of consecutive free blocks, marking them as used. The search starts from the word where the last
+	 * allocation ended, and a run never wraps around the end of the disk.
+	 * @param n		number of blocks of the run.
+	 * @return		the number of the first block of the run; -1 if there is no run of n free blocks.
+	 */
+	public int allocateRun(int n){
+		if(n > freeBlocks - reservedBlocks){
+			return -1;
+		}
+
+		int runStart = -1;
+		int runLength = 0;
+		for(int w = 0; w<words.length; w++){
+			int k = (cursor + w) % words.length;
+			if(k == 0){
+				runLength = 0;
+			}
+			long word = words[k];
+
+			// Walk the runs of free and used bits of the word
+			int b = 0;
+			while(b < 64){
+				long rest = word >>> b;
+				if((rest & 1) == 0){
+					int free = Math.min(64 - b, Long.numberOfTrailingZeros(rest));
+					if(runLength == 0){
+						runStart = k*64 + b;
+					}
+					runLength += free;
+					if(runLength >= n){
+						for(int i = 0; i<n; i++){
+							set(runStart + i, true);
+						}
+						cursor = (runStart + n) / 64 % words.length;
+						return runStart;
+					}
+					b += free;
+				} else {
+					runLength = 0;
+					b += Long.numberOfTrailingZeros(~rest);
+				}
+			}
+		}
+		return -1;
+	}
+
+
+	/**
+	 * Allocates the free blocks following each other from a given block, up to a number of blocks, marking them as used.
+	 * Used to grow a run of blocks already allocated.
+	 * @param goal		number of the first block.
+	 * @param n			maximum number of blocks.
+	 * @return			number of blocks allocated (0 if the first block is used).
+	 */
+	public int extend(int goal, int n){
+		int allocated = 0;
+		while(allocated < n && freeBlocks > reservedBlocks && goal + allocated < numBlocks && !isUsed(goal + allocated)){
+			set(goal + allocated, true);
+			allocated++;
+		}
+		return allocated;
+	}
+
+
+	/**
+	 * Reserves a number of free blocks, which the allocations leave free until they are released.
+	 * @param n		number of blocks.
+	 * @return		'true' for success; 'false' if there are not as many free blocks which are not reserved.
+	 */
+	public boolean reserve(int n){
+		if(n > freeBlocks - reservedBlocks){
+			return false;
+		}
+		reservedBlocks += n;
+		return true;
+	}
+
+
+	/**
+	 * Releases a number of the free blocks reserved, so they can be allocated. Done right before allocating the blocks
+	 * they were reserved for.
+	 * @param n		number of blocks.
+	 */
+	public void release(int n){
+		reservedBlocks -= n;
+	}
+
+
+	/**
+	 * Marks a run of consecutive blocks as free.
+	 * @param start		number of the first block.
+	 * @param n			number of blocks.
+	 */
+	public void free(int start, int n){
+		for(int i = 0; i<n; i++){
+			set(start + i, false);
+		}
+	}
+
+
+	/**
+	 * Marks a block as used or free.
+	 * @param block		number of the block.
+	 * @param used		'true' to mark the block as used; 'false' to mark it as free.
+	 */
+	public void set(int block, boolean used){
+		long mask = 1L << (block % 64);
+		long word = words[block / 64];
+		if(((word & mask) != 0) == used){
+			return;
+		}
+
+		words[block / 64] = word ^ mask;
+		freeBlocks += used ? -1 : 1;
+		dirty.set(block / (blockLength * 8));
+	}
+
+
+	/**
+	 * Indicates whether a block is used.
+	 * @param block		number of the block.
+	 * @return			'true' if the block is used; 'false' if it is free.
+	 */
+	public boolean isUsed(int block){
+		return (words[block / 64] & 1L << (block % 64)) != 0;
+	}
+
+
+	/**
+	 * Returns the number of free blocks of the disk.
+	 * @return		number of free blocks.
+	 */
+	public int getFreeBlocks(){
+		return freeBlocks;
+	}
+
+
+	/**
+	 * Returns the number of bitmap blocks changed since the last write-back.
+	 * @return		number of dirty bitmap blocks.
+	 */
+	public int getDirtyBlocks(){
+		return dirty.cardinality();
+	}
+
+
+	/**
+	 * Writes the bitmap blocks changed since the last write-back into the cache of the disk, as metadata blocks.
+	 * @param cache		cache of the disk.
+	 */
+	public void writeBack(BlockCache cache){
+		int wordsPerBlock = blockLength / 8;
+		for(int i = dirty.nextSetBit(0); i >= 0; i = dirty.nextSetBit(i + 1)){
+			for(int j = 0; j<wordsPerBlock; j++){
+				int k = i*wordsPerBlock + j;
+				long word = k < words.length ? words[k] : 0L;
+				// The bits after the last block are left clear on the disk
+				if(k == words.length - 1 && numBlocks % 64 != 0){
+					word &= ~(-1L << (numBlocks % 64));
+				}
+				temp_block.packLong(Long.reverse(word), j*8);
+			}
+			cache.write_metadata_block(bitmapStart + i, temp_block);
+		}
+		dirty.clear();
+	}
+}
@@ -0,0 +1,232 @@
+package pack;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.BitSet;
+import java.util.stream.IntStream;
+import java.util.zip.CRC32;
+
+/**
+ * The ImageChecksums class manages the checksums of the blocks of an image file, so corrupt blocks can be detected.
+ * The checksums are stored in a trailer after the blocks of the image: the CRC32 of every block (4 bytes each, big-endian),
+ * followed by the magic number and the number of blocks (4 bytes each).
+ * The trailer is optional: an image without it is just the blocks of the disk, and disks working directly over their
+ * image file remove it, since they would leave it out of date.
+ */
+public class ImageChecksums {
+
+	public static final int MAGIC = 0x4C44434B; // "LDCK"
+	private static final int FOOTER_SIZE = 8; // Bytes after the checksums
+	private static final int SEGMENT_SIZE = 1 << 20; // Bytes of blocks verified by each parallel task
+
+
+	/**
+	 * Computes the size of the trailer of an image.
+	 * @param numBlocks		number of blocks of the image.
+	 * @return				size of the trailer (in bytes).
+	 */
+	public static long trailerSize(int numBlocks){
+		return 4L*numBlocks + FOOTER_SIZE;
+	}
+
+
+	/**
+	 * Computes the checksum of a block.
+	 * @param mem		memory area holding the block.
+	 * @param off		position of the block in mem.
+	 * @param length	block length (in bytes).
+	 * @return			checksum of the block.
+	 */
+	public static int checksum(byte[] mem, int off, int length){
+		CRC32 crc = new CRC32();
+		crc.update(mem, off, length);
+		return (int) crc.getValue();
+	}
+
+
+	/**
+	 * Builds the trailer of an image, given the checksums of its blocks.
+	 * @param checksums		checksum of every block.
+	 * @return				the trailer.
+	 */
+	public static byte[] trailer(int[] checksums){
+		ByteBuffer trailer = ByteBuffer.allocate((int) trailerSize(checksums.length));
+		for(int i = 0; i<checksums.length; i++){
+			trailer.putInt(checksums[i]);
+		}
+		trailer.putInt(MAGIC);
+		trailer.putInt(checksums.length);
+		return trailer.array();
+	}
+
+
+	/**
+	 * Indicates whether an image file has a checksum trailer.
+	 * @param file			image file.
+	 * @param superblock	superblock of the image.
+	 * @return				'true' if the image has checksums; 'false' otherwise.
+	 * @throws IOException	if the file cannot be read.
+	 */
+	public static boolean hasChecksums(File file, Superblock superblock) throws IOException {
+		if(file.length() != superblock.diskSize() + trailerSize(superblock.numBlocks)){
+			return false;
+		}
+		FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+		try {
+			ByteBuffer footer = ByteBuffer.allocate(FOOTER_SIZE);
+			readFully(channel, footer, file.length() - FOOTER_SIZE);
+			return footer.getInt(0) == MAGIC && footer.getInt(4) == superblock.numBlocks;
+		} finally {
+			channel.close();
+		}
+	}
+
+
+	/**
+	 * Indicates whether a file has the length of an image, with or without checksums.
+	 * @param file			image file.
+	 * @param superblock	superblock of the image.
+	 * @return				'true' if the file has the length of the image; 'false' otherwise.
+	 */
+	public static boolean hasImageLength(File file, Superblock superblock){
+		long length = file.length();
+		return length == superblock.diskSize() || length == superblock.diskSize() + trailerSize(superblock.numBlocks);
+	}
+
+
+	/**
+	 * Removes the checksum trailer of an image file, if it has one, before the image is modified in place.
+	 * @param file			image file.
+	 * @param superblock	superblock of the image.
+	 * @throws IOException	if the file cannot be written.
+	 */
+	public static void remove(File file, Superblock superblock) throws IOException {
+		if(file.length() > superblock.diskSize()){
+			FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.WRITE);
+			try {
+				channel.truncate(superblock.diskSize());
+			} finally {
+				channel.close();
+			}
+		}
+	}
+
+
+	/**
+	 * Updates the checksums of some blocks in the trailer of an image file, once the blocks have been rewritten in it.
+	 * Nothing is done if the image has no checksums.
+	 * @param file			image file.
+	 * @param superblock	superblock of the image.
+	 * @param blocks		indexes of the rewritten blocks.
+	 * @param source		disk holding the new content of the blocks.
+	 * @throws IOException	if the file cannot be written.
+	 */
+	public static void update(File file, Superblock superblock, BitSet blocks, BlockDevice source) throws IOException {
+		if(blocks.isEmpty() || !hasChecksums(file, superblock)){
+			return;
+		}
+
+		int blockLength = superblock.blockLength;
+		int chunkBlocks = Math.max(1, Math.min(SEGMENT_SIZE / blockLength, superblock.numBlocks));
+		byte [] chunk = new byte[chunkBlocks * blockLength];
+		FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.WRITE);
+		try {
+			for(int i = blocks.nextSetBit(0); i >= 0; ){
+				// Run of blocks, of at most one chunk, whose checksums are written at once
+				int end = Math.min(blocks.nextClearBit(i), i + chunkBlocks);
+				int [] blockIds = new int[end - i];
+				for(int j = 0; j<blockIds.length; j++){
+					blockIds[j] = i + j;
+				}
+				source.read_blocks(blockIds, chunk, 0);
+
+				ByteBuffer checksums = ByteBuffer.allocate(4 * blockIds.length);
+				for(int j = 0; j<blockIds.length; j++){
+					checksums.putInt(checksum(chunk, j * blockLength, blockLength));
+				}
+				checksums.flip();
+				long pos = superblock.diskSize() + 4L*i;
+				while(checksums.hasRemaining()){
+					channel.write(checksums, pos + checksums.position());
+				}
+				i = blocks.nextSetBit(end);
+			}
+			channel.force(false);
+		} finally {
+			channel.close();
+		}
+	}
+
+
+	/**
+	 * Verifies the checksum of every block of an image file. The image is split in segments of consecutive blocks,
+	 * which are read and verified in parallel across the available cores.
+	 * @param file			image file.
+	 * @param superblock	superblock of the image.
+	 * @return				indexes of the corrupt blocks.
+	 * @throws IOException	if the file cannot be read or has no checksums.
+	 */
+	public static BitSet verify(File file, Superblock superblock) throws IOException {
+		if(!hasChecksums(file, superblock)){
+			throw new IOException("Image without checksums: " + file);
+		}
+
+		int numBlocks = superblock.numBlocks;
+		int blockLength = superblock.blockLength;
+		int segmentBlocks = Math.max(1, Math.min(SEGMENT_SIZE / blockLength, numBlocks));
+		int numSegments = (numBlocks + segmentBlocks - 1) / segmentBlocks;
+		BitSet corrupt = new BitSet(numBlocks);
+
+		// Positional reads on a FileChannel can be done from several threads at once
+		FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+		try {
+			ByteBuffer stored = ByteBuffer.allocate(4 * numBlocks);
+			readFully(channel, stored, superblock.diskSize());
+
+			IntStream.range(0, numSegments).parallel().forEach(s -> {
+				int first = s * segmentBlocks;
+				int count = Math.min(segmentBlocks, numBlocks - first);
+				byte [] segment = new byte[count * blockLength];
+				try {
+					readFully(channel, ByteBuffer.wrap(segment), (long) first * blockLength);
+				}
+				catch(IOException ex) {
+					throw new UncheckedIOException(ex);
+				}
+
+				for(int j = 0; j<count; j++){
+					if(checksum(segment, j * blockLength, blockLength) != stored.getInt(4 * (first + j))){
+						synchronized(corrupt){
+							corrupt.set(first + j);
+						}
+					}
+				}
+			});
+		}
+		catch(UncheckedIOException ex) {
+			throw ex.getCause();
+		} finally {
+			channel.close();
+		}
+		return corrupt;
+	}
+
+
+	/**
+	 * Reads from a file until the buffer is full.
+	 * @param channel		channel of the file.
+	 * @param buffer		buffer to fill.
+	 * @param position		position of the file where the read starts.
+	 * @throws IOException	if the file cannot be read or is too short.
+	 */
+	private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+		int start = buffer.position();
+		while(buffer.hasRemaining()){
+			if(channel.read(buffer, position + buffer.position() - start) < 0){
+				throw new EOFException("Truncated image");
+			}
+		}
+	}
+}
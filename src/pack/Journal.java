@@ -0,0 +1,204 @@
+package pack;
+
+import java.util.zip.CRC32;
+
+/**
+ * The Journal class implements a write-ahead log of metadata blocks, kept in a region of consecutive blocks of a BlockDevice.
+ * A group of metadata blocks is first written into the journal as a single transaction, and only once the transaction
+ * has reached the image file are the blocks written to their own place. If the disk is left inconsistent by a crash
+ * while the blocks are written to their own place, replaying the journal when the image is restored writes them again.
+ *
+ * A transaction is stored from the first block of the journal, and contains:
+ * 	- A header, which may span several blocks: the journal magic number, the sequence number of the transaction,
+ * 	  the number of blocks n of the transaction, and the indexes of the n blocks.
+ * 	- The images of the n blocks, in the same order as their indexes.
+ * 	- A commit block: the commit magic number, the sequence number, n, and a checksum of the indexes and the images.
+ * A transaction is only replayed if its commit block matches its header and its checksum, so a transaction torn
+ * by a crash while it was being written is ignored (its blocks had not been written to their own place yet).
+ */
+public class Journal {
+
+	public static final int MAGIC = 0x4A524E4C; // "JRNL"
+	public static final int COMMIT_MAGIC = 0x434D4954; // "CMIT"
+	private static final int HEADER_SIZE = 12; // Bytes before the indexes of the blocks in the header
+
+	private final BlockDevice device; // Device holding the journal
+	private final int start; // First block of the journal
+	private final int blocks; // Number of blocks of the journal
+	private final int blockLength; // Block length (in bytes)
+	private int sequence; // Sequence number of the last transaction
+
+
+	/**
+	 * Class constructor.
+	 * @param device	device holding the journal.
+	 * @param start		first block of the journal.
+	 * @param blocks	number of blocks of the journal.
+	 */
+	public Journal(BlockDevice device, int start, int blocks){
+		this.device = device;
+		this.start = start;
+		this.blocks = blocks;
+		this.blockLength = device.getBlockLength();
+	}
+
+
+	/**
+	 * Computes the number of blocks a journal needs to hold a transaction of a given number of blocks.
+	 * @param n				number of blocks of the transaction.
+	 * @param blockLength	block length (in bytes).
+	 * @return				number of blocks of the journal.
+	 */
+	public static int blocksNeeded(int n, int blockLength){
+		return headerBlocks(n, blockLength) + n + 1;
+	}
+
+
+	/**
+	 * Returns the maximum number of blocks of a transaction.
+	 * @return		capacity of the journal (in blocks).
+	 */
+	public int capacity(){
+		int n = Math.max(0, blocks - 2);
+		while(n > 0 && blocksNeeded(n, blockLength) > blocks){
+			n--;
+		}
+		return n;
+	}
+
+
+	/**
+	 * Writes a transaction into the journal, and forces it to reach the image file.
+	 * The blocks must be written to their own place afterwards, and the journal cleared once they have reached the image file.
+	 * @param blockIds		indexes of the blocks of the transaction.
+	 * @param images		images of the blocks, one after the other.
+	 * @param off			position of images where the first block is.
+	 * @throws IllegalArgumentException		if the transaction doesn't fit in the journal.
+	 */
+	public void commit(int[] blockIds, byte[] images, int off){
+		int n = blockIds.length;
+		if(n > capacity()){
+			throw new IllegalArgumentException("Transaction too large for the journal: " + n + " blocks");
+		}
+
+		sequence++;
+		int headerBlocks = headerBlocks(n, blockLength);
+		PackableMemory transaction = new PackableMemory((headerBlocks + n + 1) * blockLength);
+
+		// Header
+		transaction.pack(MAGIC, 0);
+		transaction.pack(sequence, 4);
+		transaction.pack(n, 8);
+		for(int i = 0; i<n; i++){
+			transaction.pack(blockIds[i], HEADER_SIZE + i*4);
+		}
+
+		// Images of the blocks
+		System.arraycopy(images, off, transaction.mem, headerBlocks * blockLength, n * blockLength);
+
+		// Commit block
+		int commit = (headerBlocks + n) * blockLength;
+		transaction.pack(COMMIT_MAGIC, commit);
+		transaction.pack(sequence, commit + 4);
+		transaction.pack(n, commit + 8);
+		transaction.pack(checksum(transaction, n, headerBlocks), commit + 12);
+
+		// The whole transaction is written at once, since its blocks are consecutive
+		int [] journalIds = new int[headerBlocks + n + 1];
+		for(int i = 0; i<journalIds.length; i++){
+			journalIds[i] = start + i;
+		}
+		device.write_blocks(journalIds, transaction.mem, 0);
+		device.force();
+	}
+
+
+	/**
+	 * Clears the journal once the blocks of its transaction have reached their own place, so it is not replayed again.
+	 * Replaying a transaction already written is harmless, so the cleared header doesn't need to be forced.
+	 */
+	public void clear(){
+		device.write_block(start, new PackableMemory(blockLength));
+	}
+
+
+	/**
+	 * Replays the transaction of the journal, if there is a complete one, writing its blocks to their own place, and clears it.
+	 * @return		indexes of the blocks replayed; empty if there was no complete transaction in the journal.
+	 */
+	public int[] replay(){
+		if(blocks == 0){
+			return new int[0];
+		}
+
+		PackableMemory temp_block = new PackableMemory(blockLength);
+		device.read_block(start, temp_block);
+		if(temp_block.unpack(0) != MAGIC){
+			return new int[0];
+		}
+		sequence = temp_block.unpack(4);
+		int n = temp_block.unpack(8);
+		if(n <= 0 || blocksNeeded(n, blockLength) > blocks){
+			clear();
+			return new int[0];
+		}
+
+		// Read the whole transaction
+		int headerBlocks = headerBlocks(n, blockLength);
+		PackableMemory transaction = new PackableMemory((headerBlocks + n + 1) * blockLength);
+		int [] journalIds = new int[headerBlocks + n + 1];
+		for(int i = 0; i<journalIds.length; i++){
+			journalIds[i] = start + i;
+		}
+		device.read_blocks(journalIds, transaction.mem, 0);
+
+		// Check the commit block, otherwise the transaction was torn before its blocks were written to their own place
+		int commit = (headerBlocks + n) * blockLength;
+		if(transaction.unpack(commit) != COMMIT_MAGIC || transaction.unpack(commit + 4) != sequence
+				|| transaction.unpack(commit + 8) != n || transaction.unpack(commit + 12) != checksum(transaction, n, headerBlocks)){
+			clear();
+			return new int[0];
+		}
+
+		// Write the blocks to their own place
+		int [] blockIds = new int[n];
+		for(int i = 0; i<n; i++){
+			blockIds[i] = transaction.unpack(HEADER_SIZE + i*4);
+			if(blockIds[i] < 0 || blockIds[i] >= device.getNumBlocks()){
+				clear();
+				return new int[0];
+			}
+		}
+		device.write_blocks(blockIds, transaction.mem, headerBlocks * blockLength);
+		device.force();
+		clear();
+		device.force();
+		return blockIds;
+	}
+
+
+	/**
+	 * Computes the number of blocks of the header of a transaction.
+	 * @param n				number of blocks of the transaction.
+	 * @param blockLength	block length (in bytes).
+	 * @return				number of blocks of the header.
+	 */
+	private static int headerBlocks(int n, int blockLength){
+		return (HEADER_SIZE + 4*n + blockLength - 1) / blockLength;
+	}
+
+
+	/**
+	 * Computes the checksum of a transaction: its sequence number, the indexes of its blocks and their images.
+	 * @param transaction	memory area holding the transaction.
+	 * @param n				number of blocks of the transaction.
+	 * @param headerBlocks	number of blocks of the header.
+	 * @return				checksum of the transaction.
+	 */
+	private int checksum(PackableMemory transaction, int n, int headerBlocks){
+		CRC32 crc = new CRC32();
+		crc.update(transaction.mem, 4, HEADER_SIZE - 4 + 4*n);
+		crc.update(transaction.mem, headerBlocks * blockLength, n * blockLength);
+		return (int) crc.getValue();
+	}
+}
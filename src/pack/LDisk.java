@@ -1,23 +1,46 @@
 package pack;
 
+import java.util.BitSet;
+
 /**
  * The LDisk class will implement a logical disk to emulate a physical disk along with its various functions.
  * The functions to interact with the LDisk are read_block and write_block, since we can only access the disk
  * by blocks, never by individual bytes.
+ * The LDisk lives in the Java heap, and is the default BlockDevice of the FileSystem.
  * @author David Garca Santacruz, ID#: 51062654
  */
-public class LDisk {
+public class LDisk implements BlockDevice {
 	
-	public static final int NUM_BLOCKS = 64; // Number of logical blocks on LDisk
-	public static final int BLOCK_LENGTH = 64; // Block length (in bytes)
+	public static final int NUM_BLOCKS = 64; // Default number of logical blocks on LDisk
+	public static final int BLOCK_LENGTH = 64; // Default block length (in bytes)
 	
+	private final int numBlocks; // Number of logical blocks on LDisk
+	private final int blockLength; // Block length (in bytes)
 	private PackableMemory blocks; // LDisk
+	private BitSet dirtyBlocks; // Blocks written since the dirty blocks were last cleared
 
 	/**
 	 * Class constructor
 	 */
 	public LDisk(){
-		blocks = new PackableMemory(NUM_BLOCKS*BLOCK_LENGTH);	// LDisk size is NUM_BLOCKS*BLOCK_LENGTH
+		this(NUM_BLOCKS, BLOCK_LENGTH);
+	}
+	
+	
+	/**
+	 * Class constructor for an LDisk in memory with the given geometry.
+	 * @param numBlocks		number of logical blocks on LDisk.
+	 * @param blockLength	block length (in bytes).
+	 * @throws IllegalArgumentException		if the LDisk doesn't fit in memory.
+	 */
+	public LDisk(int numBlocks, int blockLength){
+		if((long) numBlocks*blockLength > Integer.MAX_VALUE - 8){
+			throw new IllegalArgumentException("LDisk too large to fit in memory: " + numBlocks + " blocks");
+		}
+		this.numBlocks = numBlocks;
+		this.blockLength = blockLength;
+		blocks = new PackableMemory(numBlocks*blockLength);	// LDisk size is numBlocks*blockLength
+		dirtyBlocks = new BitSet(numBlocks);
 	}
 	
 	
@@ -30,18 +53,10 @@ public class LDisk {
 	 */
 	public void read_block(int i, PackableMemory myBlock){
 		// Check size of the block equals LDisk block size, otherwise error
-		if (myBlock.size != BLOCK_LENGTH){
-			return;
-		}
-		
-		// Find the first byte of the block
-		int pos = i*BLOCK_LENGTH;
+		BlockDevice.checkBlockSize(myBlock, blockLength);
 		
 		//Copy the block from the ldisk to myBlock
-		for (int a = 0; a<BLOCK_LENGTH; a++){
-			myBlock.mem[a] = blocks.mem[pos];
-			pos++;
-		}
+		blocks.copyTo(i*blockLength, myBlock, 0, blockLength);
 	}
 	
 	
@@ -54,32 +69,109 @@ public class LDisk {
 	 */
 	public void write_block(int i, PackableMemory myBlock){
 		// Check size of the block equals LDisk block size, otherwise error
-		if (myBlock.size != BLOCK_LENGTH){
-			return;
-		}
+		BlockDevice.checkBlockSize(myBlock, blockLength);
 		
-		// Find the first byte of the block
-		int pos = i*BLOCK_LENGTH;
-		
-		//Copy the block from the ldisk to myBlock
-		for (int a = 0; a<BLOCK_LENGTH; a++){
-			blocks.mem[pos] = myBlock.mem[a];
-			pos++;
+		//Copy the block from myBlock to the ldisk
+		myBlock.copyTo(0, blocks, i*blockLength, blockLength);
+		dirtyBlocks.set(i);
+	}
+	
+	
+	/**
+	 * Read several blocks from LDisk, copying them one after the other into dst.
+	 * Runs of consecutive blocks are copied at once.
+	 * @param blockIds	indexes of the blocks to be read from the LDisk.
+	 * @param dst		memory area where the blocks will be copied.
+	 * @param off		position of dst where the first block will be copied.
+	 */
+	public void read_blocks(int[] blockIds, byte[] dst, int off){
+		for(int k = 0; k<blockIds.length; ){
+			int run = BlockDevice.runLength(blockIds, k);
+			blocks.copyTo(blockIds[k]*blockLength, dst, off + k*blockLength, run*blockLength);
+			k += run;
 		}
 	}
 	
 	
+	/**
+	 * Write several blocks into LDisk, taking them one after the other from src.
+	 * Runs of consecutive blocks are copied at once.
+	 * @param blockIds	indexes of the blocks to be written into the LDisk.
+	 * @param src		memory area from which the blocks will be copied.
+	 * @param off		position of src where the first block is.
+	 */
+	public void write_blocks(int[] blockIds, byte[] src, int off){
+		for(int k = 0; k<blockIds.length; ){
+			int run = BlockDevice.runLength(blockIds, k);
+			blocks.copyFrom(src, off + k*blockLength, blockIds[k]*blockLength, run*blockLength);
+			dirtyBlocks.set(blockIds[k], blockIds[k] + run);
+			k += run;
+		}
+	}
+	
+	
+	/**
+	 * Returns the number of logical blocks on LDisk.
+	 * @return		number of blocks.
+	 */
+	public int getNumBlocks(){
+		return numBlocks;
+	}
+	
+	
+	/**
+	 * Returns the length of the blocks of the LDisk.
+	 * @return		block length (in bytes).
+	 */
+	public int getBlockLength(){
+		return blockLength;
+	}
+	
+	
+	/**
+	 * Returns the blocks written since the dirty blocks were last cleared.
+	 * @return		set of the indexes of the dirty blocks.
+	 */
+	public BitSet getDirtyBlocks(){
+		return dirtyBlocks;
+	}
+	
+	
+	/**
+	 * Clears the dirty blocks, once an image of the LDisk has been brought up to date.
+	 */
+	public void clearDirtyBlocks(){
+		dirtyBlocks.clear();
+	}
+	
+	
+	/**
+	 * Forces any change to be written to the image file. It has no effect, since the LDisk lives in memory.
+	 */
+	public void force(){
+	}
+	
+	
+	/**
+	 * Releases the resources held by the LDisk. It has no effect, since the LDisk only holds memory.
+	 */
+	public void close(){
+	}
+	
+	
 	/**
 	 * Displays a visual representation of the contents of the LDisk in the console.
 	 * Implemented for debugging purposes.
 	 */
 	public void print(){
-		for(int i = 0; i<15; i++){
+		PackableMemory block = new PackableMemory(blockLength);
+		for(int i = 0; i<15 && i<numBlocks; i++){
+			read_block(i, block);
 			System.out.print("BLOCK " + i + " | ");
-			for(int j = 0; j<BLOCK_LENGTH; j++){
-				System.out.print(blocks.mem[i*BLOCK_LENGTH+j] + " ");
+			for(int j = 0; j<blockLength; j++){
+				System.out.print(block.mem[j] + " ");
 			}
 			System.out.print("| \n");
 		}
 	}
-}
\ No newline at end of file
+}
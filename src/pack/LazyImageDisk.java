@@ -0,0 +1,222 @@
+package pack;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.BitSet;
+
+/**
+ * The LazyImageDisk class implements an in-memory disk which is loaded from its image file on demand.
+ * Only the first blocks of the image (the superblock, the bitmap, the file descriptors and the journal) are loaded
+ * when it is opened, and every other block is read from the image the first time it is accessed, together with the
+ * blocks following it which are not loaded yet. Blocks fully overwritten before being read are never read from the image.
+ * The image file must not be modified by anyone else until the disk is fully loaded, and then it is closed.
+ * Since the disk functions don't report errors, I/O errors are thrown as UncheckedIOException.
+ */
+public class LazyImageDisk implements BlockDevice {
+
+	public static final int READAHEAD_SIZE = 1 << 16; // Bytes read from the image at once when a block is missing
+
+	private final BlockDevice disk; // In-memory disk the image is loaded into
+	private final int numBlocks; // Number of blocks of the disk
+	private final int blockLength; // Block length (in bytes)
+	private final int readaheadBlocks; // Blocks read from the image at once
+	private final BitSet loaded; // Blocks already loaded (or overwritten)
+	private int numLoaded; // Number of blocks already loaded
+	private FileChannel channel; // Channel of the image file (null once the disk is fully loaded)
+
+
+	/**
+	 * Class constructor. Opens an image file, loading only its first blocks into the disk.
+	 * @param image			image file, at least as large as the disk.
+	 * @param disk			empty in-memory disk with the same geometry as the image.
+	 * @param eagerBlocks	number of blocks loaded when the image is opened.
+	 * @throws IOException	if the file cannot be read.
+	 */
+	public LazyImageDisk(File image, BlockDevice disk, int eagerBlocks) throws IOException {
+		this.disk = disk;
+		this.numBlocks = disk.getNumBlocks();
+		this.blockLength = disk.getBlockLength();
+		this.readaheadBlocks = Math.max(1, READAHEAD_SIZE / blockLength);
+		loaded = new BitSet(numBlocks);
+		channel = FileChannel.open(image.toPath(), StandardOpenOption.READ);
+
+		try {
+			for(int i = 0; i<Math.min(eagerBlocks, numBlocks); i++) {
+				ensureLoaded(i);
+			}
+		}
+		catch(UncheckedIOException ex) {
+			channel.close();
+			throw ex.getCause();
+		}
+	}
+
+
+	@Override
+	public int getNumBlocks(){
+		return numBlocks;
+	}
+
+
+	@Override
+	public int getBlockLength(){
+		return blockLength;
+	}
+
+
+	@Override
+	public void read_block(int i, PackableMemory myBlock){
+		ensureLoaded(i);
+		disk.read_block(i, myBlock);
+	}
+
+
+	/**
+	 * Write block i. The whole block is overwritten, so it doesn't need to be loaded from the image.
+	 */
+	@Override
+	public void write_block(int i, PackableMemory myBlock){
+		disk.write_block(i, myBlock);
+		markLoaded(i);
+	}
+
+
+	@Override
+	public void read_blocks(int[] blockIds, byte[] dst, int off){
+		for(int k = 0; k<blockIds.length; k++){
+			ensureLoaded(blockIds[k]);
+		}
+		disk.read_blocks(blockIds, dst, off);
+	}
+
+
+	@Override
+	public void write_blocks(int[] blockIds, byte[] src, int off){
+		disk.write_blocks(blockIds, src, off);
+		for(int k = 0; k<blockIds.length; k++){
+			markLoaded(blockIds[k]);
+		}
+	}
+
+
+	/**
+	 * Returns the blocks written since the dirty blocks were last cleared. Blocks loaded from the image are not dirty.
+	 */
+	@Override
+	public BitSet getDirtyBlocks(){
+		return disk.getDirtyBlocks();
+	}
+
+
+	@Override
+	public void clearDirtyBlocks(){
+		disk.clearDirtyBlocks();
+	}
+
+
+	@Override
+	public void force(){
+		disk.force();
+	}
+
+
+	/**
+	 * Closes the image file and the disk.
+	 */
+	@Override
+	public void close(){
+		closeImage();
+		disk.close();
+	}
+
+
+	/**
+	 * Loads every block not loaded yet, so the image file is closed and can be overwritten.
+	 */
+	public void loadAll(){
+		for(int i = loaded.nextClearBit(0); i < numBlocks && channel != null; i = loaded.nextClearBit(i)){
+			ensureLoaded(i);
+		}
+	}
+
+
+	/**
+	 * Returns the number of blocks already loaded from the image (or overwritten).
+	 * @return		number of loaded blocks.
+	 */
+	public int getNumLoaded(){
+		return numLoaded;
+	}
+
+
+	/**
+	 * Loads a block from the image if it is not loaded yet, together with the blocks following it which are not loaded
+	 * either, up to the readahead size.
+	 * @param i		index of the block.
+	 */
+	private void ensureLoaded(int i){
+		if(loaded.get(i)){
+			return;
+		}
+
+		int next = loaded.nextSetBit(i);
+		int end = Math.min(Math.min(next < 0 ? numBlocks : next, numBlocks), i + readaheadBlocks);
+		int [] blockIds = new int[end - i];
+		for(int j = 0; j<blockIds.length; j++){
+			blockIds[j] = i + j;
+		}
+		byte [] run = new byte[blockIds.length * blockLength];
+		ByteBuffer buffer = ByteBuffer.wrap(run);
+		try {
+			while(buffer.hasRemaining()){
+				if(channel.read(buffer, (long) i*blockLength + buffer.position()) < 0){
+					break; // The rest of a truncated image reads as zeros
+				}
+			}
+		}
+		catch(IOException ex){
+			throw new UncheckedIOException(ex);
+		}
+
+		// Blocks loaded from the image are not dirty, since the image already holds them
+		// (blocks not loaded yet have never been written)
+		disk.write_blocks(blockIds, run, 0);
+		disk.getDirtyBlocks().clear(i, end);
+		for(int j = i; j<end; j++){
+			markLoaded(j);
+		}
+	}
+
+
+	/**
+	 * Marks a block as loaded, closing the image file once every block has been loaded.
+	 * @param i		index of the block.
+	 */
+	private void markLoaded(int i){
+		if(!loaded.get(i)){
+			loaded.set(i);
+			numLoaded++;
+			if(numLoaded == numBlocks){
+				closeImage();
+			}
+		}
+	}
+
+
+	/**
+	 * Closes the image file, if it is still open.
+	 */
+	private void closeImage(){
+		if(channel != null){
+			try {
+				channel.close();
+			}
+			catch(IOException ex){
+				throw new UncheckedIOException(ex);
+			}
+			channel = null;
+		}
+	}
+}
@@ -0,0 +1,216 @@
+package pack;
+
+/**
+ * The LzCodec class implements a fast LZ77 compressor in the style of LZ4, used to compress the chunks of an image file.
+ * The compressed data is a sequence of sequences, each made of:
+ * 	- A token byte, whose high 4 bits are the number of literals and whose low 4 bits are the match length minus 4.
+ * 	  A value of 15 is followed by extra bytes which are added to it, up to the first one below 255.
+ * 	- The literals, copied as they are.
+ * 	- The offset of the match (2 bytes, big-endian), that is, how far back the repeated bytes start.
+ * The last sequence only has literals. Matches may overlap the bytes they produce, so a run of a single repeated byte
+ * is a literal followed by a match at offset 1.
+ * Matches are found through a hash table of the last position of every 4-byte sequence, and the search skips ahead
+ * faster the longer it goes without a match, so incompressible data is not slow to compress.
+ */
+public class LzCodec {
+
+	private static final int MIN_MATCH = 4; // Shortest match encoded (in bytes)
+	private static final int MAX_OFFSET = 65535; // Farthest back a match can start (in bytes)
+	private static final int HASH_BITS = 12; // Size of the hash table (log2)
+	private static final int SKIP_TRIGGER = 6; // Bytes without a match after which the search step grows (log2)
+
+
+	/**
+	 * Computes the largest size the compressed data can take, for incompressible data.
+	 * @param length	number of bytes to compress.
+	 * @return			maximum compressed size (in bytes).
+	 */
+	public static int maxCompressedLength(int length){
+		return length + length / 255 + 16;
+	}
+
+
+	/**
+	 * Compresses a memory area.
+	 * @param src		memory area to compress.
+	 * @param srcOff	position of src where the bytes to compress start.
+	 * @param srcLen	number of bytes to compress.
+	 * @param dst		memory area where the compressed bytes are written. Must have room for maxCompressedLength(srcLen) bytes.
+	 * @param dstOff	position of dst where the compressed bytes are written.
+	 * @return			number of compressed bytes.
+	 */
+	public static int compress(byte[] src, int srcOff, int srcLen, byte[] dst, int dstOff){
+		int [] table = new int[1 << HASH_BITS]; // Last position (plus one) of each hashed 4-byte sequence
+		int end = srcOff + srcLen;
+		int anchor = srcOff; // First byte not encoded yet
+		int out = dstOff;
+		int i = srcOff;
+
+		while(i + MIN_MATCH <= end){
+			int sequence = read32(src, i);
+			int h = hash(sequence);
+			int ref = table[h] - 1;
+			table[h] = i + 1;
+
+			if(ref < 0 || i - ref > MAX_OFFSET || read32(src, ref) != sequence){
+				i += 1 + ((i - anchor) >>> SKIP_TRIGGER);
+				continue;
+			}
+
+			// Extend the match as far as it goes
+			int length = MIN_MATCH;
+			while(i + length < end && src[ref + length] == src[i + length]){
+				length++;
+			}
+
+			int token = out;
+			out = writeSequence(src, anchor, i - anchor, dst, out);
+			dst[out++] = (byte) ((i - ref) >>> 8);
+			dst[out++] = (byte) (i - ref);
+			out = writeLength(dst, out, length - MIN_MATCH, token, false);
+
+			i += length;
+			anchor = i;
+		}
+
+		// The last literals
+		out = writeSequence(src, anchor, end - anchor, dst, out);
+		return out - dstOff;
+	}
+
+
+	/**
+	 * Decompresses a memory area compressed with compress().
+	 * @param src		memory area to decompress.
+	 * @param srcOff	position of src where the compressed bytes start.
+	 * @param srcLen	number of compressed bytes.
+	 * @param dst		memory area where the decompressed bytes are written.
+	 * @param dstOff	position of dst where the decompressed bytes are written.
+	 * @param dstLen	number of decompressed bytes expected.
+	 * @return			number of decompressed bytes.
+	 * @throws IllegalArgumentException		if the compressed bytes are corrupt.
+	 */
+	public static int decompress(byte[] src, int srcOff, int srcLen, byte[] dst, int dstOff, int dstLen){
+		int in = srcOff;
+		int end = srcOff + srcLen;
+		int out = dstOff;
+		int dstEnd = dstOff + dstLen;
+
+		try {
+			while(in < end){
+				int token = src[in++] & 0xFF;
+
+				// Literals
+				int literals = token >>> 4;
+				if(literals == 15){
+					int extra;
+					do {
+						extra = src[in++] & 0xFF;
+						literals += extra;
+					} while(extra == 255);
+				}
+				if(out + literals > dstEnd || in + literals > end){
+					throw new IllegalArgumentException("Corrupt compressed data");
+				}
+				System.arraycopy(src, in, dst, out, literals);
+				in += literals;
+				out += literals;
+				if(in >= end){
+					break;
+				}
+
+				// Match
+				int offset = (src[in] & 0xFF) << 8 | (src[in + 1] & 0xFF);
+				in += 2;
+				int length = token & 0x0F;
+				if(length == 15){
+					int extra;
+					do {
+						extra = src[in++] & 0xFF;
+						length += extra;
+					} while(extra == 255);
+				}
+				length += MIN_MATCH;
+				if(offset == 0 || out - offset < dstOff || out + length > dstEnd){
+					throw new IllegalArgumentException("Corrupt compressed data");
+				}
+				if(offset >= length){
+					System.arraycopy(dst, out - offset, dst, out, length);
+				} else {
+					// The match overlaps the bytes it produces, so it is copied byte by byte
+					for(int k = 0; k<length; k++){
+						dst[out + k] = dst[out - offset + k];
+					}
+				}
+				out += length;
+			}
+		}
+		catch(ArrayIndexOutOfBoundsException ex){
+			throw new IllegalArgumentException("Corrupt compressed data");
+		}
+		return out - dstOff;
+	}
+
+
+	/**
+	 * Writes the token and the literals of a sequence. The match length of the token is filled in later, if there is a match.
+	 * @param src		memory area holding the literals.
+	 * @param start		position of the first literal.
+	 * @param literals	number of literals.
+	 * @param dst		memory area where the sequence is written.
+	 * @param out		position of dst where the sequence is written.
+	 * @return			position of dst after the sequence.
+	 */
+	private static int writeSequence(byte[] src, int start, int literals, byte[] dst, int out){
+		dst[out] = (byte) (Math.min(literals, 15) << 4);
+		out = writeLength(dst, out + 1, literals, out, true);
+		System.arraycopy(src, start, dst, out, literals);
+		return out + literals;
+	}
+
+
+	/**
+	 * Writes a length into the token of a sequence, followed by its extra bytes if it doesn't fit in the token.
+	 * @param dst		memory area where the length is written.
+	 * @param out		position of dst where the extra bytes are written.
+	 * @param length	length to write.
+	 * @param token		position of the token in dst.
+	 * @param literals	'true' for the number of literals (high 4 bits); 'false' for the match length (low 4 bits).
+	 * @return			position of dst after the extra bytes.
+	 */
+	private static int writeLength(byte[] dst, int out, int length, int token, boolean literals){
+		if(!literals){
+			dst[token] = (byte) (dst[token] | Math.min(length, 15));
+		}
+		if(length >= 15){
+			length -= 15;
+			while(length >= 255){
+				dst[out++] = (byte) 255;
+				length -= 255;
+			}
+			dst[out++] = (byte) length;
+		}
+		return out;
+	}
+
+
+	/**
+	 * Reads 4 consecutive bytes as an integer.
+	 * @param src	memory area.
+	 * @param pos	position of the first byte.
+	 * @return		the integer.
+	 */
+	private static int read32(byte[] src, int pos){
+		return (src[pos] & 0xFF) << 24 | (src[pos + 1] & 0xFF) << 16 | (src[pos + 2] & 0xFF) << 8 | (src[pos + 3] & 0xFF);
+	}
+
+
+	/**
+	 * Hashes a 4-byte sequence into a position of the hash table.
+	 * @param sequence	the 4 bytes.
+	 * @return			position in the hash table.
+	 */
+	private static int hash(int sequence){
+		return (sequence * -1640531535) >>> (32 - HASH_BITS);
+	}
+}
@@ -0,0 +1,48 @@
+package pack;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * The MappedDisk class implements a disk mapped over its image file. Blocks are paged in lazily by the
+ * operating system, and the image is made durable with force() instead of being rewritten.
+ */
+public class MappedDisk extends ByteBufferDisk {
+	
+	/**
+	 * Class constructor. Maps the disk over the given image file.
+	 * If the file does not exist or is shorter than the disk, it is created or extended with zeros.
+	 * @param image			file containing the image of the disk.
+	 * @param numBlocks		number of blocks of the disk.
+	 * @param blockLength	block length (in bytes).
+	 * @throws IOException	if the file cannot be opened or mapped.
+	 */
+	public MappedDisk(File image, int numBlocks, int blockLength) throws IOException{
+		super(numBlocks, blockLength);
+		
+		RandomAccessFile imageFile = new RandomAccessFile(image, "rw");
+		try {
+			if(imageFile.length() < (long) numBlocks*blockLength){
+				imageFile.setLength((long) numBlocks*blockLength);
+			}
+			// The mappings remain valid once the file is closed
+			for(int i = 0; i<regions.length; i++){
+				regions[i] = imageFile.getChannel().map(FileChannel.MapMode.READ_WRITE, 
+						(long) i*blocksPerRegion*blockLength, regionSize(i));
+			}
+		} finally {
+			imageFile.close();
+		}
+	}
+	
+	
+	@Override
+	public void force(){
+		for(int i = 0; i<regions.length; i++){
+			((MappedByteBuffer) regions[i]).force();
+		}
+	}
+}
@@ -14,13 +14,31 @@ public class OpenFileTable {
 	int currentPosition;
 	int fileDescIndex;
 	int length;
+	int mapFileBlock;	// First block of the file of the last extent resolved
+	int mapDiskBlock;	// First block of the disk of the last extent resolved
+	int mapCount;		// Number of blocks of the last extent resolved (0 if none)
+	int reservedEnd;	// Block of the file following the last one whose block of the disk is reserved
+	boolean lost;		// Whether bytes written to the file were lost, since the disk had no room for them
 	
 	
 	/**
 	 * Class constructor with no parameters. Creates an unused OFT entry.
+	 * @param blockLength	length of the blocks of the LDisk (in bytes).
 	 */
-	public OpenFileTable(){
-		buffer = new PackableMemory(LDisk.BLOCK_LENGTH); 
+	public OpenFileTable(int blockLength){
+		buffer = new PackableMemory(blockLength); 
+		currentPosition = 0;
+		fileDescIndex = -1;		//Empty
+		length = -1;			//Empty
+	}
+	
+	
+	/**
+	 * Class constructor. Creates an unused OFT entry whose buffer is given (e.g. allocated off-heap).
+	 * @param buffer	buffer of the entry, one block long.
+	 */
+	public OpenFileTable(PackableMemory buffer){
+		this.buffer = buffer;
 		currentPosition = 0;
 		fileDescIndex = -1;		//Empty
 		length = -1;			//Empty
@@ -29,11 +47,12 @@ public class OpenFileTable {
 	
 	/**
 	 * Class constructor with parameters to create an OFT entry for a file. Used for empty files.
-	 * @param index		file descriptor index of the file.
-	 * @param len		length of the file.
+	 * @param blockLength	length of the blocks of the LDisk (in bytes).
+	 * @param index			file descriptor index of the file.
+	 * @param len			length of the file.
 	 */
-	public OpenFileTable(int index, int len){
-		buffer = new PackableMemory(LDisk.BLOCK_LENGTH); 
+	public OpenFileTable(int blockLength, int index, int len){
+		buffer = new PackableMemory(blockLength); 
 		currentPosition = 0;
 		fileDescIndex = index;
 		length = len;
@@ -54,12 +73,58 @@ public class OpenFileTable {
 	}
 	
 	
+	/**
+	 * Assign an unused OFT entry to a file, keeping its buffer, so opening a file doesn't allocate a new entry.
+	 * The caller fills the buffer with the first block of the file.
+	 * @param index		file descriptor index of the file.
+	 * @param len		length of the file.
+	 */
+	public void assign(int index, int len){
+		currentPosition = 0;
+		fileDescIndex = index;
+		length = len;
+		mapCount = 0;
+		reservedEnd = 0;
+		lost = false;
+	}
+	
+	
 	/**
 	 * Free an OFT entry, by setting its descriptor index and length to -1.
 	 */
 	public void free(){
 		fileDescIndex = -1;		//Empty
 		length = -1;			//Empty
+		mapCount = 0;
+		reservedEnd = 0;
+		lost = false;
+	}
+	
+	
+	/**
+	 * Finds the block of the disk of a block of the file in the last extent resolved, so a file read or written
+	 * sequentially doesn't walk its tree of extents for every block.
+	 * @param block		block of the file.
+	 * @return			block of the disk; -1 if the block is not in the last extent resolved.
+	 */
+	public int lookup(int block){
+		if(block >= mapFileBlock && block - mapFileBlock < mapCount){
+			return mapDiskBlock + block - mapFileBlock;
+		}
+		return -1;
+	}
+	
+	
+	/**
+	 * Remembers the last extent resolved for the file.
+	 * @param fileBlock		first block of the file of the extent.
+	 * @param diskBlock		first block of the disk of the extent.
+	 * @param count			number of blocks of the extent.
+	 */
+	public void cacheExtent(int fileBlock, int diskBlock, int count){
+		mapFileBlock = fileBlock;
+		mapDiskBlock = diskBlock;
+		mapCount = count;
 	}
 	
 	
@@ -69,8 +134,8 @@ public class OpenFileTable {
 	 */
 	public void print(){
 		System.out.print("BUFFER | ");
-		for(int i = 0; i<buffer.mem.length; i++){
-			System.out.print(buffer.mem[i] + " ");
+		for(int i = 0; i<buffer.size; i++){
+			System.out.print(buffer.get(i) + " ");
 		}
 		System.out.print("|  " + "cur pos: " + currentPosition + "; fd: " + fileDescIndex + "; length: " + length + "\n");
 	}
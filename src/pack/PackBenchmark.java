@@ -0,0 +1,97 @@
+package pack;
+
+/**
+ * The purpose of this class is to measure the speed of the pack and unpack methods of PackableMemory, which are run on
+ * every bitmap, descriptor and directory slot access, against the byte-by-byte loop they used to be implemented with.
+ * Each measure packs and unpacks an int at every 4-byte offset of a block, and is repeated after a warm-up so the
+ * methods are compiled by the JIT before they are timed.
+ * Usage: java pack.PackBenchmark [blockLength rounds]
+ */
+public class PackBenchmark {
+
+	private static final int MASK = 0xff;
+	private static volatile int sink; // Keeps the JIT from discarding the results
+
+
+	public static void main(String[] args) {
+		int blockLength = args.length > 0 ? Integer.parseInt(args[0]) : 4096;
+		int rounds = args.length > 1 ? Integer.parseInt(args[1]) : 20000;
+		PackableMemory block = new PackableMemory(blockLength);
+
+		// Warm up both implementations, then measure them
+		for(int i = 0; i<2; i++) {
+			long loop = measureLoop(block, rounds);
+			long varHandle = measureVarHandle(block, rounds);
+			if(i == 1) {
+				double operations = (double) rounds * (blockLength / 4) * 2;
+				System.out.printf("%-12s %8.3f ns/op%n", "LOOP", loop / operations);
+				System.out.printf("%-12s %8.3f ns/op%n", "VARHANDLE", varHandle / operations);
+				System.out.printf("%-12s %8.2fx%n", "SPEEDUP", (double) loop / varHandle);
+			}
+		}
+	}
+
+
+	/**
+	 * Packs and unpacks an int at every offset of a block with the byte-by-byte loop.
+	 * @param block		block to work on.
+	 * @param rounds	number of passes over the block.
+	 * @return			elapsed time (in nanoseconds).
+	 */
+	private static long measureLoop(PackableMemory block, int rounds) {
+		long start = System.nanoTime();
+		int sum = 0;
+		for(int r = 0; r<rounds; r++) {
+			for(int loc = 0; loc + 4 <= block.size; loc = loc + 4) {
+				loopPack(block.mem, r + loc, loc);
+				sum += loopUnpack(block.mem, loc);
+			}
+		}
+		sink = sum;
+		return System.nanoTime() - start;
+	}
+
+
+	/**
+	 * Packs and unpacks an int at every offset of a block with the methods of PackableMemory.
+	 * @param block		block to work on.
+	 * @param rounds	number of passes over the block.
+	 * @return			elapsed time (in nanoseconds).
+	 */
+	private static long measureVarHandle(PackableMemory block, int rounds) {
+		long start = System.nanoTime();
+		int sum = 0;
+		for(int r = 0; r<rounds; r++) {
+			for(int loc = 0; loc + 4 <= block.size; loc = loc + 4) {
+				block.pack(r + loc, loc);
+				sum += block.unpack(loc);
+			}
+		}
+		sink = sum;
+		return System.nanoTime() - start;
+	}
+
+
+	/**
+	 * The former PackableMemory.pack: stores an int into 4 bytes, working from the least to the most significant byte.
+	 */
+	private static void loopPack(byte[] mem, int val, int loc) {
+		for (int i=3; i >= 0; i--) {
+			mem[loc+i] = (byte)(val & MASK);
+			val = val >> 8;
+		}
+	}
+
+
+	/**
+	 * The former PackableMemory.unpack: assembles an int from 4 bytes, working from the most to the least significant byte.
+	 */
+	private static int loopUnpack(byte[] mem, int loc) {
+		int v = (int)mem[loc] & MASK;
+		for (int i=1; i < 4; i++) {
+			v = v << 8;
+			v = v | ((int)mem[loc+i] & MASK);
+		}
+		return v;
+	}
+}
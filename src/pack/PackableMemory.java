@@ -1,15 +1,35 @@
 package pack;
 
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+import java.util.Random;
+
 	//This class contains implementations of methods to 
 //  -- pack an integer into 4 consecutive bytes of a byte array
 //  -- unpack an integer from 4 consecutive bytes of a byte array
-//  -- exhaustively test the pack and unpack methods.
+//  -- pack and unpack longs (8 bytes) and shorts (2 bytes) the same way
+//  -- read, write and copy its bytes without reaching into the array, so
+//     the bytes can also live off-heap (see DirectPackableMemory)
+//  -- test the pack and unpack methods on boundary and sampled values.
 //
 //This file should be saved as PackableMemory.java.  Once it has been
 // compiled, the tester can be invoked by typing "java PackableMemory"
 
 public class PackableMemory
 {
+  // Views of the byte array as big-endian ints, longs and shorts at any
+  //  byte offset. The most significant byte is stored first, as the
+  //  on-disk format has always done.
+  private static final VarHandle INT =
+     MethodHandles.byteArrayViewVarHandle(int[].class, ByteOrder.BIG_ENDIAN);
+  private static final VarHandle LONG =
+     MethodHandles.byteArrayViewVarHandle(long[].class, ByteOrder.BIG_ENDIAN);
+  private static final VarHandle SHORT =
+     MethodHandles.byteArrayViewVarHandle(short[].class, ByteOrder.BIG_ENDIAN);
+
   int size; 
   public byte mem[] = null;
 
@@ -19,65 +39,198 @@ public class PackableMemory
      this.mem = new byte[size];
   }
 
+  // Used by the subclasses which keep the bytes somewhere else, with a
+  //  null mem.
+  PackableMemory(byte[] mem, int size)
+  {
+     this.size = size;
+     this.mem = mem;
+  }
+
+  // Allocate a memory of the given size, off the Java heap if offHeap is
+  //  true (then mem is null, and the bytes are only reached through the
+  //  methods below).
+  public static PackableMemory allocate(int size, boolean offHeap)
+  {
+     return offHeap ? new DirectPackableMemory(size) : new PackableMemory(size);
+  }
+
+  // Return whether the bytes live off the Java heap.
+  public boolean isDirect()
+  {
+     return false;
+  }
+
+  // Return the byte mem[loc].
+  public byte get(int loc)
+  {
+     return mem[loc];
+  }
+
+  // Store the byte val into mem[loc].
+  public void put(byte val, int loc)
+  {
+     mem[loc] = val;
+  }
+
+  // Copy len bytes starting at mem[loc] into dst, starting at dst[off].
+  public void copyTo(int loc, byte[] dst, int off, int len)
+  {
+     System.arraycopy(mem, loc, dst, off, len);
+  }
+
+  // Copy len bytes starting at src[off] into mem, starting at mem[loc].
+  public void copyFrom(byte[] src, int off, int loc, int len)
+  {
+     System.arraycopy(src, off, mem, loc, len);
+  }
+
+  // Copy len bytes starting at mem[loc] into another memory, starting at
+  //  its position dstLoc.
+  public void copyTo(int loc, PackableMemory dst, int dstLoc, int len)
+  {
+     if (dst.isDirect())
+     {
+        dst.copyFrom(mem, loc, dstLoc, len);
+     }
+     else
+     {
+        System.arraycopy(mem, loc, dst.mem, dstLoc, len);
+     }
+  }
+
+  // Return a buffer over the len bytes starting at mem[loc], sharing them,
+  //  whose position 0 is mem[loc]. Used for channel and buffer transfers.
+  public ByteBuffer view(int loc, int len)
+  {
+     return ByteBuffer.wrap(mem, loc, len).slice();
+  }
+
+  // Set every byte to 0.
+  public void clear()
+  {
+     Arrays.fill(mem, (byte) 0);
+  }
+
   // Pack the 4-byte integer val into the four bytes mem[loc]...mem[loc+3].
   // The most significant porion of the integer is stored in mem[loc].
-  // Bytes are masked out of the integer and stored in the array, working
-  // from right(least significant) to left (most significant).
+  // The four bytes are stored at once through a big-endian view of the
+  //  array, with a single bounds check.
   void pack(int val, int loc)
   {
-     final int MASK = 0xff;
-     for (int i=3; i >= 0; i--)
-     {
-        mem[loc+i] = (byte)(val & MASK);
-        val = val >> 8;
-     }
+     INT.set(mem, loc, val);
   }
 
   // Unpack the four bytes mem[loc]...mem[loc+3] into a 4-byte integer,
   //  and return the resulting integer value.
   // The most significant porion of the integer is stored in mem[loc].
-  // Bytes are 'OR'ed into the integer, working from left (most significant) 
-  //  to right (least significant)
   int unpack(int loc)
   {
-     final int MASK = 0xff;
-     int v = (int)mem[loc] & MASK;
-     for (int i=1; i < 4; i++)
-     {
-        v = v << 8; 
-        v = v | ((int)mem[loc+i] & MASK);
-     }
-     return v;
+     return (int) INT.get(mem, loc);
+  }
+
+  // Pack the 8-byte long val into the eight bytes mem[loc]...mem[loc+7],
+  //  most significant byte first.
+  void packLong(long val, int loc)
+  {
+     LONG.set(mem, loc, val);
   }
 
+  // Unpack the eight bytes mem[loc]...mem[loc+7] into an 8-byte long.
+  long unpackLong(int loc)
+  {
+     return (long) LONG.get(mem, loc);
+  }
 
+  // Pack the 2-byte short val into the two bytes mem[loc] and mem[loc+1],
+  //  most significant byte first.
+  void packShort(short val, int loc)
+  {
+     SHORT.set(mem, loc, val);
+  }
 
-  // Test the above pack and unpack methods by iterating the following
-  //  over all possible 4-byte integers: pack the integer,
-  //  then unpack it, and then verify that the unpacked integer equals the
-  //  original integer.  It tests all nonnegative numbers in ascending order
-  //  and then all negative numbers in ascending order.  The transition from
-  //  positive to negative numbers happens implicitly due to integer overflow.
-  public void packTest()
+  // Unpack the two bytes mem[loc] and mem[loc+1] into a 2-byte short.
+  short unpackShort(int loc)
   {
+     return (short) SHORT.get(mem, loc);
+  }
+
+
 
-     int i = 0;
+  // Test the above pack and unpack methods on the boundary values (0, -1,
+  //  the minimum and maximum values, and every power of two and its
+  //  neighbours) and on a sample of random values, at every offset of a
+  //  word so unaligned accesses are covered. Each packed value is also
+  //  checked byte by byte against the big-endian layout, so the on-disk
+  //  format stays the same.
+  public void packTest()
+  {
+     final int SAMPLES = 1 << 20;
+     Random random = new Random(51062654);
      long k = 0;
-     do 
+
+     for (int loc = 0; loc < 8 && loc + 8 <= size; loc++)
      {
-        this.pack(i,4);
-        int j = this.unpack(4);
-        if (j != i)
+        for (int bit = 0; bit < 64; bit++)
+        {
+           long power = 1L << bit;
+           k += testValue(power, loc) + testValue(power - 1, loc)
+              + testValue(power + 1, loc) + testValue(-power, loc);
+        }
+        k += testValue(0, loc) + testValue(-1, loc)
+           + testValue(Long.MIN_VALUE, loc) + testValue(Long.MAX_VALUE, loc);
+        for (int i = 0; i < SAMPLES / 8; i++)
         {
-           System.out.printf("pack/unpack test failed: i = %d, j = %d\n",i,j);
-           System.exit(0);
+           k += testValue(random.nextLong(), loc);
         }
-        i++; k++;
      }
-     while (i != 0);
      System.out.printf("pack/unpack test successful, %d iterations\n",k);
   }
 
+  // Pack and unpack a value as a long, and its low bits as an int and a
+  //  short, at the given offset, checking the bytes stored in the array.
+  //  Exits on the first failure. Returns the number of checks made.
+  private int testValue(long val, int loc)
+  {
+     packLong(val, loc);
+     if (unpackLong(loc) != val || !hasBytes(val, loc, 8))
+     {
+        fail("long", val, loc);
+     }
+     pack((int) val, loc);
+     if (unpack(loc) != (int) val || !hasBytes(val, loc, 4))
+     {
+        fail("int", val, loc);
+     }
+     packShort((short) val, loc);
+     if (unpackShort(loc) != (short) val || !hasBytes(val, loc, 2))
+     {
+        fail("short", val, loc);
+     }
+     return 3;
+  }
+
+  // Check that mem[loc]...mem[loc+n-1] hold the n low bytes of val, the
+  //  most significant one first.
+  private boolean hasBytes(long val, int loc, int n)
+  {
+     for (int i = n - 1; i >= 0; i--)
+     {
+        if (mem[loc+i] != (byte) val)
+        {
+           return false;
+        }
+        val = val >> 8;
+     }
+     return true;
+  }
+
+  private void fail(String type, long val, int loc)
+  {
+     System.out.printf("pack/unpack %s test failed: value = %d, loc = %d\n",type,val,loc);
+     System.exit(0);
+  }
+
   // main routine to test the PackableMemory class by running the 
   //  packTest() method.
   public static void main(String[] args)
@@ -86,4 +239,4 @@ public class PackableMemory
      pm.packTest();
      System.exit(0);
   }
-}
\ No newline at end of file
+}
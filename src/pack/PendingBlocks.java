@@ -0,0 +1,164 @@
+package pack;
+
+/**
+ * The PendingBlocks class holds the blocks written to open files which have no block of the disk yet, so their blocks
+ * are only allocated when the files are flushed (on close, sync or save), or when it runs out of room. By then the
+ * blocks of a file are allocated together, in a single run if there is one, and a block written several times,
+ * or never flushed at all, doesn't allocate anything in the meantime.
+ *
+ * Each pending block is owned by an entry of the OFT, and holds a block of its file. The buffers of the blocks are
+ * allocated the first time they are used, and then reused, so holding a block doesn't allocate once in a steady state.
+ */
+public class PendingBlocks {
+
+	private final int[] owner; // OFT index of the file of each block (-1 if the block is unused)
+	private final int[] fileBlock; // Block of the file held by each block
+	private final PackableMemory[] data; // Contents of each block (null until first used)
+	private final int blockLength; // Block length (in bytes)
+	private final boolean offHeap; // Whether the buffers are allocated off-heap
+	private int size; // Number of blocks in use
+
+
+	/**
+	 * Class constructor. Creates an empty set of pending blocks.
+	 * @param capacity		maximum number of pending blocks (0 disables delayed allocation).
+	 * @param blockLength	block length (in bytes).
+	 * @param offHeap		'true' to allocate the buffers off-heap.
+	 */
+	public PendingBlocks(int capacity, int blockLength, boolean offHeap){
+		owner = new int[capacity];
+		fileBlock = new int[capacity];
+		data = new PackableMemory[capacity];
+		this.blockLength = blockLength;
+		this.offHeap = offHeap;
+		for(int i = 0; i<capacity; i++){
+			owner[i] = -1;
+		}
+	}
+
+
+	/**
+	 * Finds the pending block holding a block of a file.
+	 * @param index		OFT index of the file.
+	 * @param block		block of the file.
+	 * @return			the pending block; -1 if the block of the file is not pending.
+	 */
+	public int find(int index, int block){
+		if(size == 0){
+			return -1;
+		}
+		for(int i = 0; i<owner.length; i++){
+			if(owner[i] == index && fileBlock[i] == block){
+				return i;
+			}
+		}
+		return -1;
+	}
+
+
+	/**
+	 * Stores a copy of a block of a file, replacing the copy already pending if there is one.
+	 * @param index		OFT index of the file.
+	 * @param block		block of the file.
+	 * @param src		contents of the block.
+	 * @return			'true' for success; 'false' if every pending block is in use.
+	 */
+	public boolean put(int index, int block, PackableMemory src){
+		int slot = find(index, block);
+		if(slot == -1){
+			if(size == owner.length){
+				return false;
+			}
+			slot = 0;
+			while(owner[slot] != -1){
+				slot++;
+			}
+			if(data[slot] == null){
+				data[slot] = PackableMemory.allocate(blockLength, offHeap);
+			}
+			owner[slot] = index;
+			fileBlock[slot] = block;
+			size++;
+		}
+		src.copyTo(0, data[slot], 0, blockLength);
+		return true;
+	}
+
+
+	/**
+	 * Returns the contents of a pending block.
+	 * @param slot		pending block.
+	 * @return			contents of the block.
+	 */
+	public PackableMemory get(int slot){
+		return data[slot];
+	}
+
+
+	/**
+	 * Returns the OFT index of the file of a pending block.
+	 * @param slot		pending block.
+	 * @return			OFT index of the file; -1 if the block is unused.
+	 */
+	public int getOwner(int slot){
+		return owner[slot];
+	}
+
+
+	/**
+	 * Returns the block of the file held by a pending block.
+	 * @param slot		pending block.
+	 * @return			block of the file.
+	 */
+	public int getFileBlock(int slot){
+		return fileBlock[slot];
+	}
+
+
+	/**
+	 * Finds the last block of a file which is pending.
+	 * @param index		OFT index of the file.
+	 * @return			the last block of the file pending; -1 if the file has no pending blocks.
+	 */
+	public int lastBlock(int index){
+		int last = -1;
+		for(int i = 0; i<owner.length && size > 0; i++){
+			if(owner[i] == index && fileBlock[i] > last){
+				last = fileBlock[i];
+			}
+		}
+		return last;
+	}
+
+
+	/**
+	 * Releases every pending block of a file.
+	 * @param index		OFT index of the file.
+	 */
+	public void remove(int index){
+		for(int i = 0; i<owner.length && size > 0; i++){
+			if(owner[i] == index){
+				owner[i] = -1;
+				size--;
+			}
+		}
+	}
+
+
+	/**
+	 * Returns the maximum number of pending blocks.
+	 * @return		number of blocks.
+	 */
+	public int getCapacity(){
+		return owner.length;
+	}
+
+
+	/**
+	 * Returns the number of pending blocks in use.
+	 * @return		number of blocks.
+	 */
+	public int size(){
+		return size;
+	}
+}
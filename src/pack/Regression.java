@@ -0,0 +1,222 @@
+package pack;
+
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * The purpose of this class is to check that no byte acknowledged by the FileSystem is lost when its disk is full:
+ * every byte a write returns as written must be read back after the file is closed, and close must succeed.
+ * The files are written through a disk whose free blocks are fragmented, so the tree of extents of a file splits
+ * while the disk fills up, and through a random workload checked against a model of the files.
+ * It also checks that names with the same hash can be added to a directory, and take no blocks once removed.
+ * Usage: java pack.Regression [seeds...]
+ */
+public class Regression {
+
+	private static int failures = 0;
+
+
+	public static void main(String[] args) {
+		fillThroughTreeSplit();
+
+		int [] seeds = {5, 25, 100};
+		if(args.length > 0) {
+			seeds = Arrays.stream(args).mapToInt(Integer::parseInt).toArray();
+		}
+		for(int seed : seeds) {
+			randomWorkload(seed);
+		}
+		collidingNames();
+
+		System.out.println(failures == 0 ? "ALL OK" : failures + " FAILED");
+		if(failures > 0) {
+			System.exit(1);
+		}
+	}
+
+
+	/**
+	 * Fragments the free blocks of the default disk into runs of one block, and writes a file into them until the disk
+	 * is full, so each block of the file takes an extent of its own and the tree of extents splits.
+	 */
+	private static void fillThroughTreeSplit() {
+		FileSystem fs = new FileSystem();
+		fs.init();
+
+		// Files of one block each, every other one destroyed afterwards
+		byte [] block = new byte[LDisk.BLOCK_LENGTH];
+		int files = 0;
+		while(fs.getFreeBlocks() > 0 && fs.create("hole" + files)) {
+			int handle = fs.open("hole" + files);
+			int written = fs.write(handle, block, block.length);
+			fs.close(handle);
+			files++;
+			if(written < block.length) {
+				break;
+			}
+		}
+		for(int i = 0; i<files; i += 2) {
+			fs.destroy("hole" + i);
+		}
+
+		fs.create("big");
+		int handle = fs.open("big");
+		byte [] data = new byte[LDisk.BLOCK_LENGTH * LDisk.NUM_BLOCKS];
+		new Random(1).nextBytes(data);
+		int length = 0;
+		for(int written = 1; written > 0 && length < data.length; length += written) {
+			written = fs.write(handle, Arrays.copyOfRange(data, length, data.length), Math.min(data.length - length, 40));
+		}
+		check(length > 3 * LDisk.BLOCK_LENGTH, "tree split: the file takes more extents than its descriptor holds");
+		check(fs.close(handle), "tree split: close succeeds on a full disk");
+		check(readBack(fs, "big", Arrays.copyOf(data, length)), "tree split: the " + length + " bytes written read back");
+	}
+
+
+	/**
+	 * Runs a random workload of creates, writes, seeks, reads, closes and destroys on the default disk, comparing
+	 * the bytes read with a model of the files and checking that each close succeeds.
+	 * @param seed		seed of the random workload.
+	 */
+	private static void randomWorkload(int seed) {
+		Random random = new Random(seed);
+		FileSystem fs = new FileSystem();
+		fs.init();
+		// The directory keeps the block of its first entries once it has any
+		fs.create("first");
+		fs.destroy("first");
+		int initialFree = fs.getFreeBlocks();
+
+		String [] names = {"a", "b", "c", "d", "e", "f"};
+		byte [][] contents = new byte[names.length][];
+		int [] handles = new int[names.length];
+		int [] positions = new int[names.length];
+		Arrays.fill(handles, -1);
+		int open = 0;
+		boolean ok = true;
+
+		for(int step = 0; step<3000 && ok; step++) {
+			int f = random.nextInt(names.length);
+			int op = random.nextInt(10);
+			if(contents[f] == null) {
+				if(fs.create(names[f])) {
+					contents[f] = new byte[0];
+				}
+			} else if(handles[f] == -1) {
+				if(op == 0) {
+					ok = fs.destroy(names[f]);
+					contents[f] = null;
+				} else if(open < FileSystem.MAX_NUM_OPEN_FILES - 1) {
+					handles[f] = fs.open(names[f]);
+					positions[f] = 0;
+					open++;
+					ok = handles[f] > 0;
+				}
+			} else if(op < 5) {
+				byte [] bytes = new byte[1 + random.nextInt(200)];
+				random.nextBytes(bytes);
+				int written = fs.write(handles[f], bytes, bytes.length);
+				int end = positions[f] + written;
+				if(end > contents[f].length) {
+					contents[f] = Arrays.copyOf(contents[f], end);
+				}
+				System.arraycopy(bytes, 0, contents[f], positions[f], written);
+				positions[f] = end;
+				ok = written >= 0;
+			} else if(op < 7) {
+				positions[f] = random.nextInt(contents[f].length + 1);
+				ok = fs.lseek(handles[f], positions[f]);
+			} else if(op < 8) {
+				byte [] bytes = new byte[contents[f].length - positions[f]];
+				int read = fs.read(handles[f], bytes, bytes.length);
+				ok = read == bytes.length && Arrays.equals(bytes, 0, read, contents[f], positions[f], positions[f] + read);
+				positions[f] += Math.max(read, 0);
+			} else {
+				ok = fs.close(handles[f]);
+				handles[f] = -1;
+				open--;
+			}
+		}
+		for(int f = 0; f<names.length && ok; f++) {
+			if(handles[f] != -1) {
+				ok = fs.close(handles[f]);
+			}
+		}
+		for(int f = 0; f<names.length && ok; f++) {
+			if(contents[f] != null) {
+				ok = readBack(fs, names[f], contents[f]) && fs.destroy(names[f]);
+			}
+		}
+		check(ok, "seed " + seed + ": the bytes written read back and every close succeeds");
+		check(fs.getFreeBlocks() == initialFree, "seed " + seed + ": the blocks of the files destroyed are free again");
+	}
+
+
+	/**
+	 * Creates files whose names have the same hash ("Aa" and "BB" have the same String.hashCode()), more than a block
+	 * of the directory holds, and checks that they are found, and that the directory keeps no more blocks each time
+	 * they are destroyed and created again.
+	 */
+	private static void collidingNames() {
+		FileSystem fs = new FileSystem();
+		fs.init();
+		fs.create("first");
+		fs.destroy("first");
+		int initialFree = fs.getFreeBlocks();
+
+		String [] names = new String[8];
+		for(int i = 0; i<names.length; i++) {
+			StringBuilder name = new StringBuilder();
+			for(int bit = 0; bit<6; bit++) {
+				name.append((i >> bit & 1) == 0 ? "Aa" : "BB");
+			}
+			names[i] = name.toString();
+		}
+
+		int [] free = new int[2];
+		boolean created = true;
+		boolean found = true;
+		for(int round = 0; round<free.length; round++) {
+			for(String name : names) {
+				created &= fs.create(name);
+			}
+			for(String name : names) {
+				int handle = fs.open(name);
+				found &= handle > 0 && fs.close(handle);
+			}
+			found &= fs.directory().trim().split("\\s+").length == names.length;
+			for(String name : names) {
+				fs.destroy(name);
+			}
+			free[round] = fs.getFreeBlocks();
+		}
+		check(created, "colliding names: " + names.length + " names with the same hash are created");
+		check(found, "colliding names: every name is found and listed");
+		check(free[1] == free[0] && initialFree - free[0] < names.length,
+				"colliding names: the directory keeps " + (initialFree - free[1]) + " blocks once they are destroyed");
+	}
+
+
+	/**
+	 * Opens a file and checks it holds the given bytes.
+	 * @param fs		FileSystem where the file is.
+	 * @param name		name of the file.
+	 * @param expected	bytes the file must hold.
+	 * @return			'true' if the file holds the bytes; 'false' otherwise.
+	 */
+	private static boolean readBack(FileSystem fs, String name, byte [] expected) {
+		int handle = fs.open(name);
+		byte [] bytes = new byte[expected.length + 1];
+		int read = fs.read(handle, bytes, bytes.length);
+		fs.close(handle);
+		return read == expected.length && Arrays.equals(bytes, 0, read, expected, 0, expected.length);
+	}
+
+
+	private static void check(boolean condition, String description) {
+		System.out.println((condition ? "OK      " : "FAILED  ") + description);
+		if(!condition) {
+			failures++;
+		}
+	}
+}
@@ -0,0 +1,205 @@
+package pack;
+
+import java.io.*;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+
+/**
+ * The Snapshot class implements a read-only, point-in-time view of a BlockDevice, taken through a CowDisk.
+ * The blocks not written since the snapshot was taken are read from the device, and the rest from the copies
+ * the CowDisk preserved before writing them.
+ * A snapshot can be mounted read-only by a FileSystem or exported to an image file, and must be released
+ * once it is not needed, so the device stops preserving blocks for it.
+ */
+public class Snapshot implements BlockDevice {
+	
+	private CowDisk owner; // CowDisk preserving the blocks of the snapshot (null once released)
+	private final BlockDevice device; // Device the snapshot was taken of
+	private final int blockLength; // Block length (in bytes)
+	private final HashMap<Integer, byte[]> preserved; // Content of the blocks written since the snapshot was taken
+	private static final BitSet NO_BLOCKS = new BitSet(); // A snapshot is never written, so it has no dirty blocks
+	
+	
+	/**
+	 * Class constructor. Snapshots are taken with CowDisk.snapshot().
+	 * @param owner		CowDisk preserving the blocks of the snapshot.
+	 * @param device	device the snapshot is taken of.
+	 */
+	Snapshot(CowDisk owner, BlockDevice device){
+		this.owner = owner;
+		this.device = device;
+		this.blockLength = device.getBlockLength();
+		preserved = new HashMap<Integer, byte[]>();
+	}
+	
+	
+	/**
+	 * Indicates whether the content of a block at the time of the snapshot has already been preserved.
+	 * @param i		index of the block.
+	 * @return		'true' if the block has been preserved; 'false' if it is still shared with the device.
+	 */
+	boolean isPreserved(int i){
+		return preserved.containsKey(i);
+	}
+	
+	
+	/**
+	 * Preserves the content of a block at the time of the snapshot, before it is written in the device.
+	 * @param i			index of the block.
+	 * @param content	content of the block, which must not be modified afterwards.
+	 */
+	void preserve(int i, byte[] content){
+		preserved.put(i, content);
+	}
+	
+	
+	/**
+	 * Returns the number of blocks copied since the snapshot was taken.
+	 * @return		number of preserved blocks.
+	 */
+	public int getNumPreserved(){
+		return preserved.size();
+	}
+	
+	
+	@Override
+	public int getNumBlocks(){
+		return device.getNumBlocks();
+	}
+	
+	
+	@Override
+	public int getBlockLength(){
+		return blockLength;
+	}
+	
+	
+	@Override
+	public void read_block(int i, PackableMemory myBlock){
+		// Check size of the block equals the block length, otherwise error
+		BlockDevice.checkBlockSize(myBlock, blockLength);
+		
+		byte [] content = preserved.get(i);
+		if(content != null){
+			myBlock.copyFrom(content, 0, 0, blockLength);
+		} else {
+			device.read_block(i, myBlock);
+		}
+	}
+	
+	
+	/**
+	 * Snapshots are read-only.
+	 * @throws UnsupportedOperationException	always.
+	 */
+	@Override
+	public void write_block(int i, PackableMemory myBlock){
+		throw new UnsupportedOperationException("Snapshots are read-only");
+	}
+	
+	
+	/**
+	 * Read several blocks, copying them one after the other into dst.
+	 * Preserved blocks are copied from their copy, while runs of blocks still shared with the device are read at once.
+	 */
+	@Override
+	public void read_blocks(int[] blockIds, byte[] dst, int off){
+		for(int k = 0; k<blockIds.length; ){
+			byte [] content = preserved.get(blockIds[k]);
+			if(content != null){
+				System.arraycopy(content, 0, dst, off + k*blockLength, blockLength);
+				k++;
+			} else {
+				int end = k + 1;
+				while(end < blockIds.length && !preserved.containsKey(blockIds[end])){
+					end++;
+				}
+				device.read_blocks(Arrays.copyOfRange(blockIds, k, end), dst, off + k*blockLength);
+				k = end;
+			}
+		}
+	}
+	
+	
+	/**
+	 * Snapshots are read-only.
+	 * @throws UnsupportedOperationException	always.
+	 */
+	@Override
+	public void write_blocks(int[] blockIds, byte[] src, int off){
+		throw new UnsupportedOperationException("Snapshots are read-only");
+	}
+	
+	
+	@Override
+	public BitSet getDirtyBlocks(){
+		return NO_BLOCKS;
+	}
+	
+	
+	@Override
+	public void clearDirtyBlocks(){
+	}
+	
+	
+	/**
+	 * Has no effect, since a snapshot is never written.
+	 */
+	@Override
+	public void force(){
+	}
+	
+	
+	/**
+	 * Has no effect: a FileSystem which mounted the snapshot closes it when unmounting it, but the snapshot stays
+	 * valid until it is released.
+	 */
+	@Override
+	public void close(){
+	}
+	
+	
+	/**
+	 * Releases the snapshot, so the device stops preserving blocks for it. The snapshot can still be read while 
+	 * the device is open, but it then sees the blocks written afterwards.
+	 */
+	public void release(){
+		if(owner != null){
+			owner.release(this);
+			owner = null;
+		}
+	}
+	
+	
+	/**
+	 * Writes every block of the snapshot into an image file, which can be restored with FileSystem.init(String).
+	 * @param fileName		name of the image file.
+	 * @return				boolean status: 'true' for success; 'false' for error.
+	 */
+	public boolean export(String fileName){
+		int numBlocks = getNumBlocks();
+		int chunkBlocks = Math.max(1, Math.min(FileSystem.IMAGE_CHUNK_SIZE / blockLength, numBlocks));
+		byte [] chunk = new byte[chunkBlocks * blockLength];
+		
+		try {
+			FileOutputStream outputStream = new FileOutputStream(fileName);
+			try {
+				for(int i = 0; i<numBlocks; i = i + chunkBlocks){
+					int [] blockIds = new int[Math.min(chunkBlocks, numBlocks - i)];
+					for(int j = 0; j<blockIds.length; j++){
+						blockIds[j] = i + j;
+					}
+					read_blocks(blockIds, chunk, 0);
+					outputStream.write(chunk, 0, blockIds.length * blockLength);
+				}
+			} finally {
+				outputStream.close();
+			}
+			return true;
+		}
+		catch(IOException ex) {
+			return false;
+		}
+	}
+}
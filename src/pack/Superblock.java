@@ -0,0 +1,154 @@
+package pack;
+
+/**
+ * The Superblock class describes the geometry and the layout of an LDisk, and is stored in its block 0.
+ * The geometry (number of blocks and block length) is chosen when the disk is formatted, and the layout
+ * (where the bitmap, the file descriptors and the data blocks start) is derived from it.
+ * The superblock only uses the first MIN_BLOCK_LENGTH bytes of block 0, so it can be read back from an image 
+ * file before knowing its block length.
+ */
+public class Superblock {
+	
+	public static final int MAGIC = 0x4C44534B; // "LDSK"
+	public static final int VERSION = 5; // Version 1 had no journal, versions 1 and 2 had descriptors of 3 block numbers,
+											// versions 1 to 3 had a directory of fixed slots, and versions 1 to 4
+											// had a fixed number of descriptors
+	public static final int EXTENT_VERSION = 3; // First version whose descriptors have extents
+	public static final int DIRECTORY_VERSION = 4; // First version whose directory is a hash table
+	public static final int MIN_BLOCK_LENGTH = 64; // Bytes
+	
+	int version;			// Version of the layout of the LDisk
+	int numBlocks;			// Number of blocks of the LDisk
+	int blockLength;		// Length of each block (in bytes)
+	int numDescriptors;		// Number of file descriptors
+	int bitmapStart;		// First block of the bitmap
+	int bitmapBlocks;		// Number of blocks of the bitmap
+	int descStart;			// First block of the file descriptors
+	int descBlocks;			// Number of blocks of the file descriptors
+	int descIndex;			// First index block of the extension blocks of the file descriptors (0 if there is none)
+	int journalStart;		// First block of the metadata journal
+	int journalBlocks;		// Number of blocks of the metadata journal (0 if there is no journal)
+	int dataStart;			// First data block
+	
+	
+	/**
+	 * Class constructor with no parameters. Creates an empty superblock to be filled with read().
+	 */
+	private Superblock(){
+	}
+	
+	
+	/**
+	 * Class constructor with parameters. Computes the layout of an LDisk with the given geometry: 
+	 * the superblock in block 0, followed by the bitmap, the file descriptors, the journal and the data blocks.
+	 * There are as many file descriptors as slots fit in a directory of fixed slots of maximum file size (more are added
+	 * in extension blocks when they are used up), and the journal has room for a transaction holding the superblock,
+	 * every bitmap and descriptor block and a few directory blocks.
+	 * @param numBlocks		number of blocks of the LDisk.
+	 * @param blockLength	length of each block (in bytes). It must be at least MIN_BLOCK_LENGTH and 
+	 * 						a multiple of the file descriptor length.
+	 * @throws IllegalArgumentException		if the geometry is not valid.
+	 */
+	public Superblock(int numBlocks, int blockLength){
+		if(blockLength < MIN_BLOCK_LENGTH || blockLength % FileSystem.FD_LENGTH != 0){
+			throw new IllegalArgumentException("Invalid block length: " + blockLength);
+		}
+		
+		this.version = VERSION;
+		this.numBlocks = numBlocks;
+		this.blockLength = blockLength;
+		numDescriptors = blockLength * FileSystem.DISK_MAP / FileSystem.SLOT_SIZE;
+		bitmapStart = 1;
+		bitmapBlocks = (int) ((numBlocks + 8L * blockLength - 1) / (8L * blockLength));
+		descStart = bitmapStart + bitmapBlocks;
+		descBlocks = (numDescriptors * FileSystem.FD_LENGTH + blockLength - 1) / blockLength;
+		journalStart = descStart + descBlocks;
+		journalBlocks = Journal.blocksNeeded(1 + bitmapBlocks + descBlocks + FileSystem.DISK_MAP, blockLength);
+		dataStart = journalStart + journalBlocks;
+		
+		// There must be room at least for the directory
+		if(numBlocks < dataStart + FileSystem.DISK_MAP){
+			throw new IllegalArgumentException("Invalid number of blocks: " + numBlocks);
+		}
+	}
+	
+	
+	/**
+	 * Reads a superblock from the first MIN_BLOCK_LENGTH bytes of the given block.
+	 * @param block		block 0 of an LDisk, or at least its first MIN_BLOCK_LENGTH bytes.
+	 * @return			the superblock; null if the block does not contain a valid superblock, or its geometry or layout
+	 * 					is not valid (e.g. the image is corrupt).
+	 */
+	public static Superblock read(PackableMemory block){
+		int version = block.unpack(4);
+		if(block.unpack(0) != MAGIC || version < 1 || version > VERSION){
+			return null;
+		}
+		
+		Superblock superblock = new Superblock();
+		superblock.version = version;
+		superblock.blockLength = block.unpack(8);
+		superblock.numBlocks = block.unpack(12);
+		superblock.numDescriptors = block.unpack(16);
+		superblock.bitmapStart = block.unpack(20);
+		superblock.bitmapBlocks = block.unpack(24);
+		superblock.descStart = block.unpack(28);
+		superblock.descBlocks = block.unpack(32);
+		superblock.dataStart = block.unpack(36);
+		superblock.journalStart = version >= 2 ? block.unpack(40) : superblock.dataStart;
+		superblock.journalBlocks = version >= 2 ? block.unpack(44) : 0;
+		superblock.descIndex = version >= 5 ? block.unpack(48) : 0;
+		return superblock.isValid() ? superblock : null;
+	}
+	
+	
+	/**
+	 * Checks the geometry and the layout read from a disk the way the constructor builds them: a valid block length,
+	 * and the bitmap, the file descriptors, the journal and the data blocks one after the other within the disk,
+	 * each large enough for what it holds.
+	 * @return		'true' if the superblock is valid; 'false' otherwise.
+	 */
+	private boolean isValid(){
+		int fdLength = version < EXTENT_VERSION ? FileSystem.LEGACY_FD_LENGTH : FileSystem.FD_LENGTH;
+		if(blockLength < MIN_BLOCK_LENGTH || blockLength % fdLength != 0 || numBlocks <= 0){
+			return false;
+		}
+		return bitmapStart >= 1 && bitmapBlocks >= (numBlocks + 8L * blockLength - 1) / (8L * blockLength)
+				&& descStart >= (long) bitmapStart + bitmapBlocks
+				&& numDescriptors >= 1 && descBlocks >= 0 && (long) descBlocks * blockLength >= (long) numDescriptors * fdLength
+				&& journalStart >= (long) descStart + descBlocks
+				&& journalBlocks >= 0 && dataStart >= (long) journalStart + journalBlocks
+				&& dataStart < numBlocks
+				&& (descIndex == 0 || (descIndex >= dataStart && descIndex < numBlocks));
+	}
+	
+	
+	/**
+	 * Writes the superblock into the first MIN_BLOCK_LENGTH bytes of the given block.
+	 * @param block		block where the superblock will be written.
+	 */
+	public void write(PackableMemory block){
+		block.pack(MAGIC, 0);
+		block.pack(VERSION, 4);
+		block.pack(blockLength, 8);
+		block.pack(numBlocks, 12);
+		block.pack(numDescriptors, 16);
+		block.pack(bitmapStart, 20);
+		block.pack(bitmapBlocks, 24);
+		block.pack(descStart, 28);
+		block.pack(descBlocks, 32);
+		block.pack(dataStart, 36);
+		block.pack(journalStart, 40);
+		block.pack(journalBlocks, 44);
+		block.pack(descIndex, 48);
+	}
+	
+	
+	/**
+	 * Computes the size of the LDisk described by the superblock.
+	 * @return		size of the LDisk (in bytes).
+	 */
+	public long diskSize(){
+		return (long) numBlocks * blockLength;
+	}
+}